@@ -37,9 +37,12 @@ public class DataSet extends FormatUtils {
   // Descriptor data
   private String[]    mDescriptors;        // Optional field, may be null
 
+  private Metric      mMetric;             // Set when the vectors were prepared for a metric, see Metric - null is l2
+
   // Derived fields - calculated when needed, then kept
   private float[]     mVectorLengths;      
   private HashMap     mDescriptorLookup;
+  private VectorBlocks  mVectorBlocks;     // Copy of vectors, dimension-major in blocks, for full scans
 
 //--------------------------------------------------------------------------------------------------------
 // DataSet 
@@ -95,6 +98,9 @@ public class DataSet extends FormatUtils {
     return (mHasDescriptors?mDescriptors[inVectorDx]:null); }  
   public String[] getDescriptors() { return mDescriptors; }  
 
+  public Metric getMetric() { return (mMetric==null)?Metric.kL2:mMetric; }
+  void setMetric(Metric inMetric) { mMetric=inMetric; }
+
 //--------------------------------------------------------------------------------------------------------
 // getVectorLengths
 //--------------------------------------------------------------------------------------------------------
@@ -110,6 +116,18 @@ public class DataSet extends FormatUtils {
   
   public float getVectorLength(int inVectorDx) { return getVectorLengths()[inVectorDx]; }
 
+//--------------------------------------------------------------------------------------------------------
+// getVectorBlocks
+//
+// Synchronized since search threads share the dataset - the first caller builds it
+//--------------------------------------------------------------------------------------------------------
+
+  public synchronized VectorBlocks getVectorBlocks() {
+    if (mVectorBlocks==null)
+      mVectorBlocks=new VectorBlocks(this);
+    return mVectorBlocks;
+  }
+
 //--------------------------------------------------------------------------------------------------------
 // getDescriptorLookup
 //--------------------------------------------------------------------------------------------------------
@@ -233,8 +251,12 @@ public class DataSet extends FormatUtils {
     if (!FileUtils.doesFileExist(theFilename)) {
       // Then standardize directory and file extension and look again
       theFilename=kDataSetDir+"/"+stripFilePathAndType(theFilename)+".vecs";    
-      if (!FileUtils.doesFileExist(theFilename)) 
+      if (!FileUtils.doesFileExist(theFilename)) {
+        // Datasets prepared for a metric are not saved - prepare again from the raw dataset
+        if (Metric.extractMetricName(inDataSetFilename)!=null)
+          return Metric.loadDataSet(inDataSetFilename);
         throw new RuntimeException("DataSet does not exist: "+inDataSetFilename);
+      }
     }
     
     long theFileSize=FileUtils.getFileSize(theFilename);
@@ -0,0 +1,239 @@
+//--------------------------------------------------------------------------------------------------------
+// Metric.java
+//--------------------------------------------------------------------------------------------------------
+
+package hiD.data;
+
+import java.io.*;
+
+import hiD.utils.*;
+
+//--------------------------------------------------------------------------------------------------------
+// Metric
+//
+// How near two vectors are
+//   l2       squared euclidean distance - the default, and what the engines have always used
+//   cosine   cosine similarity, via vectors normalized to unit length
+//            |a-b|^2 = 2-2*cos(a,b) for unit vectors, so nearest in l2 is most similar in cosine
+//   ip       inner product, via vectors with one extra dim so all are the length of the longest vector, MaxLength
+//            Data vector v gets extra component √(MaxLength^2-|v|^2), and a query gets 0
+//            |q-v|^2 = |q|^2+MaxLength^2-2*q.v, so nearest in l2 is largest inner product with the query
+//
+// Build, search and brute search only ever see the prepared vectors, so they all rank by the same distance2
+//   with the same distance kernel, and identical vectors still have a distance2 of exactly 0, which the
+//   dup handling in IndexVector, Accumulator and the searches depends on
+// A raw dot product kernel is not used for cosine or ip for that reason - identical vectors would not give 0
+//
+// The prepared dataset is a copy held in RAM, with the metric appended to the source name, as in
+//   SIFT_train-cosine_128D_1000Kv.vecs, so its indexes get their own filenames
+// DataSet.load prepares it again from the raw dataset when an index for it is loaded
+// Metrics apply to the vectors as stored - for cosine or ip, build the dataset without centering it
+//--------------------------------------------------------------------------------------------------------
+
+public class Metric extends FormatUtils {
+
+//--------------------------------------------------------------------------------------------------------
+// Metric consts
+//--------------------------------------------------------------------------------------------------------
+
+  public static final String   kL2Metric="l2";
+  public static final String   kCosineMetric="cosine";
+  public static final String   kInnerProductMetric="ip";
+
+  public static final String   kSourceNameSeparator="-";     // Between the raw source name and the metric name
+
+  public static final Metric   kL2=new Metric(kL2Metric,0);
+
+//--------------------------------------------------------------------------------------------------------
+// Metric member vars
+//--------------------------------------------------------------------------------------------------------
+
+  private String   mName;
+  private double   mMaxLength2;        // Only used by ip - length2 of the longest raw data vector
+
+//--------------------------------------------------------------------------------------------------------
+// Metric
+//--------------------------------------------------------------------------------------------------------
+
+  private Metric(String inName, double inMaxLength2) {
+    mName=inName;
+    mMaxLength2=inMaxLength2;
+  }
+
+  // The raw dataset is needed for ip, to find the longest vector
+  public static Metric createMetric(String inName, DataSet inRawDataSet) {
+    if (inName.equals(kL2Metric))
+      return kL2;
+
+    else if (inName.equals(kCosineMetric))
+      return new Metric(kCosineMetric,0);
+
+    else if (inName.equals(kInnerProductMetric)) {
+      double theMaxLength2=0;
+      for (int i=0; i<inRawDataSet.getNVectors(); i++)
+        theMaxLength2=Math.max(theMaxLength2,VectorUtils.vectorLength2(inRawDataSet.getVector(i)));
+      return new Metric(kInnerProductMetric,theMaxLength2);
+
+    } else
+      throw new RuntimeException("Unknown metric: "+inName);
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// gets
+//--------------------------------------------------------------------------------------------------------
+
+  public String getName() { return mName; }
+  public boolean getIsL2() { return mName.equals(kL2Metric); }
+  public double getMaxLength2() { return mMaxLength2; }
+
+  // Dims added to the raw vectors
+  public int getNExtraDims() { return mName.equals(kInnerProductMetric)?1:0; }
+
+//--------------------------------------------------------------------------------------------------------
+// getTypicalDistance2
+//
+// Typical distance2 between two prepared data vectors, used to scale defaults like the build shortcut
+// l2 assumes a normalized dataset, where components are ~1 and the mean distance2 is 2*NDims
+//--------------------------------------------------------------------------------------------------------
+
+  public double getTypicalDistance2(int inRawNDims) {
+    if (mName.equals(kCosineMetric))
+      return 2;
+    else if (mName.equals(kInnerProductMetric))
+      return 2*mMaxLength2;
+    else
+      return 2*inRawNDims;
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// prepareVector
+//
+// Writes the prepared vector in outVector, which has getNExtraDims more dims than the raw vector
+// Returns the raw vector itself for l2, without copying
+//--------------------------------------------------------------------------------------------------------
+
+  private float[] prepareVector(float[] inRawVector, boolean inIsQuery, float[] outVector) {
+    if (getIsL2())
+      return inRawVector;
+
+    int theNDims=inRawVector.length;
+    if (outVector.length!=theNDims+getNExtraDims())
+      throw new RuntimeException("Vectors different NDims");
+
+    if (mName.equals(kCosineMetric)) {
+      double theLength=VectorUtils.vectorLength(inRawVector);
+      if (theLength==0)
+        System.arraycopy(inRawVector,0,outVector,0,theNDims);    // Zero vector has no direction - left as is
+      else
+        VectorUtils.scaleVector(1/theLength,inRawVector,outVector);
+
+    } else {
+      System.arraycopy(inRawVector,0,outVector,0,theNDims);
+      if (inIsQuery)
+        outVector[theNDims]=0;
+      else
+        outVector[theNDims]=(float) Math.sqrt(Math.max(0,mMaxLength2-VectorUtils.vectorLength2(inRawVector)));
+    }
+    return outVector;
+  }
+
+  // Work vector must have getNExtraDims more dims than the query - it is not used for l2
+  public float[] prepareQueryVector(float[] inRawQueryVector, float[] outWorkVector) {
+    return prepareVector(inRawQueryVector,true,outWorkVector); }
+
+  public float[] createQueryWorkVector(int inRawNDims) {
+    return getIsL2()?null:new float[inRawNDims+getNExtraDims()]; }
+
+//--------------------------------------------------------------------------------------------------------
+// toScore
+//
+// Converts a distance2 between a query and a prepared data vector back to the metric's own measure
+//   l2       distance2, smaller is nearer
+//   cosine   cosine similarity, bigger is nearer
+//   ip       inner product, bigger is nearer
+//--------------------------------------------------------------------------------------------------------
+
+  public double toScore(float[] inRawQueryVector, float inDistance2) {
+    if (mName.equals(kCosineMetric))
+      return 1-inDistance2/2.0;
+    else if (mName.equals(kInnerProductMetric))
+      return (VectorUtils.vectorLength2(inRawQueryVector)+mMaxLength2-inDistance2)/2;
+    else
+      return inDistance2;
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// prepareDataSet
+//
+// Returns the raw dataset itself for l2
+//--------------------------------------------------------------------------------------------------------
+
+  public DataSet prepareDataSet(DataSet inRawDataSet) {
+    if (getIsL2())
+      return inRawDataSet;
+
+    log("\nPreparing DataSet for "+mName+" metric");
+    int theNVectors=inRawDataSet.getNVectors();
+    int theNDims=inRawDataSet.getNDims()+getNExtraDims();
+    float[][] theVectors=new float[theNVectors][];
+    double theMaxLength2=0;
+    for (int i=0; i<theNVectors; i++) {
+      theVectors[i]=prepareVector(inRawDataSet.getVector(i),false,new float[theNDims]);
+      theMaxLength2=Math.max(theMaxLength2,VectorUtils.vectorLength2(theVectors[i]));
+    }
+
+    DataSet theDataSet=new DataSet(
+        theNDims,
+        theNVectors,
+        inRawDataSet.getSourceName()+kSourceNameSeparator+mName,
+        Math.sqrt(theMaxLength2),
+        inRawDataSet.getMean(),
+        inRawDataSet.getScale(),
+        theVectors,
+        inRawDataSet.getDescriptors());
+    theDataSet.setMetric(this);
+    return theDataSet;
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// extractMetricName
+//
+// Metric name from a dataset or index filename, or null if the filename is for a raw dataset
+//--------------------------------------------------------------------------------------------------------
+
+  public static String extractMetricName(String inFilename) {
+    String theCore=stripFilePathAndType(inFilename);
+    String[] theMetricNames={kCosineMetric,kInnerProductMetric};
+    for (int i=0; i<theMetricNames.length; i++)
+      if (theCore.indexOf(kSourceNameSeparator+theMetricNames[i]+"_")>=0)
+        return theMetricNames[i];
+    return null;
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// loadDataSet
+//
+// Loads the raw dataset for a prepared dataset filename, like SIFT_train-ip_129D_1000Kv.vecs, and prepares it
+//--------------------------------------------------------------------------------------------------------
+
+  public static DataSet loadDataSet(String inDataSetFilename) throws IOException {
+    String theMetricName=extractMetricName(inDataSetFilename);
+    if (theMetricName==null)
+      throw new RuntimeException("Not a metric dataset: "+inDataSetFilename);
+
+    // Core is Source-metric_NDimsD_NVectorsv
+    String theCore=stripFilePathAndType(inDataSetFilename);
+    int theVectorsPos=theCore.lastIndexOf("_");
+    int theDimsPos=theCore.lastIndexOf("_",theVectorsPos-1);
+    String theSourceName=theCore.substring(0,theDimsPos);
+    int theNDims=Integer.parseInt(theCore.substring(theDimsPos+1,theVectorsPos-1));
+
+    String theRawSourceName=theSourceName.substring(0,theSourceName.length()-kSourceNameSeparator.length()-theMetricName.length());
+    int theRawNDims=theNDims-(theMetricName.equals(kInnerProductMetric)?1:0);
+    String theRawFilename=theRawSourceName+"_"+theRawNDims+"D"+theCore.substring(theVectorsPos)+".vecs";
+
+    DataSet theRawDataSet=DataSet.load(theRawFilename);
+    return createMetric(theMetricName,theRawDataSet).prepareDataSet(theRawDataSet);
+  }
+
+}
@@ -0,0 +1,139 @@
+//--------------------------------------------------------------------------------------------------------
+// VectorBlocks.java
+//--------------------------------------------------------------------------------------------------------
+
+package hiD.data;
+
+import hiD.utils.*;
+
+//--------------------------------------------------------------------------------------------------------
+// VectorBlocks
+//
+// Alternate layout of the dataset vectors for full scans, like brute search
+// Vectors are grouped in blocks of 64, and within a block the components are dimension-major
+//   block[dim*64+lane] is component dim of vector blockDx*64+lane
+// A scan loads one query component and applies it to 64 vectors from contiguous memory,
+//   instead of chasing 64 separate row arrays, so the inner loop is stride 1 and easy for the JIT to vectorize
+//
+// Each lane accumulates its distance in double in the same dimension order as VectorUtils.vectorSeparation2,
+//   so distances are bitwise identical to the scalar distance kernel
+// Since partial sums only grow, a block can be dropped as soon as all 64 partial sums pass the limit
+//
+// CAUTION: this is a copy of the vectors, so it doubles the RAM used by the dataset
+//--------------------------------------------------------------------------------------------------------
+
+public class VectorBlocks implements Constants {
+
+//--------------------------------------------------------------------------------------------------------
+// VectorBlocks consts
+//--------------------------------------------------------------------------------------------------------
+
+  public static final int   kBlockNVectors=64;
+  public static final int   kPruneCheckNDims=32;     // How often all partial sums are checked against the limit
+
+//--------------------------------------------------------------------------------------------------------
+// VectorBlocks member vars
+//--------------------------------------------------------------------------------------------------------
+
+  private int         mNDims;
+  private int         mNVectors;
+  private int         mNBlocks;
+
+  private float[][]   mBlocks;
+  //   1st array index is the block index
+  //   2nd array is dim*kBlockNVectors+lane - lanes past the end of the dataset are zero
+
+//--------------------------------------------------------------------------------------------------------
+// VectorBlocks
+//--------------------------------------------------------------------------------------------------------
+
+  public VectorBlocks(DataSet inDataSet) {
+    mNDims=inDataSet.getNDims();
+    mNVectors=inDataSet.getNVectors();
+    mNBlocks=(mNVectors+kBlockNVectors-1)/kBlockNVectors;
+    mBlocks=new float[mNBlocks][];
+    for (int theBlockDx=0; theBlockDx<mNBlocks; theBlockDx++) {
+      float[] theBlock=new float[mNDims*kBlockNVectors];
+      int theStartVectorDx=theBlockDx*kBlockNVectors;
+      int theBlockNVectors=Math.min(kBlockNVectors,mNVectors-theStartVectorDx);
+      for (int theLane=0; theLane<theBlockNVectors; theLane++) {
+        float[] theVector=inDataSet.getVector(theStartVectorDx+theLane);
+        for (int theDim=0; theDim<mNDims; theDim++)
+          theBlock[theDim*kBlockNVectors+theLane]=theVector[theDim];
+      }
+      mBlocks[theBlockDx]=theBlock;
+    }
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// gets
+//--------------------------------------------------------------------------------------------------------
+
+  public int getNDims() { return mNDims; }
+  public int getNVectors() { return mNVectors; }
+  public int getNBlocks() { return mNBlocks; }
+
+  public int getBlockStartVectorDx(int inBlockDx) { return inBlockDx*kBlockNVectors; }
+  public int getBlockNVectors(int inBlockDx) { return Math.min(kBlockNVectors,mNVectors-inBlockDx*kBlockNVectors); }
+
+//--------------------------------------------------------------------------------------------------------
+// addSeparation2s
+//
+// Kept as a separate simple loop nest so the JIT vectorizes the lane loop
+//--------------------------------------------------------------------------------------------------------
+
+  private static void addSeparation2s(
+      float[]    inQueryVector,
+      float[]    inBlock,
+      int        inStartDim,
+      int        inEndDim,
+      double[]   ioSeparation2s) {
+    for (int theDim=inStartDim; theDim<inEndDim; theDim++) {
+      float theQueryComponent=inQueryVector[theDim];
+      int theOffset=theDim*kBlockNVectors;
+      for (int theLane=0; theLane<kBlockNVectors; theLane++) {
+        double theDifference=theQueryComponent-inBlock[theOffset+theLane];
+        ioSeparation2s[theLane]+=theDifference*theDifference;
+      }
+    }
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// calcBlockSeparation2s
+//
+// Calcs distance2 from the query to all vectors in the block
+// Returns false, with partial sums in the output, if every vector in the block is further than the limit
+// Use Double.MAX_VALUE as the limit for no pruning
+//--------------------------------------------------------------------------------------------------------
+
+  public boolean calcBlockSeparation2s(
+      float[]    inQueryVector,
+      int        inBlockDx,
+      double     inLimitDistance2,
+      double[]   outSeparation2s) {
+
+    if (inQueryVector.length!=mNDims)
+      throw new RuntimeException("Vectors different NDims");
+
+    float[] theBlock=mBlocks[inBlockDx];
+    int theBlockNVectors=getBlockNVectors(inBlockDx);
+    for (int theLane=0; theLane<kBlockNVectors; theLane++)
+      outSeparation2s[theLane]=0;
+
+    for (int theDim=0; theDim<mNDims; theDim+=kPruneCheckNDims) {
+      int theEndDim=Math.min(mNDims,theDim+kPruneCheckNDims);
+      addSeparation2s(inQueryVector,theBlock,theDim,theEndDim,outSeparation2s);
+
+      // Check whether any vector in the block could still be near enough - padding lanes are ignored
+      if ((theEndDim<mNDims)&&(inLimitDistance2!=Double.MAX_VALUE)) {
+        double theMinSeparation2=outSeparation2s[0];
+        for (int theLane=1; theLane<theBlockNVectors; theLane++)
+          theMinSeparation2=Math.min(theMinSeparation2,outSeparation2s[theLane]);
+        if (theMinSeparation2>inLimitDistance2)
+          return false;
+      }
+    }
+    return true;
+  }
+
+}
@@ -4,6 +4,8 @@
 
 package hiD.index;
 
+import java.util.Arrays;
+
 import hiD.data.*;
 import hiD.index.extras.IndexAccuracyTest;
 import hiD.utils.*;
@@ -30,7 +32,14 @@ public class BuildIndex extends FormatUtils {
 // buildIndex
 //--------------------------------------------------------------------------------------------------------
 
-  public static Index buildIndex(DataSet inDataSet, int inIndexNNear) throws Exception {
+  // Set SaveAndTest false to build a throw away index, e.g. the sample indexes built by IndexPlanner
+  // DupDistance2 bigger than zero collapses near identical vectors as dups, see IndexVector.open
+  public static Index buildIndex(
+      DataSet   inDataSet,
+      int       inIndexNNear,
+      float     inShortcutDistance2,
+      float     inDupDistance2,
+      boolean   inSaveAndTest) throws Exception {
 
     gDataSet=inDataSet;
     gIndexNNear=inIndexNNear;
@@ -38,7 +47,7 @@ public class BuildIndex extends FormatUtils {
 
     int theNVectors=gDataSet.getNVectors();
     gCreateHeap=new CreateHeap(inDataSet);
-    IndexVector.open(gCreateHeap,inIndexNNear);
+    IndexVector.open(gCreateHeap,inIndexNNear,inShortcutDistance2,inDupDistance2);
     gNeighborSet=new NeighborSet(theNVectors);
     gCreateInfo=new CreateHeap.CreateInfo();
 
@@ -48,7 +57,13 @@ public class BuildIndex extends FormatUtils {
     long theStepStartNUsefulCalcs=0;
     
     log("\nIndex NNear  "+gIndexNNear);
+    if (!gDataSet.getMetric().getIsL2())
+      log("Metric       "+gDataSet.getMetric().getName());
+    log("Shortcut     "+formatDistance2(inShortcutDistance2));
+    if (inDupDistance2>0)
+      log("Dup Dist2    "+formatDistance2(inDupDistance2));
     log("NCores       "+kNCores);
+    log("Kernel       "+DistanceKernel.getBuildKernel().getName());
 
     log("\n                    "+
         leftPad("Create",13)+
@@ -66,6 +81,10 @@ public class BuildIndex extends FormatUtils {
         leftPad("Time",14));
 
     // Create nodes in the index tree in order
+    // The create order is kept with the index, see ExpressLayer
+    int[] theCreateVectorDxs=new int[theNVectors];
+    float[] theCreateDistance2s=new float[theNVectors];
+    Arrays.fill(theCreateVectorDxs,kNotFound);
     int theCreateDx=0;
     int theReportStep=10;
     int theNextReportStep=20;
@@ -84,6 +103,8 @@ public class BuildIndex extends FormatUtils {
         break;
             
       IndexVector.getIndexVector(theCreateVectorDx).createLinks(gNeighborSet);
+      theCreateVectorDxs[theCreateDx]=theCreateVectorDx;
+      theCreateDistance2s[theCreateDx]=theCreateDistance2;
       theCreateDx++;
 
       // Report progress
@@ -294,10 +315,19 @@ public class BuildIndex extends FormatUtils {
         theIndexingTime,
         theLinkVectorDxss,
         theLinkDistance2ss);
-    theIndex.save();
-
-    // Test index accuracy
-    IndexAccuracyTest.testAccuracy(theIndex);
+    theIndex.setCreateOrder(theCreateDx,theCreateVectorDxs,theCreateDistance2s);
+    if (inDupDistance2>0)
+      theIndex.setMetadataFloat(Index.kDupDistance2Name,inDupDistance2);
+    if (!gDataSet.getMetric().getIsL2())
+      theIndex.setMetadataString(Index.kMetricName,gDataSet.getMetric().getName());
+    theIndex.setMetadataString(Index.kBuildKernelName,DistanceKernel.getBuildKernel().getName());
+    RoutingTable.addRoutingTable(theIndex);
+    if (inSaveAndTest) {
+      theIndex.save();
+
+      // Test index accuracy
+      IndexAccuracyTest.testAccuracy(theIndex);
+    }
 
     // Report stats
     log("\nIndex:            "+theIndex.getStandardFilename());
@@ -318,11 +348,24 @@ public class BuildIndex extends FormatUtils {
     return theIndex;
   }
 
+  public static Index buildIndex(DataSet inDataSet, int inIndexNNear) throws Exception {
+    return buildIndex(
+        inDataSet,
+        inIndexNNear,
+        IndexVector.defaultShortcutDistance2(inDataSet),
+        0,
+        true); }
+
 //--------------------------------------------------------------------------------------------------------
 // run 
 //--------------------------------------------------------------------------------------------------------
 
-  public static void run(String inDataSetFilename, String inIndexNNear) throws Exception {
+  public static void run(
+      String  inDataSetFilename, 
+      String  inIndexNNear, 
+      String  inShortcutDistance2,
+      String  inDupDistance2,
+      String  inMetricName) throws Exception {
 
     long theStartTime=System.currentTimeMillis();
     log(reportHeader("Build HiD Search Index",theStartTime));
@@ -342,8 +385,18 @@ public class BuildIndex extends FormatUtils {
       buildIndex(DataSet.load("GIST_train_960D_1000Kv"),20);  
 
     } else {  
-      buildIndex(DataSet.load(inDataSetFilename),
-                 Integer.parseInt(inIndexNNear));
+      // Vectors are prepared for the metric in RAM, see Metric
+      DataSet theDataSet=DataSet.load(inDataSetFilename);
+      if (inMetricName!=null)
+        theDataSet=Metric.createMetric(inMetricName,theDataSet).prepareDataSet(theDataSet);
+
+      buildIndex(theDataSet,
+                 Integer.parseInt(inIndexNNear),
+                 (inShortcutDistance2==null?
+                     IndexVector.defaultShortcutDistance2(theDataSet):
+                     Float.parseFloat(inShortcutDistance2)),
+                 (inDupDistance2==null?0:Float.parseFloat(inDupDistance2)),
+                 true);
     }
     
     log(reportFooter(theStartTime));
@@ -362,7 +415,17 @@ public class BuildIndex extends FormatUtils {
       String theIndexNNear=null;
       if (inArgs.length>1)
         theIndexNNear=inArgs[1];
-      BuildIndex.run(theDataSetFilename,theIndexNNear);
+      // default keeps the default for an optional parameter, so later parameters can be given
+      String theShortcutDistance2=null;
+      if ((inArgs.length>2)&&(!inArgs[2].equals("default")))
+        theShortcutDistance2=inArgs[2];
+      String theDupDistance2=null;
+      if ((inArgs.length>3)&&(!inArgs[3].equals("default")))
+        theDupDistance2=inArgs[3];
+      String theMetricName=null;
+      if (inArgs.length>4)
+        theMetricName=inArgs[4];
+      BuildIndex.run(theDataSetFilename,theIndexNNear,theShortcutDistance2,theDupDistance2,theMetricName);
     } catch (Throwable e) {
       e.printStackTrace(System.err);
     }
@@ -0,0 +1,131 @@
+//--------------------------------------------------------------------------------------------------------
+// ExpressLayer.java
+//--------------------------------------------------------------------------------------------------------
+
+package hiD.index;
+
+import java.util.Arrays;
+
+import hiD.utils.*;
+
+//--------------------------------------------------------------------------------------------------------
+// ExpressLayer
+//
+// Levels of sparser and sparser nodes above the index, so searches can descend in logarithmic steps
+// Level 0 is the whole index.  Level L holds the first NCreated/kLevelRatio^L nodes in create order, which
+//   are farthest first, so every level is a well spread subset of the level below it
+// The top level is the last with at least kMinTopNNodes nodes
+//
+// Each level's links are a node's index links to other nodes of the level, nearest first, up to kMaxNLevelLinks
+// When a node is created, its far links are to its nearest nodes created before it, see IndexVector.createLinks,
+//   so a node always has links to its near neighbors among the nodes of its own levels
+//
+// Built from the index's create order, so nothing more is stored in the index file
+//--------------------------------------------------------------------------------------------------------
+
+public class ExpressLayer extends FormatUtils {
+
+//--------------------------------------------------------------------------------------------------------
+// ExpressLayer consts
+//--------------------------------------------------------------------------------------------------------
+
+  public static final String    kExpressProperty="hiD.express";    // false has searches ignore the layer, to compare
+
+  public static final int       kLevelRatio=16;
+  public static final int       kMinTopNNodes=16;
+  public static final int       kMaxNLevelLinks=24;
+
+//--------------------------------------------------------------------------------------------------------
+// ExpressLayer member vars
+//--------------------------------------------------------------------------------------------------------
+
+  private int           mNLevels;                 // Including level 0, the whole index
+  private int           mEntryVectorDx;
+  private int[]         mLevelNNodes;             // By level
+  private int[]         mCreateDxs;               // Position of each vector in create order, kNotFound for dups
+  private int[][][]     mLevelLinkVectorDxsss;    // By level, then by createDx of the node - level 0 is null
+
+//--------------------------------------------------------------------------------------------------------
+// ExpressLayer
+//--------------------------------------------------------------------------------------------------------
+
+  public ExpressLayer(Index inIndex) {
+
+    int theNCreated=inIndex.getNCreated();
+    int[] theCreateVectorDxs=inIndex.getCreateVectorDxs();
+
+    mEntryVectorDx=(theNCreated==0)?kNotFound:theCreateVectorDxs[0];
+    mCreateDxs=new int[inIndex.getNVectors()];
+    Arrays.fill(mCreateDxs,kNotFound);
+    for (int i=0; i<theNCreated; i++)
+      mCreateDxs[theCreateVectorDxs[i]]=i;
+
+    // Level sizes
+    mNLevels=1;
+    for (long theNNodes=theNCreated/kLevelRatio; theNNodes>=kMinTopNNodes; theNNodes/=kLevelRatio)
+      mNLevels++;
+    mLevelNNodes=new int[mNLevels];
+    mLevelNNodes[0]=theNCreated;
+    for (int theLevel=1; theLevel<mNLevels; theLevel++)
+      mLevelNNodes[theLevel]=mLevelNNodes[theLevel-1]/kLevelRatio;
+
+    // Level links - index links are sorted nearest first, so the kept links are too
+    mLevelLinkVectorDxsss=new int[mNLevels][][];
+    int[] theLinkVectorDxs=new int[kMaxNLevelLinks];
+    for (int theLevel=1; theLevel<mNLevels; theLevel++) {
+      int theNNodes=mLevelNNodes[theLevel];
+      int[][] theLevelLinkVectorDxss=new int[theNNodes][];
+      for (int i=0; i<theNNodes; i++) {
+        int[] theIndexLinkVectorDxs=inIndex.getLinkVectorDxs(theCreateVectorDxs[i]);
+        int theNLinks=0;
+        for (int j=0; (j<theIndexLinkVectorDxs.length)&&(theNLinks<kMaxNLevelLinks); j++) {
+          int theCreateDx=mCreateDxs[theIndexLinkVectorDxs[j]];
+          if ((theCreateDx!=kNotFound)&&(theCreateDx<theNNodes))
+            theLinkVectorDxs[theNLinks++]=theIndexLinkVectorDxs[j];
+        }
+        theLevelLinkVectorDxss[i]=Arrays.copyOf(theLinkVectorDxs,theNLinks);
+      }
+      mLevelLinkVectorDxsss[theLevel]=theLevelLinkVectorDxss;
+    }
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// gets
+//--------------------------------------------------------------------------------------------------------
+
+  public static boolean getUseExpress() { return Boolean.parseBoolean(System.getProperty(kExpressProperty,"true")); }
+
+  public int getNLevels() { return mNLevels; }
+  public int getTopLevel() { return mNLevels-1; }
+  public int getLevelNNodes(int inLevel) { return mLevelNNodes[inLevel]; }
+  public int getCreateDx(int inVectorDx) { return mCreateDxs[inVectorDx]; }
+
+  // First created node, the root, which is in every level
+  public int getEntryVectorDx() { return mEntryVectorDx; }
+
+  public boolean getIsInLevel(int inVectorDx, int inLevel) {
+    int theCreateDx=mCreateDxs[inVectorDx];
+    return (theCreateDx!=kNotFound)&&(theCreateDx<mLevelNNodes[inLevel]);
+  }
+
+  // Links of a node to the other nodes of a level above 0, nearest first
+  // Original array returned - not a copy
+  public int[] getLevelLinkVectorDxs(int inVectorDx, int inLevel) {
+    return mLevelLinkVectorDxsss[inLevel][mCreateDxs[inVectorDx]]; }
+
+  public long getTotalNLevelLinks() {
+    long theTotNLinks=0;
+    for (int theLevel=1; theLevel<mNLevels; theLevel++)
+      for (int i=0; i<mLevelNNodes[theLevel]; i++)
+        theTotNLinks+=mLevelLinkVectorDxsss[theLevel][i].length;
+    return theTotNLinks;
+  }
+
+  public String getLevelSizes() {
+    StringBuffer theBuffer=new StringBuffer();
+    for (int theLevel=mNLevels-1; theLevel>=0; theLevel--)
+      theBuffer.append(((theLevel<mNLevels-1)?", ":"")+mLevelNNodes[theLevel]);
+    return theBuffer.toString();
+  }
+
+}
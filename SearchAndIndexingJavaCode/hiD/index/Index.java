@@ -6,6 +6,8 @@ package hiD.index;
 
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 
 import hiD.data.*;
 import hiD.utils.*;
@@ -16,6 +18,22 @@ import hiD.utils.*;
 
 public class Index extends FormatUtils {
 
+//--------------------------------------------------------------------------------------------------------
+// Index consts
+//--------------------------------------------------------------------------------------------------------
+
+  // Metadata section follows the links in the index file, and starts with this tag
+  // Index files written before metadata existed end after the links, and load with no metadata
+  public static final int       kMetadataTag=0x68694D44;        // "hiMD"
+
+  // Metadata names
+  public static final String    kDupDistance2Name="DupDistance2";   // Vectors this close to a node were collapsed as dups
+  public static final String    kMetricName="Metric";               // Metric the dataset was prepared for, see Metric
+  public static final String    kBuildKernelName="BuildKernel";     // Distance kernel that measured the link distances
+  public static final String    kRoutingVectorDxsName="RoutingVectorDxs";   // Search entry vectors, see RoutingTable
+  public static final String    kSpreadFactorName="SpreadFactor";   // Tuned spread link cutoff, see TuneSearch
+  public static final String    kShortCircuitDistanceName="ShortCircuitDistance";   // Tuned descend short circuit
+
 //--------------------------------------------------------------------------------------------------------
 // Index member vars
 //--------------------------------------------------------------------------------------------------------
@@ -40,6 +58,15 @@ public class Index extends FormatUtils {
   //   1st array index is the source vector index
   //   2nd array index is the link index for that source vector
 
+  // Nodes in the farthest first order BuildIndex created them, see CreateHeap - null for indexes built before it was kept
+  private int             mNCreated;              // Number of nodes - dups are never created
+  private int[]           mCreateVectorDxs;       // VectorDx of each node in create order, kNotFound after the last node
+  private float[]         mCreateDistance2s;      // Distance2 from each node to the nearest node created before it
+  private ExpressLayer    mExpressLayer;          // Built from the create order when first needed
+
+  // Named values saved with the index - values are bytes so new kinds of metadata don't change the file format
+  private HashMap         mMetadata;              // String name -> byte[] value
+
 //--------------------------------------------------------------------------------------------------------
 // Index 
 //--------------------------------------------------------------------------------------------------------
@@ -55,6 +82,7 @@ public class Index extends FormatUtils {
     mIndexingTime=inIndexingTime;
     mLinkVectorDxss=inVectorDxss;
     mLinkDistance2ss=inDistance2ss;
+    mMetadata=new HashMap();
     int theNVectors=mDataSet.getNVectors();
     for (int i=0; i<theNVectors; i++) {
       mTotNLinks+=inVectorDxss[i].length;
@@ -105,8 +133,95 @@ public class Index extends FormatUtils {
   public float getNearestLinkDistance2(int inVectorDx) { return mLinkDistance2ss[inVectorDx][0]; }
   public float getFurthestLinkDistance2(int inVectorDx) { return mLinkDistance2ss[inVectorDx][mLinkDistance2ss[inVectorDx].length-1]; }
 
+  public boolean getHasCreateOrder() { return (mCreateVectorDxs!=null); }
+  public int getNCreated() { return mNCreated; }
+  public int[] getCreateVectorDxs() { return mCreateVectorDxs; }
+  public float[] getCreateDistance2s() { return mCreateDistance2s; }
+
+  public void setCreateOrder(int inNCreated, int[] inCreateVectorDxs, float[] inCreateDistance2s) {
+    mNCreated=inNCreated;
+    mCreateVectorDxs=inCreateVectorDxs;
+    mCreateDistance2s=inCreateDistance2s;
+    mExpressLayer=null;
+  }
+
+  // Null without a create order
+  public synchronized ExpressLayer getExpressLayer() {
+    if ((mExpressLayer==null)&&(mCreateVectorDxs!=null))
+      mExpressLayer=new ExpressLayer(this);
+    return mExpressLayer;
+  }
+
   public boolean getIsDup(int inVectorDx) { return ((getNLinks(inVectorDx)==1)&&(getNearestLinkDistance2(inVectorDx)==0)); }
 
+  // Zero means only identical vectors were collapsed as dups
+  // If bigger, dup links are still zero length, but dups can be a little different from the vector they are a dup of
+  public float getDupDistance2() { return getMetadataFloat(kDupDistance2Name,0); }
+
+  // Indexes built before metrics existed are l2
+  public String getMetricName() { return getMetadataString(kMetricName,Metric.kL2Metric); }
+
+  // Null for indexes built before routing tables existed, whose searches start at the root vector
+  public int[] getRoutingVectorDxs() { return getMetadataInts(kRoutingVectorDxsName); }
+  public void setRoutingVectorDxs(int[] inVectorDxs) { setMetadataInts(kRoutingVectorDxsName,inVectorDxs); }
+
+//--------------------------------------------------------------------------------------------------------
+// metadata
+//--------------------------------------------------------------------------------------------------------
+
+  public boolean hasMetadata(String inName) { return mMetadata.containsKey(inName); }
+  public byte[] getMetadata(String inName) { return (byte[]) mMetadata.get(inName); }
+  public void setMetadata(String inName, byte[] inValue) { mMetadata.put(inName,inValue); }
+  
+  public String[] getMetadataNames() { 
+    String[] theNames=(String[]) mMetadata.keySet().toArray(new String[mMetadata.size()]);
+    Arrays.sort(theNames);
+    return theNames;
+  }
+
+  public float getMetadataFloat(String inName, float inDefault) {
+    byte[] theValue=getMetadata(inName);
+    return (theValue==null)?inDefault:ConversionUtils.bytesToFloat(theValue,0); 
+  }
+  
+  public void setMetadataFloat(String inName, float inValue) {
+    byte[] theValue=new byte[ConversionUtils.kFloatMemory];
+    ConversionUtils.floatToBytes(inValue,theValue,0);
+    setMetadata(inName,theValue);
+  }
+
+  public int[] getMetadataInts(String inName) {
+    byte[] theValue=getMetadata(inName);
+    if (theValue==null)
+      return null;
+    int[] theInts=new int[theValue.length/ConversionUtils.kIntMemory];
+    ConversionUtils.bytesToInts(theValue,0,theValue.length,theInts,0);
+    return theInts;
+  }
+
+  public void setMetadataInts(String inName, int[] inValue) {
+    byte[] theValue=new byte[inValue.length*ConversionUtils.kIntMemory];
+    ConversionUtils.intsToBytes(inValue,0,inValue.length,theValue,0);
+    setMetadata(inName,theValue);
+  }
+
+  public String getMetadataString(String inName, String inDefault) {
+    byte[] theValue=getMetadata(inName);
+    try {
+      return (theValue==null)?inDefault:new String(theValue,"UTF-8"); 
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException("Metadata "+inName+" is not UTF-8",e);
+    }
+  }
+
+  public void setMetadataString(String inName, String inValue) {
+    try {
+      setMetadata(inName,inValue.getBytes("UTF-8"));
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException("Metadata "+inName+" is not UTF-8",e);
+    }
+  }
+
 //--------------------------------------------------------------------------------------------------------
 // listAvailableIndexes
 //--------------------------------------------------------------------------------------------------------
@@ -158,9 +273,17 @@ public class Index extends FormatUtils {
       ConversionUtils.longToBytes(mIndexingTime,theBytes,0);         // IndexingTime - time spent indexing in millis
       theStream.write(theBytes,0,ConversionUtils.kLongMemory);
       
+      // Create order - zero filled when there is none, as in files written before it was kept
+      // The first node's create distance2 is Float.MAX_VALUE, so a zero there means no create order
       theBytes=new byte[theNVectors*ConversionUtils.kIntMemory];
-      theStream.write(theBytes);                                     // Unused - was CreateVectorDxs
-      theStream.write(theBytes);                                     // Unused - was CreateDistance2s
+      if (mCreateVectorDxs!=null)
+        ConversionUtils.intsToBytes(mCreateVectorDxs,0,theNVectors,theBytes,0);
+      theStream.write(theBytes);                                     // CreateVectorDxs
+      if (mCreateVectorDxs!=null)
+        ConversionUtils.floatsToBytes(mCreateDistance2s,0,theNVectors,theBytes,0);
+      else
+        Arrays.fill(theBytes,(byte) 0);
+      theStream.write(theBytes);                                     // CreateDistance2s
 
       // Get and write links for each vector
       for (int i=0; i<theNVectors; i++) {
@@ -179,6 +302,26 @@ public class Index extends FormatUtils {
         theStream.write(theBytes,0,ConversionUtils.kFloatMemory*theNLinks);
       }
 
+      // Write metadata section - tag, NEntries, then name and value for each entry
+      ConversionUtils.intToBytes(kMetadataTag,theBytes,0);                          // Metadata tag
+      theStream.write(theBytes,0,ConversionUtils.kIntMemory);
+      
+      String[] theNames=getMetadataNames();
+      ConversionUtils.intToBytes(theNames.length,theBytes,0);                       // NEntries
+      theStream.write(theBytes,0,ConversionUtils.kIntMemory);
+      
+      for (int i=0; i<theNames.length; i++) {
+        byte[] theNameBytes=theNames[i].getBytes("UTF-8");                          // Name - UTF8 with a leading length
+        ConversionUtils.shortToBytes((short) theNameBytes.length,theBytes,0);
+        theStream.write(theBytes,0,ConversionUtils.kShortMemory);
+        theStream.write(theNameBytes);
+        
+        byte[] theValue=getMetadata(theNames[i]);                                   // Value - bytes with a leading length
+        ConversionUtils.intToBytes(theValue.length,theBytes,0);
+        theStream.write(theBytes,0,ConversionUtils.kIntMemory);
+        theStream.write(theValue);
+      }
+
     } finally {
       theStream.flush();
       theStream.close();
@@ -248,8 +391,12 @@ public class Index extends FormatUtils {
       long theIndexingTime=ConversionUtils.bytesToLong(theBytes,0);          // Indexing time - time spent indexing in millis
       
       theBytes=new byte[theNVectors*ConversionUtils.kIntMemory];
-      theStream.read(theBytes);                                              // Unused CreateVectorDxs
-      theStream.read(theBytes);                                              // Unused CreateDistance2s
+      int[] theCreateVectorDxs=new int[theNVectors];
+      float[] theCreateDistance2s=new float[theNVectors];
+      theStream.read(theBytes);                                              // CreateVectorDxs
+      ConversionUtils.bytesToInts(theBytes,0,theBytes.length,theCreateVectorDxs,0);
+      theStream.read(theBytes);                                              // CreateDistance2s
+      ConversionUtils.bytesToFloats(theBytes,0,theBytes.length,theCreateDistance2s,0);
       
       int[][] theLinkVectorDxss=new int[theNVectors][];
       float[][] theLinkDistance2ss=new float[theNVectors][];
@@ -279,6 +426,33 @@ public class Index extends FormatUtils {
           theIndexingTime,
           theLinkVectorDxss,
           theLinkDistance2ss);    
+      if ((theNVectors>0)&&(theCreateDistance2s[0]>0)) {
+        int theNCreated=0;
+        while ((theNCreated<theNVectors)&&(theCreateVectorDxs[theNCreated]!=kNotFound))
+          theNCreated++;
+        theIndex.setCreateOrder(theNCreated,theCreateVectorDxs,theCreateDistance2s);
+      }
+
+      // Read metadata section, if there is one
+      int theNRead=theStream.read(theBytes,0,ConversionUtils.kIntMemory);          // Metadata tag
+      if ((theNRead==ConversionUtils.kIntMemory)&&(ConversionUtils.bytesToInt(theBytes,0)==kMetadataTag)) {
+        
+        theStream.read(theBytes,0,ConversionUtils.kIntMemory);                      // NEntries
+        int theNEntries=ConversionUtils.bytesToInt(theBytes,0);
+        
+        for (int i=0; i<theNEntries; i++) {
+          theStream.read(theBytes,0,ConversionUtils.kShortMemory);                  // Name - UTF8 with a leading length
+          short theNameMemory=ConversionUtils.bytesToShort(theBytes,0);
+          byte[] theNameBytes=new byte[theNameMemory];
+          theStream.read(theNameBytes);
+          
+          theStream.read(theBytes,0,ConversionUtils.kIntMemory);                    // Value - bytes with a leading length
+          byte[] theValue=new byte[ConversionUtils.bytesToInt(theBytes,0)];
+          theStream.read(theValue);
+          
+          theIndex.setMetadata(new String(theNameBytes,"UTF-8"),theValue);
+        }
+      }
       
     } finally {
       theStream.close();
@@ -286,6 +460,22 @@ public class Index extends FormatUtils {
     
     log("  "+theIndex.getIndexNNear()+" near, "+theIndex.getTotalNLinks()+" links, "+
         formatMemory(theFileSize)+" on disk, "+formatDuration(theIndex.getIndexingTime())+" to index");
+    if (theIndex.getDupDistance2()>0)
+      log("  Dups collapsed within distance2 "+formatDistance2(theIndex.getDupDistance2()));
+    if (theIndex.getHasCreateOrder())
+      log("  Create order of "+theIndex.getNCreated()+" nodes");
+    if (theIndex.hasMetadata(kRoutingVectorDxsName))
+      log("  Routing table of "+theIndex.getRoutingVectorDxs().length+" entries");
+    if (theIndex.hasMetadata(kSpreadFactorName)) {
+      float theShortCircuitDistance=theIndex.getMetadataFloat(kShortCircuitDistanceName,0);
+      log("  Tuned spread factor "+formatDouble(theIndex.getMetadataFloat(kSpreadFactorName,0),2)+", short circuit "+
+          ((theShortCircuitDistance==Float.MAX_VALUE)?"off":"distance "+formatDouble(theShortCircuitDistance,2)));
+    }
+    if (!theIndex.getMetricName().equals(inDataSet.getMetric().getName()))
+      throw new RuntimeException("Index built for "+theIndex.getMetricName()+" metric, but dataset prepared for "+
+          inDataSet.getMetric().getName());
+    if (!theIndex.getMetricName().equals(Metric.kL2Metric))
+      log("  "+theIndex.getMetricName()+" metric");
     
     return theIndex;
   }
@@ -52,6 +52,15 @@ public class IndexAccuracyTest extends FormatUtils {
       setDaemon(true);
     }
  
+    // Skips brute ranks that are dups in the index
+    private int nextBruteRank(SearchResult inBruteSearchResult, int inBruteRank, boolean inSkipDups) {
+      int theBruteRank=inBruteRank;
+      if (inSkipDups)
+        while (mIndex.getIsDup(inBruteSearchResult.getNearVectorDx(theBruteRank)))
+          theBruteRank++;
+      return theBruteRank;
+    }
+
     // Code that does the work
     public void run() {
 
@@ -59,70 +68,91 @@ public class IndexAccuracyTest extends FormatUtils {
       int theMaxNNearest=mCountss[0].length;
       DataSet theDataSet=mIndex.getDataSet();
 
-      BruteSearch theBruteSearch=new BruteSearch(theDataSet,theMaxNNearest*2,false);
-      SearchResult theBruteSearchResult=new SearchResult(theDataSet);
+      // If the index collapsed near dups, brute can't tell which vectors are dups, so brute includes dups  
+      //   and the index dups are skipped when comparing to links
+      boolean theSkipDups=(mIndex.getDupDistance2()>0);
+      int theBruteSearchNNear=theMaxNNearest*(theSkipDups?4:2);
+      BatchBruteSearch theBatchBruteSearch=new BatchBruteSearch(theDataSet,theBruteSearchNNear,theSkipDups);
+      int[] theQueryNodeDxs=new int[BatchBruteSearch.kBlockNQueries];
+      SearchResult[] theBruteSearchResults=new SearchResult[BatchBruteSearch.kBlockNQueries];
+      for (int j=0; j<BatchBruteSearch.kBlockNQueries; j++)
+        theBruteSearchResults[j]=new SearchResult(theDataSet,theBruteSearchNNear);
       
-      // Loop over queries
-      for (int i=mStartQueryDx; i<mEndQueryDx; i++) {
+      // Loop over blocks of queries
+      for (int theStartQueryDx=mStartQueryDx; theStartQueryDx<mEndQueryDx; theStartQueryDx+=BatchBruteSearch.kBlockNQueries) {
+        int theNQueries=Math.min(BatchBruteSearch.kBlockNQueries,mEndQueryDx-theStartQueryDx);
 
         // If dup, move to real vector
-        int theQueryNodeDx=i;
-        if (mIndex.getIsDup(theQueryNodeDx)) {
-          theQueryNodeDx=mIndex.getNearestLinkVectorDx(theQueryNodeDx);
-          if (mIndex.getIsDup(theQueryNodeDx)) 
-            throw new RuntimeException("Dup of dup");
+        for (int j=0; j<theNQueries; j++) {
+          int theQueryNodeDx=theStartQueryDx+j;
+          if (mIndex.getIsDup(theQueryNodeDx)) {
+            theQueryNodeDx=mIndex.getNearestLinkVectorDx(theQueryNodeDx);
+            if (mIndex.getIsDup(theQueryNodeDx)) 
+              throw new RuntimeException("Dup of dup");
+          }
+          theQueryNodeDxs[j]=theQueryNodeDx;
         }
 
-        // Calc true nearest neighbors by Brute force
-        theBruteSearchResult=theBruteSearch.search(
-            theQueryNodeDx,
-            theDataSet.getVector(theQueryNodeDx),
-            theDataSet.getDescriptor(theQueryNodeDx),
-            theBruteSearchResult);  
+        // Calc true nearest neighbors by Brute force, a block of queries at a time
+        // Queries are indexed vectors, already prepared for the metric, so distances match the link distances
+        theBatchBruteSearch.searchBlock(
+            theDataSet,
+            theQueryNodeDxs,
+            theNQueries,
+            true,
+            theBruteSearchResults);  
+
+        // Loop over queries in block
+        for (int j=0; j<theNQueries; j++) {
+          int theQueryNodeDx=theQueryNodeDxs[j];
+          SearchResult theBruteSearchResult=theBruteSearchResults[j];
         
-        // Get links from index
-        float[] theLinkDistance2s=mIndex.getLinkDistance2s(theQueryNodeDx);
-        int theNLinks=theLinkDistance2s.length;
+          // Get links from index
+          float[] theLinkDistance2s=mIndex.getLinkDistance2s(theQueryNodeDx);
+          int theNLinks=theLinkDistance2s.length;
         
-        int theLinkRank=0;
-        int theBruteRank=0;
+          int theLinkRank=0;
+          int theBruteRank=0;
 
-        while (theLinkDistance2s[theLinkRank]==0)
-          theLinkRank++;
-        while (theBruteSearchResult.getNearDistance2(theBruteRank)==0)
-          theBruteRank++;
+          while (theLinkDistance2s[theLinkRank]==0)
+            theLinkRank++;
+          while (theBruteSearchResult.getNearDistance2(theBruteRank)==0)
+            theBruteRank++;
         
-        int theRowDx=0;
-        int theNMissing=0;
-        while (true) {
+          int theRowDx=0;
+          int theNMissing=0;
+          while (true) {
           
-          float theLinkDistance2=(theLinkRank>=theNLinks?Float.MAX_VALUE:theLinkDistance2s[theLinkRank++]);  
-          float theBruteDistance2=theBruteSearchResult.getNearDistance2(theBruteRank++); 
+            float theLinkDistance2=(theLinkRank>=theNLinks?Float.MAX_VALUE:theLinkDistance2s[theLinkRank++]);  
+            theBruteRank=nextBruteRank(theBruteSearchResult,theBruteRank,theSkipDups);
+            float theBruteDistance2=theBruteSearchResult.getNearDistance2(theBruteRank++); 
 
-          while ((theRowDx<theMaxNNearest)&&(theBruteDistance2<theLinkDistance2)) {
-            theNMissing++;
+            while ((theRowDx<theMaxNNearest)&&(theBruteDistance2<theLinkDistance2)) {
+              theNMissing++;
+              mNMissings[theRowDx]+=theNMissing;
+              if (theNMissing<theMaxNMissing)
+                mCountss[theNMissing][theRowDx]++;
+              theRowDx++;
+              if (theRowDx>=theMaxNNearest) 
+                break;
+            
+              theBruteRank=nextBruteRank(theBruteSearchResult,theBruteRank,theSkipDups);
+              theBruteDistance2=theBruteSearchResult.getNearDistance2(theBruteRank++); 
+            }
+          
+            if (theRowDx>=theMaxNNearest) 
+              break;
+        
+            if (theLinkDistance2<theBruteDistance2) 
+              throw new RuntimeException("Index search distance less than brute search");
+  
             mNMissings[theRowDx]+=theNMissing;
             if (theNMissing<theMaxNMissing)
               mCountss[theNMissing][theRowDx]++;
             theRowDx++;
             if (theRowDx>=theMaxNNearest) 
               break;
-            
-            theBruteDistance2=theBruteSearchResult.getNearDistance2(theBruteRank++); 
           }
-          
-          if (theRowDx>=theMaxNNearest) 
-            break;
-        
-          if (theLinkDistance2<theBruteDistance2) 
-            throw new RuntimeException("Index search distance less than brute search");
-  
-          mNMissings[theRowDx]+=theNMissing;
-          if (theNMissing<theMaxNMissing)
-            mCountss[theNMissing][theRowDx]++;
-          theRowDx++;
-          if (theRowDx>=theMaxNNearest) 
-            break;
         }
       }
     }
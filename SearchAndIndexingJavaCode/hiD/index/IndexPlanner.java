@@ -0,0 +1,406 @@
+//--------------------------------------------------------------------------------------------------------
+// IndexPlanner.java
+//--------------------------------------------------------------------------------------------------------
+
+package hiD.index;
+
+import java.util.Random;
+
+import hiD.data.*;
+import hiD.search.*;
+import hiD.utils.*;
+
+//--------------------------------------------------------------------------------------------------------
+// IndexPlanner
+//
+// Recommends IndexNNear, Ki, and SearchNNear, Ks, for a new dataset without full size build-and-measure cycles
+//
+// A random sample of the dataset is split into sample data and held out sample queries
+// The sample is used to estimate the local intrinsic dimensionality (LID) and the distance concentration
+//   profile, which indicate how hard the dataset is to search.  Then small sample indexes are built for
+//   several Kis, and each is searched with increasing Ks until the target recall is reached
+// The Ki that reaches the target recall with the fewest distance calcs per query is recommended
+//
+// Note: the sample indexes are built one after the other because BuildIndex keeps its state in class vars,
+//   but each build is multi-threaded by IndexVector.DistanceJob, and each search is multi-threaded by searchSet
+//--------------------------------------------------------------------------------------------------------
+
+public class IndexPlanner extends FormatUtils {
+
+//--------------------------------------------------------------------------------------------------------
+// IndexPlanner consts
+//--------------------------------------------------------------------------------------------------------
+
+  public static final int      kDefaultNSampleVectors=20000;
+  public static final int      kNSampleQueries=500;
+  public static final int      kNLIDNeighbors=20;           // Neighbors used in the max likelihood LID estimate
+  public static final int      kNProfilePairs=20000;        // Random pairs used for the distance profile
+  public static final int      kNSearchNNearSteps=51;       // RecallN+0 through RecallN+250 by steps of 5
+
+  public static final int[]    kIndexNNears={10,20,30,40,60,80};
+
+  private static final long    kSampleSeed=20221005L;       // Fixed so that plans are repeatable
+
+//--------------------------------------------------------------------------------------------------------
+// Inner class Plan
+//--------------------------------------------------------------------------------------------------------
+
+  public static final class Plan {
+
+    private int      mIndexNNear;            // Recommended Ki, or kNotFound if target recall not reached
+    private int      mSearchNNear;           // Recommended Ks
+    private double   mRecall;                // Recall measured on sample
+    private long     mAvgNDistanceCalcs;     // Calcs per query measured on sample
+    private float    mShortcutDistance2;     // Recommended shortcut distance2 for BuildIndex
+    private double   mLID;                   // Estimated local intrinsic dimensionality
+    private double   mRelativeContrast;      // Mean distance over mean nearest neighbor distance
+    private long     mIndexMemory;           // Estimated RAM for full size index links
+    private long     mBuildMemory;           // Estimated peak RAM for full size build, including dataset
+    private long     mSearchMemory;          // Estimated scratch RAM per search thread
+
+    public int getIndexNNear() { return mIndexNNear; }
+    public int getSearchNNear() { return mSearchNNear; }
+    public double getRecall() { return mRecall; }
+    public long getAvgNDistanceCalcs() { return mAvgNDistanceCalcs; }
+    public float getShortcutDistance2() { return mShortcutDistance2; }
+    public double getLID() { return mLID; }
+    public double getRelativeContrast() { return mRelativeContrast; }
+    public long getIndexMemory() { return mIndexMemory; }
+    public long getBuildMemory() { return mBuildMemory; }
+    public long getSearchMemory() { return mSearchMemory; }
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// sampleDataSet
+//
+// Sample shares vector arrays with the full dataset - no copies
+//--------------------------------------------------------------------------------------------------------
+
+  private static DataSet sampleDataSet(DataSet inDataSet, int[] inVectorDxs, int inStartDx, int inNVectors, String inSuffix) {
+    float[][] theVectors=new float[inNVectors][];
+    String[] theDescriptors=(inDataSet.getHasDescriptors()?new String[inNVectors]:null);
+    for (int i=0; i<inNVectors; i++) {
+      int theVectorDx=inVectorDxs[inStartDx+i];
+      theVectors[i]=inDataSet.getVector(theVectorDx);
+      if (theDescriptors!=null)
+        theDescriptors[i]=inDataSet.getDescriptor(theVectorDx);
+    }
+    return new DataSet(
+        inDataSet.getNDims(),
+        inNVectors,
+        inDataSet.getSourceName()+inSuffix,
+        inDataSet.getMaxLengthScale(),
+        inDataSet.getMean(),
+        inDataSet.getScale(),
+        theVectors,
+        theDescriptors);
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// estimateLID
+//
+// Max likelihood estimate of Levina and Bickel, averaged over queries as suggested by MacKay and Ghahramani
+// Zero distances (dups) are skipped
+//--------------------------------------------------------------------------------------------------------
+
+  private static double estimateLID(SearchResultSet inBruteResultSet, int inNNeighbors) {
+    double theSumInverseLID=0;
+    int theNContributing=0;
+    int theNQueries=inBruteResultSet.getNQueryVectors();
+    for (int i=0; i<theNQueries; i++) {
+      SearchResult theSearchResult=inBruteResultSet.getSearchResult(i);
+
+      int theFirstRank=0;
+      while ((theFirstRank<inNNeighbors)&&(theSearchResult.getNearDistance2(theFirstRank)==0))
+        theFirstRank++;
+      int theNPositive=inNNeighbors-theFirstRank;
+      if (theNPositive<3)
+        continue;
+
+      double theLogFurthest=0.5*Math.log(theSearchResult.getNearDistance2(inNNeighbors-1));
+      double theSumLogRatio=0;
+      for (int j=theFirstRank; j<inNNeighbors-1; j++)
+        theSumLogRatio+=0.5*Math.log(theSearchResult.getNearDistance2(j))-theLogFurthest;
+
+      theSumInverseLID+=-theSumLogRatio/(theNPositive-1);
+      theNContributing++;
+    }
+    return (theSumInverseLID==0)?0:theNContributing/theSumInverseLID;
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// calcRecall
+//
+// Fraction of the true RecallN nearest neighbors found - ties at the RecallNth distance count as found
+//--------------------------------------------------------------------------------------------------------
+
+  private static double calcRecall(SearchResultSet inIndexResultSet, SearchResultSet inBruteResultSet, int inRecallN) {
+    long theNFound=0;
+    int theNQueries=inBruteResultSet.getNQueryVectors();
+    for (int i=0; i<theNQueries; i++) {
+      SearchResult theIndexSearchResult=inIndexResultSet.getSearchResult(i);
+      SearchResult theBruteSearchResult=inBruteResultSet.getSearchResult(i);
+      float theLimitDistance2=theBruteSearchResult.getNearDistance2(inRecallN-1);
+      for (int j=0; j<inRecallN; j++)
+        if (theIndexSearchResult.getNearDistance2(j)<=theLimitDistance2)
+          theNFound++;
+    }
+    return theNFound/(double) (theNQueries*(long) inRecallN);
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// planIndex
+//--------------------------------------------------------------------------------------------------------
+
+  public static Plan planIndex(
+      DataSet   inDataSet,
+      double    inRecall,
+      int       inRecallN,
+      int       inNSampleVectors,
+      boolean   inIncludeDups) throws Exception {
+
+    if ((inRecall<0.9)||(inRecall>=1.0))
+      throw new RuntimeException("Recall must be 0.9 or greater and less than 1.0");
+
+    int theNVectors=inDataSet.getNVectors();
+    int theNDims=inDataSet.getNDims();
+    int theNQueries=Math.min(kNSampleQueries,theNVectors/4);
+    int theNSampleVectors=Math.min(inNSampleVectors,theNVectors-theNQueries);
+    if (theNSampleVectors<=Math.max(inRecallN,kNLIDNeighbors)+kIndexNNears[kIndexNNears.length-1])
+      throw new RuntimeException("DataSet too small to plan: "+theNVectors+" vectors");
+
+    log("\n\nIndex Planner");
+    log("  Planning for:  "+inDataSet.getStandardFilename());
+    log("  Desire recall of "+formatPercent(inRecall)+" at "+inRecallN+"NN");
+    log("  "+(inIncludeDups?"Includes":"Does NOT include")+" duplicates");
+    log("  Sample of "+theNSampleVectors+" vectors and "+theNQueries+" held out queries");
+
+    // Random sample without replacement - first part is sample data, rest is sample queries
+    Random theGenerator=new Random(kSampleSeed);
+    int[] theVectorDxs=new int[theNVectors];
+    for (int i=0; i<theNVectors; i++)
+      theVectorDxs[i]=i;
+    for (int i=0; i<theNSampleVectors+theNQueries; i++) {
+      int j=i+theGenerator.nextInt(theNVectors-i);
+      int theSwapVectorDx=theVectorDxs[i];
+      theVectorDxs[i]=theVectorDxs[j];
+      theVectorDxs[j]=theSwapVectorDx;
+    }
+    DataSet theSampleSet=sampleDataSet(inDataSet,theVectorDxs,0,theNSampleVectors,"_plan");
+    DataSet theQuerySet=sampleDataSet(inDataSet,theVectorDxs,theNSampleVectors,theNQueries,"_planq");
+    theVectorDxs=null;
+
+    // True nearest neighbors of the sample queries
+    log("\nBrute search of sample for true nearest neighbors");
+    int theBruteSearchNNear=Math.max(inRecallN,kNLIDNeighbors);
+    SearchResultSet theBruteResultSet=BatchBruteSearch.searchSet(
+        theSampleSet,
+        theBruteSearchNNear,
+        inIncludeDups,
+        theQuerySet);
+
+    // Distance profile from random pairs
+    // Concentrated distances (small spread relative to the mean) make nearest neighbors hard to tell apart
+    double theSumDistance=0;
+    double theSumDistance2=0;
+    for (int i=0; i<kNProfilePairs; i++) {
+      int theVectorDx1=theGenerator.nextInt(theNSampleVectors);
+      int theVectorDx2=theGenerator.nextInt(theNSampleVectors);
+      double theDistance2=VectorUtils.vectorSeparation2(theSampleSet.getVector(theVectorDx1),theSampleSet.getVector(theVectorDx2));
+      theSumDistance+=Math.sqrt(theDistance2);
+      theSumDistance2+=theDistance2;
+    }
+    double theMeanDistance=theSumDistance/kNProfilePairs;
+    double theMeanDistance2=theSumDistance2/kNProfilePairs;
+    double theStdDistance=Math.sqrt(Math.max(0,theMeanDistance2-theMeanDistance*theMeanDistance));
+
+    double theSumNearestDistance=0;
+    for (int i=0; i<theNQueries; i++)
+      theSumNearestDistance+=Math.sqrt(theBruteResultSet.getSearchResult(i).getNearestDistance2());
+    double theMeanNearestDistance=theSumNearestDistance/theNQueries;
+
+    Plan thePlan=new Plan();
+    thePlan.mLID=estimateLID(theBruteResultSet,kNLIDNeighbors);
+    thePlan.mRelativeContrast=(theMeanNearestDistance==0)?Double.MAX_VALUE:theMeanDistance/theMeanNearestDistance;
+
+    // Keep the same ratio as the default shortcut of 1.5*NDims, which assumes a mean distance2 of 2*NDims
+    thePlan.mShortcutDistance2=(float) (0.75*theMeanDistance2);
+
+    log("\nDataSet profile from sample");
+    log("  Local intrinsic dimensionality:  "+formatDouble(thePlan.mLID,1)+"    of "+theNDims+" dims");
+    log("  Mean distance:                   "+formatDistance2(theMeanDistance));
+    log("  Distance std dev / mean:         "+formatDouble(theStdDistance/theMeanDistance,4)+
+        "    Smaller is more concentrated, harder to search");
+    log("  Relative contrast:               "+formatDouble(thePlan.mRelativeContrast,3)+
+        "    Mean distance over mean nearest distance, closer to 1 is harder to search");
+
+    // Build sample indexes and find the smallest Ks that reaches the target recall for each Ki
+    int theNIndexNNears=kIndexNNears.length;
+    int[] theSearchNNears=new int[theNIndexNNears];
+    double[] theRecalls=new double[theNIndexNNears];
+    long[] theAvgNDistanceCalcs=new long[theNIndexNNears];
+    double[] theAvgTimePerQuerys=new double[theNIndexNNears];
+    double[] theAvgNLinks=new double[theNIndexNNears];
+    long[] theIndexingTimes=new long[theNIndexNNears];
+
+    for (int i=0; i<theNIndexNNears; i++) {
+      int theIndexNNear=kIndexNNears[i];
+      log("\n"+kDivider+"\nSample index with IndexNNear, Ki = "+theIndexNNear);
+
+      Index theIndex=BuildIndex.buildIndex(theSampleSet,theIndexNNear,thePlan.mShortcutDistance2,0,false);
+      theAvgNLinks[i]=theIndex.getAvgNLinks();
+      theIndexingTimes[i]=theIndex.getIndexingTime();
+
+      theSearchNNears[i]=kNotFound;
+      for (int j=0; j<kNSearchNNearSteps; j++) {
+        int theSearchNNear=inRecallN+j*5;
+        if (theSearchNNear>=theNSampleVectors)
+          break;
+        SearchResultSet theIndexResultSet=IndexSearch.searchSet(
+            theIndex,
+            theSearchNNear,
+            inIncludeDups,
+            theQuerySet);
+        double theRecall=calcRecall(theIndexResultSet,theBruteResultSet,inRecallN);
+        log("  Recall of "+formatDouble(theRecall)+" at "+inRecallN+"NN with Ks = "+theSearchNNear+"NN");
+        if (theRecall>=inRecall) {
+          theSearchNNears[i]=theSearchNNear;
+          theRecalls[i]=theRecall;
+          theAvgNDistanceCalcs[i]=theIndexResultSet.getAvgNDistanceCalcs();
+          theAvgTimePerQuerys[i]=theIndexResultSet.getAvgTimePerQuery();
+          break;
+        }
+      }
+      theIndex=null;
+      System.gc();
+    }
+
+    // Pick the Ki with the fewest calcs per query - ties go to the smaller Ki, which uses less RAM
+    int theBestDx=kNotFound;
+    for (int i=0; i<theNIndexNNears; i++)
+      if (theSearchNNears[i]!=kNotFound)
+        if ((theBestDx==kNotFound)||(theAvgNDistanceCalcs[i]<theAvgNDistanceCalcs[theBestDx]))
+          theBestDx=i;
+
+    log("\n"+kDivider);
+    log("\nSample results for "+formatPercent(inRecall)+" recall at "+inRecallN+"NN");
+    log("\n"+
+        leftPad("Ki",8)+
+        leftPad("Ks",8)+
+        leftPad("Recall",10)+
+        leftPad("Calcs",10)+
+        leftPad("Search",12)+
+        leftPad("Links",10)+
+        leftPad("Build",12));
+    for (int i=0; i<theNIndexNNears; i++)
+      log(leftPad(kIndexNNears[i],8)+
+          ((theSearchNNears[i]==kNotFound)?
+              leftPad("-",8)+leftPad("-",10)+leftPad("-",10)+leftPad("-",12):
+              leftPad(theSearchNNears[i],8)+
+              leftPad(formatPercent(theRecalls[i]),10)+
+              leftPad(theAvgNDistanceCalcs[i],10)+
+              leftPad(formatDuration(theAvgTimePerQuerys[i]),12))+
+          leftPad(formatDouble(theAvgNLinks[i],1),10)+
+          leftPad(formatDuration(theIndexingTimes[i]),12)+
+          ((i==theBestDx)?"    <--- Best":""));
+
+    if (theBestDx==kNotFound) {
+      thePlan.mIndexNNear=kNotFound;
+      thePlan.mSearchNNear=kNotFound;
+      log("\nCould not achieve recall of "+formatPercent(inRecall)+" at "+inRecallN+"NN for any Ki on the sample");
+      log("  Try a larger sample, or a lower target recall");
+      return thePlan;
+    }
+
+    thePlan.mIndexNNear=kIndexNNears[theBestDx];
+    thePlan.mSearchNNear=theSearchNNears[theBestDx];
+    thePlan.mRecall=theRecalls[theBestDx];
+    thePlan.mAvgNDistanceCalcs=theAvgNDistanceCalcs[theBestDx];
+
+    // Memory estimates scale the sample to the full size
+    // Links per vector grow slowly with NVectors, so the estimates are on the low side for much bigger datasets
+    // Links are an int and a float, plus headers for the 2 link arrays per vector
+    // The create order and the express layer add 3 ints per vector, and a little over 1/15th of a level link array
+    double theLinksPerVector=theAvgNLinks[theBestDx];
+    long theDataSetMemory=theNVectors*(long) (theNDims*ConversionUtils.kFloatMemory+24);
+    thePlan.mIndexMemory=theNVectors*(long) (theLinksPerVector*(ConversionUtils.kIntMemory+ConversionUtils.kFloatMemory)+48+
+        3*ConversionUtils.kIntMemory+(ExpressLayer.kMaxNLevelLinks*ConversionUtils.kIntMemory+16)/(ExpressLayer.kLevelRatio-1));
+    // Build holds a 256 link chunk per IndexVector, its heap, then the link chain store for the final merge
+    thePlan.mBuildMemory=theDataSetMemory+
+        theNVectors*(long) (256*(ConversionUtils.kIntMemory+ConversionUtils.kFloatMemory)+
+                            2*ConversionUtils.kIntMemory*thePlan.mIndexNNear+160)+
+        (long) (2.2*theNVectors*theLinksPerVector/2*(ConversionUtils.kIntMemory+ConversionUtils.kFloatMemory+ConversionUtils.kLongMemory));
+    // IndexSearch scratch is its visited set, dense or hashed by NVectors, see VisitedSet
+    thePlan.mSearchMemory=IndexSearch.estimateScratchNBytes(theNVectors,thePlan.mSearchNNear);
+
+    log("\nRecommended for "+inDataSet.getStandardFilename());
+    log("  IndexNNear, Ki:      "+thePlan.mIndexNNear);
+    log("  SearchNNear, Ks:     "+thePlan.mSearchNNear+"    measured on sample, confirm with SearchAccuracyTest");
+    log("  Shortcut distance2:  "+formatDistance2(thePlan.mShortcutDistance2)+
+        "    default would be "+formatDistance2(IndexVector.defaultShortcutDistance2(inDataSet)));
+    log("  Index RAM:           "+formatMemory(thePlan.mIndexMemory)+"    plus "+formatMemory(theDataSetMemory)+" for dataset");
+    log("  Build RAM:           "+formatMemory(thePlan.mBuildMemory)+"    rough peak, including dataset");
+    log("  Search RAM:          "+formatMemory(thePlan.mSearchMemory)+"    scratch per search thread, "+
+        VisitedSet.getLayoutName(theNVectors)+" visited set");
+    log("\n  java -classpath hiD.jar hiD.index.BuildIndex "+inDataSet.getStandardFilename()+" "+
+        thePlan.mIndexNNear+" "+thePlan.mShortcutDistance2);
+
+    return thePlan;
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// run
+//--------------------------------------------------------------------------------------------------------
+
+  public static void run(
+      String  inDataSetFilename,
+      String  inRecall,
+      String  inRecallN,
+      String  inNSampleVectors,
+      String  inIncludeDups) throws Exception {
+
+    long theStartTime=System.currentTimeMillis();
+    log(reportHeader("Index Planner",theStartTime));
+
+    if (kOnDevBox)
+      planIndex(DataSet.load("GIST_train_960D_1000Kv"),0.99,10,kDefaultNSampleVectors,false);
+    else
+      planIndex(
+          DataSet.load(inDataSetFilename),
+          Double.parseDouble(inRecall),
+          Integer.parseInt(inRecallN),
+          Integer.parseInt(inNSampleVectors),
+          Boolean.parseBoolean(inIncludeDups));
+
+    log(reportFooter(theStartTime));
+    Thread.sleep(3000);
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// main
+//--------------------------------------------------------------------------------------------------------
+
+  public static void main(String[] inArgs) {
+    try {
+      String theDataSetFilename=null;
+      if (inArgs.length>0)
+        theDataSetFilename=inArgs[0];
+      String theRecall="0.99";
+      if (inArgs.length>1)
+        theRecall=inArgs[1];
+      String theRecallN="10";
+      if (inArgs.length>2)
+        theRecallN=inArgs[2];
+      String theNSampleVectors=String.valueOf(kDefaultNSampleVectors);
+      if (inArgs.length>3)
+        theNSampleVectors=inArgs[3];
+      String theIncludeDups="false";
+      if (inArgs.length>4)
+        theIncludeDups=inArgs[4];
+      run(theDataSetFilename,theRecall,theRecallN,theNSampleVectors,theIncludeDups);
+    } catch (Throwable e) {
+      e.printStackTrace(System.err);
+    }
+  }
+
+}
@@ -42,6 +42,8 @@ public class IndexVector extends FormatUtils {
   private static long            gNLinksKept;
   private static float           gAvgNearDistance2;  
   private static float           gShortcutDistance2;  
+  private static float           gDupDistance2;       // Vectors this close to a new node are collapsed into it as dups
+  private static DistanceKernel  gDistanceKernel;     // DistanceKernel.getBuildKernel when opened
   
   private static int             gNDups;
   private static int[]           gDupVectorDxs;
@@ -51,15 +53,30 @@ public class IndexVector extends FormatUtils {
 // open 
 //--------------------------------------------------------------------------------------------------------
   
-  public static void open(CreateHeap inCreateHeap, int inIndexNNear) {
+  // The shortcut (calc distances to all vectors instead of 2nd neighbors) is taken while the average near 
+  //   distance2 is bigger than the shortcut distance2
+  // The default is 3/4 of the typical distance2 between vectors for the dataset's metric
+  // For l2 this is 1.5*NDims, which assumes a normalized dataset, where the mean distance2 between vectors is 2*NDims
+  public static float defaultShortcutDistance2(DataSet inDataSet) { 
+    Metric theMetric=inDataSet.getMetric();
+    return (float) (0.75*theMetric.getTypicalDistance2(inDataSet.getNDims()-theMetric.getNExtraDims())); 
+  }
+
+  // DupDistance2 of zero only collapses identical vectors
+  // If bigger, near identical vectors (e.g. re-encodings of the same image) found while linking a new node are 
+  //   collapsed into it.  Vectors within DupDistance2 of each other that are both already nodes stay separate
+  public static void open(CreateHeap inCreateHeap, int inIndexNNear, float inShortcutDistance2, float inDupDistance2) {
     gCreateHeap=inCreateHeap;
     gDataSet=inCreateHeap.getDataSet();
     gIndexNNear=inIndexNNear;
 
     gNCalcs=0;
     gNUsefulCalcs=0;
+    gNLinksKept=0;
     gAvgNearDistance2=Float.MAX_VALUE;
-    gShortcutDistance2=1.5f*gDataSet.getNDims();
+    gShortcutDistance2=inShortcutDistance2;
+    gDupDistance2=inDupDistance2;
+    gDistanceKernel=DistanceKernel.getBuildKernel();
     gNDups=0;
 
     int theNVectors=gDataSet.getNVectors();
@@ -76,6 +93,9 @@ public class IndexVector extends FormatUtils {
       gDupOfVectorDxs[i]=kNotFound;
     }
   }
+
+  public static void open(CreateHeap inCreateHeap, int inIndexNNear) {
+    open(inCreateHeap,inIndexNNear,defaultShortcutDistance2(inCreateHeap.getDataSet()),0); }
   
 //--------------------------------------------------------------------------------------------------------
 // close 
@@ -127,6 +147,7 @@ public class IndexVector extends FormatUtils {
   public static int getNDups() { return gNDups; }
   public static int[] getDupVectorDxs() { return gDupVectorDxs; }
   public static int[] getDupOfVectorDxs() { return gDupOfVectorDxs; }
+  public static float getDupDistance2() { return gDupDistance2; }
 
   
   
@@ -297,7 +318,7 @@ public class IndexVector extends FormatUtils {
   
         // Calc distance to neighbor
         float[] theNeighborVector=gDataSet.getVector(theNeighborVectorDx);
-        float theNeighborDistance2=(float) VectorUtils.vectorSeparation2(theCreateVector,theNeighborVector);
+        float theNeighborDistance2=(float) gDistanceKernel.vectorSeparation2(theCreateVector,theNeighborVector);
         gNCalcs++;
       
         // Check if we have uncovered a dup
@@ -390,12 +411,18 @@ public class IndexVector extends FormatUtils {
     private int           mNUsefulNeighbors;
     private int[]         mNeighborVectorDxs;
     private float[]       mNeighborDistance2s;
+
+    // Work arrays for the one-to-many distance calc
+    private int[]         mCalcVectorDxs;
+    private float[]       mCalcDistance2s;
       
     // Constructor creates runnable task and allocates space for outputs
     public DistanceJob() {
       mDistanceTask=createDistanceTask();
       mNeighborVectorDxs=new int[kChunkSize];
       mNeighborDistance2s=new float[kChunkSize];
+      mCalcVectorDxs=new int[kChunkSize];
+      mCalcDistance2s=new float[kChunkSize];
     }
 
     // Get routines for retrieving outputs after waitTillDone completes
@@ -441,33 +468,38 @@ public class IndexVector extends FormatUtils {
           boolean theTakeShortcut=(mNeighborSet==null);
           int theNNeighbors=(theTakeShortcut?gDataSet.getNVectors():mNeighborSet.getNNeighbors());
           
+          // Collect the vectors in the chunk that are not nodes yet
           int theStartDx=mChunkDx*kChunkSize;
           int theEndDx=Math.min(theStartDx+kChunkSize,theNNeighbors);
           for (int theDx=theStartDx; theDx<theEndDx; theDx++) {
             int theNeighborVectorDx=(theTakeShortcut?theDx:mNeighborSet.getVectorDx(theDx));
-            
-            if ((gVectorFlags[theNeighborVectorDx]&kIsNodeFlag)==0) {
-              float[] theNeighborVector=gDataSet.getVector(theNeighborVectorDx);
-              float theNeighborDistance2=(float) VectorUtils.vectorSeparation2(theCreateVector,theNeighborVector);
-              mNCalcs++;
+            if ((gVectorFlags[theNeighborVectorDx]&kIsNodeFlag)==0)
+              mCalcVectorDxs[mNCalcs++]=theNeighborVectorDx;
+          }
+
+          // Calc all their distances in one call, so the kernel can work on several rows at once
+          gDistanceKernel.vectorSeparation2s(theCreateVector,gDataSet.getVectors(),mCalcVectorDxs,mNCalcs,mCalcDistance2s);
+
+          for (int theCalcDx=0; theCalcDx<mNCalcs; theCalcDx++) {
+            int theNeighborVectorDx=mCalcVectorDxs[theCalcDx];
+            float theNeighborDistance2=mCalcDistance2s[theCalcDx];
     
-              if (theNeighborDistance2==0) {
+            if (theNeighborDistance2<=gDupDistance2) {
+              mNeighborVectorDxs[mNUsefulNeighbors]=theNeighborVectorDx;
+              mNeighborDistance2s[mNUsefulNeighbors]=theNeighborDistance2;
+              mNUsefulNeighbors++;
+              
+            } else {
+              
+              // Both endpts have different limits for what they consider near
+              boolean theNeighborIsNear=(theNeighborDistance2<gNearDistance2s[mCreateVectorDx]);
+              boolean theIsNearNeighbor=(theNeighborDistance2<gNearDistance2s[theNeighborVectorDx]);
+  
+              // Only create link if one or both of the endpts is near the other
+              if ((theNeighborIsNear)||(theIsNearNeighbor)) {
                 mNeighborVectorDxs[mNUsefulNeighbors]=theNeighborVectorDx;
                 mNeighborDistance2s[mNUsefulNeighbors]=theNeighborDistance2;
                 mNUsefulNeighbors++;
-                
-              } else {
-                
-                // Both endpts have different limits for what they consider near
-                boolean theNeighborIsNear=(theNeighborDistance2<gNearDistance2s[mCreateVectorDx]);
-                boolean theIsNearNeighbor=(theNeighborDistance2<gNearDistance2s[theNeighborVectorDx]);
-    
-                // Only create link if one or both of the endpts is near the other
-                if ((theNeighborIsNear)||(theIsNearNeighbor)) {
-                  mNeighborVectorDxs[mNUsefulNeighbors]=theNeighborVectorDx;
-                  mNeighborDistance2s[mNUsefulNeighbors]=theNeighborDistance2;
-                  mNUsefulNeighbors++;
-                }
               }
             }
           }
@@ -550,8 +582,8 @@ public class IndexVector extends FormatUtils {
         int theNeighborVectorDx=theJob.getNeighborVectorDx(i);
         float theNeighborDistance2=theJob.getNeighborDistance2(i);
 
-        // Check if we have uncovered a dup
-        if (theNeighborDistance2==0) 
+        // Check if we have uncovered a dup (or near dup)
+        if (theNeighborDistance2<=gDupDistance2) 
           handleDup(theNeighborVectorDx,mVectorDx);
 
         // Not a dup
@@ -594,9 +626,11 @@ public class IndexVector extends FormatUtils {
 
     // If any dups found during createLink calls, handle them now
     if (mDupVectorDx1!=kNotFound) {
-      if (((gVectorFlags[mDupVectorDx1]&kIsDupFlag)!=0)||((gVectorFlags[mDupVectorDx2]&kIsDupFlag)!=0))
-        throw new RuntimeException("Found dup that was already found");
-      else if ((gVectorFlags[mDupVectorDx1]&kIsNodeFlag)==0)
+      if (((gVectorFlags[mDupVectorDx1]&kIsDupFlag)!=0)||((gVectorFlags[mDupVectorDx2]&kIsDupFlag)!=0)) {
+        // Near dups can be collapsed into the new node before this exact dup check gets to them
+        if (gDupDistance2==0)
+          throw new RuntimeException("Found dup that was already found");
+      } else if ((gVectorFlags[mDupVectorDx1]&kIsNodeFlag)==0)
         handleDup(mDupVectorDx1,mDupVectorDx2);
       else if ((gVectorFlags[mDupVectorDx2]&kIsNodeFlag)==0)
         handleDup(mDupVectorDx2,mDupVectorDx1);
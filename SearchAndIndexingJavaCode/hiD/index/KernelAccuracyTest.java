@@ -0,0 +1,446 @@
+//--------------------------------------------------------------------------------------------------------
+// KernelAccuracyTest.java
+//--------------------------------------------------------------------------------------------------------
+
+package hiD.index;
+
+import java.util.Random;
+
+import hiD.data.*;
+import hiD.search.*;
+import hiD.utils.*;
+
+//--------------------------------------------------------------------------------------------------------
+// KernelAccuracyTest
+//
+// Measures what the float accumulation kernels change compared to the scalar kernel, which sums in double
+//   Distances      error relative to scalar, asymmetric calcs, and time per calc
+//   Dups           identical copies must measure exactly 0, and copies nudged by one ulp must not
+//   Accumulator    top K of brute searches - how often the order or the set differs from scalar, and how
+//                  many neighbors tie at equal distance2 and are ordered by vectorDx instead of distance
+//   Build          a sample index built and searched with each kernel - dups found, links shared with the
+//                  scalar index, and tied link distances, which IndexVector.heapSmaller orders by vectorDx
+//
+// The sample is a random part of the dataset plus exact and nudged copies of some of its vectors,
+//   with held out queries from the rest of the dataset
+// Times go through one call site for all kernels, so they are only a rough guide - for real timings
+//   run TimeIndexSearch with -DhiD.searchKernel set
+//--------------------------------------------------------------------------------------------------------
+
+public class KernelAccuracyTest extends FormatUtils {
+
+//--------------------------------------------------------------------------------------------------------
+// KernelAccuracyTest consts
+//--------------------------------------------------------------------------------------------------------
+
+  public static final int      kDefaultNSampleVectors=10000;
+  public static final int      kNSampleQueries=200;
+  public static final int      kNCopies=100;              // Exact copies, and as many nudged copies
+  public static final int      kSearchNNear=20;
+  public static final int      kIndexNNear=20;
+
+  private static final long    kSampleSeed=20221005L;     // Fixed so that tests are repeatable
+
+//--------------------------------------------------------------------------------------------------------
+// createSample
+//
+// Returns the sample data set and the held out query set
+//--------------------------------------------------------------------------------------------------------
+
+  private static DataSet[] createSample(DataSet inDataSet, int inNSampleVectors) {
+    int theNVectors=inDataSet.getNVectors();
+    int theNQueries=Math.min(kNSampleQueries,theNVectors/4);
+    int theNSampleVectors=Math.min(inNSampleVectors,theNVectors-theNQueries);
+    if (theNSampleVectors<=kNCopies+kIndexNNear)
+      throw new RuntimeException("DataSet too small to test: "+theNVectors+" vectors");
+
+    // Random sample without replacement - first part is sample data, rest is sample queries
+    Random theGenerator=new Random(kSampleSeed);
+    int[] theVectorDxs=new int[theNVectors];
+    for (int i=0; i<theNVectors; i++)
+      theVectorDxs[i]=i;
+    for (int i=0; i<theNSampleVectors+theNQueries; i++) {
+      int j=i+theGenerator.nextInt(theNVectors-i);
+      int theSwapVectorDx=theVectorDxs[i];
+      theVectorDxs[i]=theVectorDxs[j];
+      theVectorDxs[j]=theSwapVectorDx;
+    }
+
+    // Exact copies follow the sample, then copies with one component nudged by one ulp
+    int theNDims=inDataSet.getNDims();
+    float[][] theSampleVectors=new float[theNSampleVectors+2*kNCopies][];
+    for (int i=0; i<theNSampleVectors; i++)
+      theSampleVectors[i]=inDataSet.getVector(theVectorDxs[i]);
+    for (int i=0; i<kNCopies; i++) {
+      theSampleVectors[theNSampleVectors+i]=theSampleVectors[i].clone();
+      float[] theNudgedVector=theSampleVectors[kNCopies+i].clone();
+      int theDim=theGenerator.nextInt(theNDims);
+      theNudgedVector[theDim]=Math.nextUp(theNudgedVector[theDim]);
+      theSampleVectors[theNSampleVectors+kNCopies+i]=theNudgedVector;
+    }
+
+    float[][] theQueryVectors=new float[theNQueries][];
+    for (int i=0; i<theNQueries; i++)
+      theQueryVectors[i]=inDataSet.getVector(theVectorDxs[theNSampleVectors+i]);
+
+    DataSet theSampleSet=new DataSet(
+        theNDims,
+        theSampleVectors.length,
+        inDataSet.getSourceName()+"_kernel",
+        inDataSet.getMaxLengthScale(),
+        inDataSet.getMean(),
+        inDataSet.getScale(),
+        theSampleVectors,
+        null);
+    DataSet theQuerySet=new DataSet(
+        theNDims,
+        theNQueries,
+        inDataSet.getSourceName()+"_kernelq",
+        inDataSet.getMaxLengthScale(),
+        inDataSet.getMean(),
+        inDataSet.getScale(),
+        theQueryVectors,
+        null);
+    return new DataSet[] {theSampleSet,theQuerySet};
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// createKernels
+//
+// All kernels, scalar first - kernels not available in this JVM are skipped
+//--------------------------------------------------------------------------------------------------------
+
+  private static DistanceKernel[] createKernels() {
+    DistanceKernel[] theKernels=new DistanceKernel[DistanceKernel.kKernelNames.length];
+    int theNKernels=0;
+    for (int i=0; i<DistanceKernel.kKernelNames.length; i++) {
+      try {
+        theKernels[theNKernels]=DistanceKernel.createKernel(DistanceKernel.kKernelNames[i]);
+        theNKernels++;
+      } catch (Throwable e) {
+        log("  Skipping "+DistanceKernel.kKernelNames[i]+" kernel - "+e.getMessage());
+      }
+    }
+    DistanceKernel[] theAvailableKernels=new DistanceKernel[theNKernels];
+    System.arraycopy(theKernels,0,theAvailableKernels,0,theNKernels);
+    return theAvailableKernels;
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// bruteSearch
+//
+// Top K of every query by the kernel, through an InlineAccumulator as the searches use it, dups included
+// Returns vectorDxs sorted nearest first, and fills their distance2s if OutDistance2ss is not null
+//--------------------------------------------------------------------------------------------------------
+
+  private static int[][] bruteSearch(DistanceKernel inKernel, DataSet inSampleSet, DataSet inQuerySet, float[][] outDistance2ss) {
+    int theNVectors=inSampleSet.getNVectors();
+    int theNQueries=inQuerySet.getNVectors();
+    float[] theDistance2s=new float[kSearchNNear];
+    InlineAccumulator theAccumulator=InlineAccumulator.createAccumulator(kSearchNNear);
+    int[][] theNearVectorDxss=new int[theNQueries][kSearchNNear];
+    for (int i=0; i<theNQueries; i++) {
+      float[] theQueryVector=inQuerySet.getVector(i);
+      for (int theVectorDx=0; theVectorDx<theNVectors; theVectorDx++)
+        theAccumulator.addVectorDx(theVectorDx,(float) inKernel.vectorSeparation2(theQueryVector,inSampleSet.getVector(theVectorDx)));
+      theAccumulator.removeNear(theNearVectorDxss[i],(outDistance2ss!=null)?outDistance2ss[i]:theDistance2s);
+    }
+    return theNearVectorDxss;
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// testDistances
+//--------------------------------------------------------------------------------------------------------
+
+  private static void testDistances(DistanceKernel[] inKernels, DataSet inSampleSet, DataSet inQuerySet) {
+
+    int theNVectors=inSampleSet.getNVectors();
+    int theNQueries=inQuerySet.getNVectors();
+    int theNSampleVectors=theNVectors-2*kNCopies;
+    DistanceKernel theScalarKernel=inKernels[0];
+
+    log("\nDistances, "+theNQueries+" queries to "+theNVectors+" vectors");
+    log(rightPad("  Kernel",22)+
+        leftPad("Time/Calc",12)+
+        leftPad("Same",10)+
+        leftPad("Avg RelErr",14)+
+        leftPad("Max RelErr",14)+
+        leftPad("Asymmetric",12)+
+        leftPad("Copies 0",10)+
+        leftPad("Nudged 0",10));
+
+    for (int k=0; k<inKernels.length; k++) {
+      DistanceKernel theKernel=inKernels[k];
+
+      // Timed pass - also warms up the kernel
+      double theSum=0;
+      long theStartTime=0;
+      for (int thePass=0; thePass<2; thePass++) {
+        theStartTime=System.nanoTime();
+        for (int i=0; i<theNQueries; i++) {
+          float[] theQueryVector=inQuerySet.getVector(i);
+          for (int theVectorDx=0; theVectorDx<theNVectors; theVectorDx++)
+            theSum+=theKernel.vectorSeparation2(theQueryVector,inSampleSet.getVector(theVectorDx));
+        }
+      }
+      double theTimePerCalc=(System.nanoTime()-theStartTime)/(double) (theNQueries*(long) theNVectors);
+      if (theSum==0)
+        log("  All distances zero");
+
+      // Error relative to scalar, as rounded to the float distance2s the engines keep
+      long theNSame=0;
+      long theNAsymmetric=0;
+      double theSumRelativeError=0;
+      double theMaxRelativeError=0;
+      for (int i=0; i<theNQueries; i++) {
+        float[] theQueryVector=inQuerySet.getVector(i);
+        for (int theVectorDx=0; theVectorDx<theNVectors; theVectorDx++) {
+          float[] theVector=inSampleSet.getVector(theVectorDx);
+          float theDistance2=(float) theKernel.vectorSeparation2(theQueryVector,theVector);
+          float theScalarDistance2=(float) theScalarKernel.vectorSeparation2(theQueryVector,theVector);
+          if (theDistance2==theScalarDistance2)
+            theNSame++;
+          else {
+            double theRelativeError=Math.abs(theDistance2-theScalarDistance2)/(double) theScalarDistance2;
+            theSumRelativeError+=theRelativeError;
+            theMaxRelativeError=Math.max(theMaxRelativeError,theRelativeError);
+          }
+          if (theDistance2!=(float) theKernel.vectorSeparation2(theVector,theQueryVector))
+            theNAsymmetric++;
+        }
+      }
+
+      // Exact copies must be dups, nudged copies must not
+      int theNCopiesZero=0;
+      int theNNudgedZero=0;
+      for (int i=0; i<kNCopies; i++) {
+        if (theKernel.vectorSeparation2(inSampleSet.getVector(i),inSampleSet.getVector(theNSampleVectors+i))==0)
+          theNCopiesZero++;
+        if (theKernel.vectorSeparation2(inSampleSet.getVector(kNCopies+i),inSampleSet.getVector(theNSampleVectors+kNCopies+i))==0)
+          theNNudgedZero++;
+      }
+
+      long theNCalcs=theNQueries*(long) theNVectors;
+      log(rightPad("  "+theKernel.getName(),22)+
+          leftPad(formatDouble(theTimePerCalc,1)+"ns",12)+
+          leftPad(formatPercent(theNSame/(double) theNCalcs),10)+
+          leftPad(formatDouble(theSumRelativeError/theNCalcs*1e6,3)+"e-6",14)+
+          leftPad(formatDouble(theMaxRelativeError*1e6,3)+"e-6",14)+
+          leftPad(theNAsymmetric,12)+
+          leftPad(theNCopiesZero+"/"+kNCopies,10)+
+          leftPad(theNNudgedZero+"/"+kNCopies,10));
+    }
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// countTies
+//
+// Neighbors at the same distance2 as the one before them that are not dups of it, so their order is set
+//   by vectorDx alone
+//--------------------------------------------------------------------------------------------------------
+
+  private static int countTies(DataSet inDataSet, int[] inVectorDxs, float[] inDistance2s, int inNNear) {
+    int theNTies=0;
+    for (int j=1; j<inNNear; j++)
+      if ((inDistance2s[j]==inDistance2s[j-1])&&
+          (!VectorUtils.vectorsAreDups(inDataSet.getVector(inVectorDxs[j]),inDataSet.getVector(inVectorDxs[j-1]))))
+        theNTies++;
+    return theNTies;
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// testAccumulator
+//
+// Fills the scalar distance2s of the top K of every query, for the build test
+//--------------------------------------------------------------------------------------------------------
+
+  private static void testAccumulator(DistanceKernel[] inKernels, DataSet inSampleSet, DataSet inQuerySet, float[][] outDistance2ss) {
+
+    int theNQueries=inQuerySet.getNVectors();
+    int[][] theScalarVectorDxss=bruteSearch(inKernels[0],inSampleSet,inQuerySet,outDistance2ss);
+
+    log("\nAccumulator, top "+kSearchNNear+" of "+theNQueries+" brute searches");
+    log(rightPad("  Kernel",22)+
+        leftPad("Order Differs",16)+
+        leftPad("Set Differs",14)+
+        leftPad("Tied Neighbors",16));
+
+    float[][] theDistance2ss=new float[theNQueries][kSearchNNear];
+    for (int k=0; k<inKernels.length; k++) {
+      int[][] theVectorDxss=bruteSearch(inKernels[k],inSampleSet,inQuerySet,theDistance2ss);
+      int theNOrderDiffers=0;
+      int theNSetDiffers=0;
+      long theNTies=0;
+      for (int i=0; i<theNQueries; i++) {
+        boolean theOrderDiffers=false;
+        int theNShared=0;
+        for (int j=0; j<kSearchNNear; j++) {
+          if (theVectorDxss[i][j]!=theScalarVectorDxss[i][j])
+            theOrderDiffers=true;
+          for (int m=0; m<kSearchNNear; m++)
+            if (theVectorDxss[i][j]==theScalarVectorDxss[i][m])
+              theNShared++;
+        }
+        if (theOrderDiffers)
+          theNOrderDiffers++;
+        if (theNShared<kSearchNNear)
+          theNSetDiffers++;
+        theNTies+=countTies(inSampleSet,theVectorDxss[i],theDistance2ss[i],kSearchNNear);
+      }
+      log(rightPad("  "+inKernels[k].getName(),22)+
+          leftPad(formatPercent(theNOrderDiffers/(double) theNQueries),16)+
+          leftPad(formatPercent(theNSetDiffers/(double) theNQueries),14)+
+          leftPad(formatDouble(theNTies/(double) theNQueries,3)+"/query",16));
+    }
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// testBuild
+//
+// Each kernel builds the sample index and searches it, as with -DhiD.buildKernel and -DhiD.searchKernel
+// Recall counts neighbors found whose scalar distance2 is within the scalar Kth nearest distance2
+//--------------------------------------------------------------------------------------------------------
+
+  private static void testBuild(
+      DistanceKernel[]   inKernels,
+      DataSet            inSampleSet,
+      DataSet            inQuerySet,
+      float[][]          inScalarDistance2ss) throws Exception {
+
+    int theNVectors=inSampleSet.getNVectors();
+    int theNQueries=inQuerySet.getNVectors();
+    DistanceKernel theScalarKernel=inKernels[0];
+
+    Index[] theIndexes=new Index[inKernels.length];
+    double[] theRecalls=new double[inKernels.length];
+    double[] theAvgNCalcs=new double[inKernels.length];
+    try {
+      for (int k=0; k<inKernels.length; k++) {
+        DistanceKernel.setBuildKernel(inKernels[k]);
+        DistanceKernel.setSearchKernel(inKernels[k]);
+        theIndexes[k]=BuildIndex.buildIndex(
+            inSampleSet,
+            kIndexNNear,
+            IndexVector.defaultShortcutDistance2(inSampleSet),
+            0,
+            false);
+
+        SearchResultSet theSearchResultSet=IndexSearch.searchSet(theIndexes[k],kSearchNNear,true,inQuerySet);
+        long theNFound=0;
+        for (int i=0; i<theNQueries; i++) {
+          SearchResult theSearchResult=theSearchResultSet.getSearchResult(i);
+          float theLimitDistance2=inScalarDistance2ss[i][kSearchNNear-1];
+          for (int j=0; j<theSearchResult.getSearchNNear(); j++)
+            if ((float) theScalarKernel.vectorSeparation2(inQuerySet.getVector(i),inSampleSet.getVector(theSearchResult.getNearVectorDx(j)))<=theLimitDistance2)
+              theNFound++;
+        }
+        theRecalls[k]=theNFound/(double) (theNQueries*(long) kSearchNNear);
+        theAvgNCalcs[k]=theSearchResultSet.getAvgNDistanceCalcs();
+      }
+    } finally {
+      DistanceKernel.setBuildKernel(null);
+      DistanceKernel.setSearchKernel(null);
+    }
+
+    log("\nBuild, Ki="+kIndexNNear+" index of "+theNVectors+" vectors, searched for Ks="+kSearchNNear+" with dups");
+    log(rightPad("  Kernel",22)+
+        leftPad("Dups",8)+
+        leftPad("Same Links",12)+
+        leftPad("Tied Links",12)+
+        leftPad("Recall",10)+
+        leftPad("Avg Calcs",12));
+
+    Index theScalarIndex=theIndexes[0];
+    for (int k=0; k<inKernels.length; k++) {
+      Index theIndex=theIndexes[k];
+      int theNDups=0;
+      long theNLinks=0;
+      long theNSameLinks=0;
+      long theNTiedLinks=0;
+      for (int theVectorDx=0; theVectorDx<theNVectors; theVectorDx++) {
+        if (theIndex.getIsDup(theVectorDx)) {
+          theNDups++;
+          continue;
+        }
+        int[] theLinkVectorDxs=theIndex.getLinkVectorDxs(theVectorDx);
+        int[] theScalarLinkVectorDxs=theScalarIndex.getLinkVectorDxs(theVectorDx);
+        theNLinks+=theLinkVectorDxs.length;
+        for (int j=0; j<theLinkVectorDxs.length; j++)
+          for (int m=0; m<theScalarLinkVectorDxs.length; m++)
+            if (theLinkVectorDxs[j]==theScalarLinkVectorDxs[m]) {
+              theNSameLinks++;
+              break;
+            }
+        theNTiedLinks+=countTies(inSampleSet,theLinkVectorDxs,theIndex.getLinkDistance2s(theVectorDx),theLinkVectorDxs.length);
+      }
+      log(rightPad("  "+inKernels[k].getName(),22)+
+          leftPad(theNDups,8)+
+          leftPad(formatPercent(theNSameLinks/(double) theNLinks),12)+
+          leftPad(theNTiedLinks,12)+
+          leftPad(formatPercent(theRecalls[k]),10)+
+          leftPad(formatDouble(theAvgNCalcs[k],1),12));
+    }
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// testKernels
+//--------------------------------------------------------------------------------------------------------
+
+  public static void testKernels(DataSet inDataSet, int inNSampleVectors) throws Exception {
+
+    DataSet[] theSets=createSample(inDataSet,inNSampleVectors);
+    DataSet theSampleSet=theSets[0];
+    DataSet theQuerySet=theSets[1];
+
+    log("\n\nDistance Kernel Accuracy Test");
+    log("  Testing:  "+inDataSet.getStandardFilename());
+    log("  Sample of "+theSampleSet.getNVectors()+" vectors, including "+kNCopies+" exact and "+
+        kNCopies+" nudged copies, and "+theQuerySet.getNVectors()+" held out queries");
+
+    DistanceKernel[] theKernels=createKernels();
+    testDistances(theKernels,theSampleSet,theQuerySet);
+    float[][] theScalarDistance2ss=new float[theQuerySet.getNVectors()][kSearchNNear];
+    testAccumulator(theKernels,theSampleSet,theQuerySet,theScalarDistance2ss);
+    testBuild(theKernels,theSampleSet,theQuerySet,theScalarDistance2ss);
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// run
+//--------------------------------------------------------------------------------------------------------
+
+  public static void run(
+      String   inDataSetFilename,
+      String   inNSampleVectors) throws Exception {
+
+    long theStartTime=System.currentTimeMillis();
+    log(reportHeader("Distance Kernel Accuracy Test",theStartTime));
+
+    if (kOnDevBox)
+      testKernels(DataSet.load("GIST_train_960D_1000Kv"),kDefaultNSampleVectors);
+    else
+      testKernels(
+          DataSet.load(inDataSetFilename),
+          (inNSampleVectors==null)?kDefaultNSampleVectors:Integer.parseInt(inNSampleVectors));
+
+    log(reportFooter(theStartTime));
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// main
+//--------------------------------------------------------------------------------------------------------
+
+  public static void main(String[] inArgs) {
+    try {
+      String theDataSetFilename=null;
+      String theNSampleVectors=null;
+      if (inArgs.length>0)
+        theDataSetFilename=inArgs[0];
+      if (inArgs.length>1)
+        theNSampleVectors=inArgs[1];
+      run(theDataSetFilename,theNSampleVectors);
+    } catch (Throwable e) {
+      e.printStackTrace(System.err);
+    }
+  }
+
+}
@@ -0,0 +1,207 @@
+//--------------------------------------------------------------------------------------------------------
+// RoutingTable.java
+//--------------------------------------------------------------------------------------------------------
+
+package hiD.index;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import hiD.data.*;
+import hiD.utils.*;
+
+//--------------------------------------------------------------------------------------------------------
+// RoutingTable
+//
+// Search entry points, so searches start near the query instead of at the root vector
+// A random sample of the indexed vectors is clustered with k-means, and each centroid is mapped to the
+//   sample vector nearest it, so every entry is an indexed vector the search can spread from
+// Entries are saved with the index as metadata, see Index.getRoutingVectorDxs
+// IndexSearch measures every entry, keeps the nearest in its accumulator, and descends from the best
+//
+// Sampled vectors are in the index's prepared dataset, so entries suit whatever metric the index was built for
+// Dups are not sampled - they only link to the vector they are a dup of
+//--------------------------------------------------------------------------------------------------------
+
+public class RoutingTable extends FormatUtils {
+
+//--------------------------------------------------------------------------------------------------------
+// RoutingTable consts
+//--------------------------------------------------------------------------------------------------------
+
+  public static final String   kRoutingProperty="hiD.routing";    // false has searches ignore the table, to compare
+
+  public static final int      kMinNEntries=16;
+  public static final int      kMaxNEntries=1024;
+  public static final int      kNSamplesPerEntry=32;
+  public static final int      kNIterations=8;
+
+  private static final long    kSampleSeed=20221005L;       // Fixed so that tables are repeatable
+
+//--------------------------------------------------------------------------------------------------------
+// gets
+//--------------------------------------------------------------------------------------------------------
+
+  public static boolean getUseRouting() { return Boolean.parseBoolean(System.getProperty(kRoutingProperty,"true")); }
+
+  // Each entry costs every search a calc, so entries grow slowly with NVectors
+  // A search from an entry in the wrong cluster of clustered data can miss the query's cluster, as entries only
+  //   have links to their own neighborhood, so tables need to be big enough for an entry in most clusters
+  public static int defaultNEntries(int inNVectors) {
+    return Math.max(kMinNEntries,Math.min(kMaxNEntries,(int) Math.sqrt(inNVectors))); }
+
+//--------------------------------------------------------------------------------------------------------
+// createRoutingVectorDxs
+//
+// Returns the entry vectorDxs, one per cluster - fewer than NEntries if clusters emptied
+//--------------------------------------------------------------------------------------------------------
+
+  public static int[] createRoutingVectorDxs(Index inIndex, int inNEntries) {
+
+    DataSet theDataSet=inIndex.getDataSet();
+    DistanceKernel theKernel=DistanceKernel.getBuildKernel();
+    Random theGenerator=new Random(kSampleSeed);
+
+    // Random sample of vectors that are not dups
+    int theNVectors=theDataSet.getNVectors();
+    int[] theVectorDxs=new int[theNVectors];
+    int theNCandidates=0;
+    for (int i=0; i<theNVectors; i++)
+      if (!inIndex.getIsDup(i))
+        theVectorDxs[theNCandidates++]=i;
+    int theNSamples=Math.min(theNCandidates,inNEntries*kNSamplesPerEntry);
+    for (int i=0; i<theNSamples; i++) {
+      int j=i+theGenerator.nextInt(theNCandidates-i);
+      int theSwapVectorDx=theVectorDxs[i];
+      theVectorDxs[i]=theVectorDxs[j];
+      theVectorDxs[j]=theSwapVectorDx;
+    }
+    int theNEntries=Math.min(inNEntries,theNSamples);
+
+    // Centroids start at the first samples, which are already in random order
+    int theNDims=theDataSet.getNDims();
+    float[][] theCentroids=new float[theNEntries][];
+    for (int i=0; i<theNEntries; i++)
+      theCentroids[i]=theDataSet.getVector(theVectorDxs[i]).clone();
+
+    int[] theClusterDxs=new int[theNSamples];
+    int[] theClusterNSamples=new int[theNEntries];
+    double[][] theSums=new double[theNEntries][theNDims];
+    for (int theIteration=0; theIteration<=kNIterations; theIteration++) {
+
+      // Assign each sample to its nearest centroid
+      for (int i=0; i<theNSamples; i++)
+        theClusterDxs[i]=findNearestCentroid(theKernel,theCentroids,theDataSet.getVector(theVectorDxs[i]));
+      if (theIteration==kNIterations)
+        break;
+
+      // Move each centroid to the mean of its samples
+      Arrays.fill(theClusterNSamples,0);
+      for (int i=0; i<theNEntries; i++)
+        Arrays.fill(theSums[i],0);
+      for (int i=0; i<theNSamples; i++) {
+        float[] theVector=theDataSet.getVector(theVectorDxs[i]);
+        double[] theSum=theSums[theClusterDxs[i]];
+        for (int j=0; j<theNDims; j++)
+          theSum[j]+=theVector[j];
+        theClusterNSamples[theClusterDxs[i]]++;
+      }
+      for (int i=0; i<theNEntries; i++) {
+        // Empty cluster restarts at a random sample
+        if (theClusterNSamples[i]==0)
+          System.arraycopy(theDataSet.getVector(theVectorDxs[theGenerator.nextInt(theNSamples)]),0,theCentroids[i],0,theNDims);
+        else
+          for (int j=0; j<theNDims; j++)
+            theCentroids[i][j]=(float) (theSums[i][j]/theClusterNSamples[i]);
+      }
+    }
+
+    // Map each centroid to the nearest sample in its cluster
+    int[] theEntryVectorDxs=new int[theNEntries];
+    double[] theEntryDistance2s=new double[theNEntries];
+    Arrays.fill(theEntryVectorDxs,kNotFound);
+    Arrays.fill(theEntryDistance2s,Double.MAX_VALUE);
+    for (int i=0; i<theNSamples; i++) {
+      int theClusterDx=theClusterDxs[i];
+      double theDistance2=theKernel.vectorSeparation2(theCentroids[theClusterDx],theDataSet.getVector(theVectorDxs[i]));
+      if (theDistance2<theEntryDistance2s[theClusterDx]) {
+        theEntryDistance2s[theClusterDx]=theDistance2;
+        theEntryVectorDxs[theClusterDx]=theVectorDxs[i];
+      }
+    }
+
+    // Drop clusters left empty
+    int theNKept=0;
+    for (int i=0; i<theNEntries; i++)
+      if (theEntryVectorDxs[i]!=kNotFound)
+        theEntryVectorDxs[theNKept++]=theEntryVectorDxs[i];
+    return Arrays.copyOf(theEntryVectorDxs,theNKept);
+  }
+
+
+  private static int findNearestCentroid(DistanceKernel inKernel, float[][] inCentroids, float[] inVector) {
+    int theNearestDx=0;
+    double theNearestDistance2=inKernel.vectorSeparation2(inCentroids[0],inVector);
+    for (int i=1; i<inCentroids.length; i++) {
+      double theDistance2=inKernel.vectorSeparation2(inCentroids[i],inVector,theNearestDistance2);
+      if (theDistance2<theNearestDistance2) {
+        theNearestDistance2=theDistance2;
+        theNearestDx=i;
+      }
+    }
+    return theNearestDx;
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// addRoutingTable
+//--------------------------------------------------------------------------------------------------------
+
+  public static void addRoutingTable(Index inIndex, int inNEntries) {
+    long theStartTime=System.currentTimeMillis();
+    int[] theEntryVectorDxs=createRoutingVectorDxs(inIndex,inNEntries);
+    inIndex.setRoutingVectorDxs(theEntryVectorDxs);
+    log("Routing      "+theEntryVectorDxs.length+" entries, "+formatDuration(System.currentTimeMillis()-theStartTime));
+  }
+
+  public static void addRoutingTable(Index inIndex) {
+    addRoutingTable(inIndex,defaultNEntries(inIndex.getNVectors())); }
+
+//--------------------------------------------------------------------------------------------------------
+// run
+//
+// Adds a routing table to an index built before routing tables existed, or replaces its table
+//--------------------------------------------------------------------------------------------------------
+
+  public static void run(String inIndexFilename, String inNEntries) throws Exception {
+
+    long theStartTime=System.currentTimeMillis();
+    log(reportHeader("Add Routing Table",theStartTime));
+
+    Index theIndex=Index.load(inIndexFilename);
+    log("");
+    addRoutingTable(theIndex,
+        (inNEntries==null)?defaultNEntries(theIndex.getNVectors()):Integer.parseInt(inNEntries));
+    theIndex.save();
+
+    log(reportFooter(theStartTime));
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// main
+//--------------------------------------------------------------------------------------------------------
+
+  public static void main(String[] inArgs) {
+    try {
+      String theIndexFilename=null;
+      if (inArgs.length>0)
+        theIndexFilename=inArgs[0];
+      String theNEntries=null;
+      if (inArgs.length>1)
+        theNEntries=inArgs[1];
+      run(theIndexFilename,theNEntries);
+    } catch (Throwable e) {
+      e.printStackTrace(System.err);
+    }
+  }
+
+}
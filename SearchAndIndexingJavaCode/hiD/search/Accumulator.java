@@ -10,6 +10,8 @@ import hiD.utils.*;
 // Accumulator
 //
 // The accumulator is a heap that collects the nearest neighbor needed to produce a search result 
+// Smaller distance2 is always nearer - cosine and inner product are ranked as distance2s between vectors
+//   prepared for the metric, see Metric
 //
 // CAUTION: distances are shared with the search routine and are read-only by the accumulator
 //   This is dangerous, but efficient in RAM and CPU
@@ -0,0 +1,280 @@
+//--------------------------------------------------------------------------------------------------------
+// BatchBruteSearch.java
+//--------------------------------------------------------------------------------------------------------
+
+package hiD.search;
+
+import hiD.data.*;
+import hiD.utils.*;
+
+//--------------------------------------------------------------------------------------------------------
+// BatchBruteSearch
+//
+// Brute force search of a block of queries at once, for test tools that brute search thousands of queries
+// The dataset is scanned in tiles small enough to stay in cache, and every query in the block is measured
+//   against a tile before moving on to the next tile
+// So each data vector is read from memory once per block of queries, instead of once per query,
+//   and the scan runs at the speed of the distance kernel instead of the speed of memory
+//
+// Distances are fed in vectorDx order to a BruteSearch per query, which keeps the top K and drops dups,
+//   and calcs are abandoned early against the limit of each query, as in BruteSearch
+// So results are identical to BruteSearch with the same distance kernel
+//
+// Distances are calculated directly, not by expanding |q-v|^2 into |q|^2+|v|^2-2q.v like a matrix multiply,
+//   because the expansion cancels badly for near neighbors and brute results are the ground truth for
+//   the accuracy tests
+//
+// Each query in the block has its own BruteSearch, which only holds its K near vectors, so RAM is small
+//--------------------------------------------------------------------------------------------------------
+
+public class BatchBruteSearch extends FormatUtils {
+
+//--------------------------------------------------------------------------------------------------------
+// BatchBruteSearch consts
+//--------------------------------------------------------------------------------------------------------
+
+  public static final int               kBlockNQueries=8;
+  public static final int               kTileNFloats=64*1024;    // 256KB tile stays in L2 cache
+
+  private static final DistanceKernel   kDistanceKernel=DistanceKernel.getKernel();
+
+//--------------------------------------------------------------------------------------------------------
+// BatchBruteSearch member vars
+//--------------------------------------------------------------------------------------------------------
+
+  private DataSet         mDataSet;
+  private int             mSearchNNear;
+  private boolean         mIncludeDups;
+
+  private BruteSearch[]   mBruteSearches;      // One per query in the block
+  private float[][]       mQueryWorkVectors;   // Hold the queries prepared for the dataset's metric, nulls for l2
+  private float[][]       mQueryVectors;       // Prepared queries of the block, or the raw queries for l2
+  private int             mTileNVectors;
+
+//--------------------------------------------------------------------------------------------------------
+// BatchBruteSearch
+//--------------------------------------------------------------------------------------------------------
+
+  public BatchBruteSearch(DataSet inDataSet, int inSearchNNear, boolean inIncludeDups) {
+    mDataSet=inDataSet;
+    mSearchNNear=inSearchNNear;
+    mIncludeDups=inIncludeDups;
+    mBruteSearches=new BruteSearch[kBlockNQueries];
+    mQueryWorkVectors=new float[kBlockNQueries][];
+    mQueryVectors=new float[kBlockNQueries][];
+    for (int i=0; i<kBlockNQueries; i++) {
+      mBruteSearches[i]=new BruteSearch(mDataSet,mSearchNNear,mIncludeDups);
+      mQueryWorkVectors[i]=BruteSearch.createQueryWorkVector(mDataSet);
+    }
+    mTileNVectors=Math.max(kBlockNQueries,kTileNFloats/mDataSet.getNDims());
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// gets
+//--------------------------------------------------------------------------------------------------------
+
+  public DataSet getDataSet() { return mDataSet; }
+  public int getSearchNNear() { return mSearchNNear; }
+  public boolean getIncludeDups() { return mIncludeDups; }
+
+//--------------------------------------------------------------------------------------------------------
+// searchBlock
+//
+// Searches for the first NQueries queryDxs of the query set, at most kBlockNQueries of them
+// Results are written into the search results passed in, which are reused like BruteSearch.search,
+//   and the same search results are returned
+// IsPrepared is for queries already prepared for the metric, as the vectors of the searched dataset are,
+//   so they are measured as they are - preparing them again fails for ip, which adds a dim
+//--------------------------------------------------------------------------------------------------------
+
+  public SearchResult[] searchBlock(
+      DataSet          inQuerySet,
+      int[]            inQueryDxs,
+      int              inNQueries,
+      boolean          inIsPrepared,
+      SearchResult[]   ioSearchResults) {
+
+    if (inNQueries>kBlockNQueries)
+      throw new RuntimeException("Block has too many queries: "+inNQueries);
+
+    // Queries are prepared once per block, not once per tile
+    Metric theMetric=mDataSet.getMetric();
+    for (int i=0; i<inNQueries; i++) {
+      mBruteSearches[i].startSearch();
+      float[] theQueryVector=inQuerySet.getVector(inQueryDxs[i]);
+      mQueryVectors[i]=(inIsPrepared?theQueryVector:theMetric.prepareQueryVector(theQueryVector,mQueryWorkVectors[i]));
+    }
+
+    // Loop over tiles of data vectors
+    int theNVectors=mDataSet.getNVectors();
+    float[][] theVectors=mDataSet.getVectors();
+    for (int theStartVectorDx=0; theStartVectorDx<theNVectors; theStartVectorDx+=mTileNVectors) {
+      int theEndVectorDx=Math.min(theNVectors,theStartVectorDx+mTileNVectors);
+
+      // Every query in the block measures the tile while it is in cache
+      for (int i=0; i<inNQueries; i++) {
+        float[] theQueryVector=mQueryVectors[i];
+        BruteSearch theBruteSearch=mBruteSearches[i];
+        for (int theVectorDx=theStartVectorDx; theVectorDx<theEndVectorDx; theVectorDx++) {
+          float theLimitDistance2=theBruteSearch.getNearLimitDistance2();
+          float theDistance2=(float) ((theLimitDistance2==Float.MAX_VALUE)?
+              kDistanceKernel.vectorSeparation2(theQueryVector,theVectors[theVectorDx]):
+              kDistanceKernel.vectorSeparation2(theQueryVector,theVectors[theVectorDx],Math.nextUp(theLimitDistance2)));
+          theBruteSearch.addDistance2(theVectorDx,theDistance2);
+        }
+      }
+    }
+
+    for (int i=0; i<inNQueries; i++) {
+      int theQueryDx=inQueryDxs[i];
+      ioSearchResults[i]=mBruteSearches[i].finishSearch(
+          theQueryDx,
+          inQuerySet.getVector(theQueryDx),
+          inQuerySet.getDescriptor(theQueryDx),
+          ioSearchResults[i]);
+    }
+    return ioSearchResults;
+  }
+
+  public SearchResult[] searchBlock(
+      DataSet          inQuerySet,
+      int[]            inQueryDxs,
+      int              inNQueries,
+      SearchResult[]   ioSearchResults) {
+    return searchBlock(inQuerySet,inQueryDxs,inNQueries,false,ioSearchResults); }
+
+//--------------------------------------------------------------------------------------------------------
+// Inner class SearchThread
+//--------------------------------------------------------------------------------------------------------
+
+  private static class SearchThread extends Thread {
+
+    // Member vars
+    BatchBruteSearch   mBatchBruteSearch;
+    SearchResultSet    mSearchResultSet;
+    int                mStartQueryDx;
+    int                mEndQueryDx;
+    long               mElapsedTime;
+    double             mSumDistance2;
+
+    // Constructor
+    public SearchThread(
+        BatchBruteSearch   inBatchBruteSearch,
+        SearchResultSet    inSearchResultSet,
+        int                inStartQueryDx,
+        int                inEndQueryDx) {
+      mBatchBruteSearch=inBatchBruteSearch;
+      mSearchResultSet=inSearchResultSet;
+      mStartQueryDx=inStartQueryDx;
+      mEndQueryDx=inEndQueryDx;
+      setDaemon(true);
+    }
+
+    // Code that does the work
+    public void run() {
+
+      DataSet theQuerySet=mSearchResultSet.getQuerySet();
+      int[] theQueryDxs=new int[kBlockNQueries];
+      SearchResult[] theSearchResults=new SearchResult[kBlockNQueries];
+
+      // Loop over blocks of queries
+      long theStartTime=System.currentTimeMillis();
+      for (int theStartQueryDx=mStartQueryDx; theStartQueryDx<mEndQueryDx; theStartQueryDx+=kBlockNQueries) {
+        int theNQueries=Math.min(kBlockNQueries,mEndQueryDx-theStartQueryDx);
+        for (int i=0; i<theNQueries; i++) {
+          theQueryDxs[i]=theStartQueryDx+i;
+          theSearchResults[i]=mSearchResultSet.getSearchResult(theQueryDxs[i]);
+        }
+
+        // Calc true nearest neighbors by Brute force
+        mBatchBruteSearch.searchBlock(
+            theQuerySet,
+            theQueryDxs,
+            theNQueries,
+            theSearchResults);
+        for (int i=0; i<theNQueries; i++)
+          mSumDistance2+=theSearchResults[i].getNearestDistance2();
+      }
+      mElapsedTime=System.currentTimeMillis()-theStartTime;
+    }
+  };
+
+//--------------------------------------------------------------------------------------------------------
+// searchSet
+//--------------------------------------------------------------------------------------------------------
+
+  public static SearchResultSet searchSet(SearchResultSet inSearchResultSet) {
+
+    // Create threads
+    // Queries are split between threads in whole blocks, so no thread has a partial block in the middle
+    int theNThreads=BruteSearch.kNThreads;
+    int theNQueries=inSearchResultSet.getQuerySet().getNVectors();
+    int theNBlocks=(theNQueries+kBlockNQueries-1)/kBlockNQueries;
+    SearchThread[] theThreads=new SearchThread[theNThreads];
+    for (int i=0; i<theNThreads; i++) {
+
+      BatchBruteSearch theBatchBruteSearch=new BatchBruteSearch(
+          inSearchResultSet.getDataSet(),
+          inSearchResultSet.getSearchNNear(),
+          inSearchResultSet.getIncludeDups());
+
+      int theStartQueryDx=Math.min(theNQueries,((i*theNBlocks)/theNThreads)*kBlockNQueries);
+      int theEndQueryDx=Math.min(theNQueries,(((i+1)*theNBlocks)/theNThreads)*kBlockNQueries);
+      theThreads[i]=new SearchThread(
+          theBatchBruteSearch,
+          inSearchResultSet,
+          theStartQueryDx,
+          theEndQueryDx);
+    }
+
+    // Run threads
+    try {
+      for (int i=0; i<theNThreads; i++)
+        theThreads[i].start();
+      for (int i=0; i<theNThreads; i++)
+        theThreads[i].join();
+    } catch (Throwable e) {
+      throw new RuntimeException("SearchThread died",e);
+    }
+
+    long theElapsedThreadTime=0;
+    double theSumDistance2=0;
+    for (int i=0; i<theNThreads; i++) {
+      SearchThread theThread=theThreads[i];
+      theElapsedThreadTime+=theThread.mElapsedTime;
+      theSumDistance2+=theThread.mSumDistance2;
+      theThreads[i]=null;
+    }
+    double theAvgNearestDistance2=theSumDistance2/theNQueries;
+    double theAvgTimePerQuery=theElapsedThreadTime/(double) theNQueries;
+
+    log("\n  Avg Search Time:        "+formatDuration(theAvgTimePerQuery)+" per query");
+    log("  Avg Nearest Distance2:  "+formatDistance2((float) theAvgNearestDistance2));
+
+    SearchResultSet theSearchResultSet=new SearchResultSet(
+        inSearchResultSet,
+        inSearchResultSet.getDataSet().getNVectors(),
+        theAvgNearestDistance2,
+        theAvgTimePerQuery);
+
+    return theSearchResultSet;
+  }
+
+
+  public static SearchResultSet searchSet(
+      DataSet   inDataSet,
+      int       inSearchNNear,
+      boolean   inIncludeDups,
+      DataSet   inQuerySet) {
+
+    // Create SearchResultSet
+    SearchResultSet theSearchResultSet=new SearchResultSet(
+        inDataSet,
+        inSearchNNear,
+        inIncludeDups,
+        inQuerySet);
+
+    return searchSet(theSearchResultSet);
+  }
+
+}
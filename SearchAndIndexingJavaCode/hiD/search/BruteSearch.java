@@ -12,6 +12,12 @@ import hiD.utils.*;
 //--------------------------------------------------------------------------------------------------------
 
 public class BruteSearch extends FormatUtils {
+
+//--------------------------------------------------------------------------------------------------------
+// BruteSearch consts
+//--------------------------------------------------------------------------------------------------------
+
+  private static final DistanceKernel   kDistanceKernel=DistanceKernel.getKernel();
   
 //--------------------------------------------------------------------------------------------------------
 // BruteSearch member vars
@@ -21,22 +27,35 @@ public class BruteSearch extends FormatUtils {
   private int           mSearchNNear;
   private boolean       mIncludeDups;
   
-  private float[]       mMeasuredDistance2s;   // Keeps track of all measured distances
-  private Accumulator   mAccumulator;
+  private InlineAccumulator mAccumulator;    // Keeps the distance2s of the near vectors, no per vector arrays
+
+  private VectorBlocks  mVectorBlocks;         // Null unless scanning the dimension-major blocked layout
+  private float[]       mQueryWorkVector;      // Holds the query prepared for the dataset's metric, null for l2
+  private double[]      mBlockSeparation2s;
+
+  private ResultCache   mResultCache;          // Answers repeated queries, null for none
 
 //--------------------------------------------------------------------------------------------------------
 // BruteSearch 
 //--------------------------------------------------------------------------------------------------------
   
-  public BruteSearch(DataSet inDataSet, int inSearchNNear, boolean inIncludeDups) {
+  // UseVectorBlocks scans the dimension-major copy of the vectors, see VectorBlocks 
+  // Results are identical to the scalar distance kernel, but the copy doubles the RAM used by the dataset
+  public BruteSearch(DataSet inDataSet, int inSearchNNear, boolean inIncludeDups, boolean inUseVectorBlocks) {
     mDataSet=inDataSet;
     mSearchNNear=inSearchNNear;
     mIncludeDups=inIncludeDups;
-    int theNVectors=mDataSet.getNVectors();
-    mMeasuredDistance2s=new float[theNVectors];
-    mAccumulator=new Accumulator(mSearchNNear,mMeasuredDistance2s);
+    mAccumulator=InlineAccumulator.createAccumulator(mSearchNNear);
+    mQueryWorkVector=createQueryWorkVector(mDataSet);
+    if (inUseVectorBlocks) {
+      mVectorBlocks=mDataSet.getVectorBlocks();
+      mBlockSeparation2s=new double[VectorBlocks.kBlockNVectors];
+    }
   }
 
+  public BruteSearch(DataSet inDataSet, int inSearchNNear, boolean inIncludeDups) {
+    this(inDataSet,inSearchNNear,inIncludeDups,false); }
+
 //--------------------------------------------------------------------------------------------------------
 // gets
 //--------------------------------------------------------------------------------------------------------
@@ -44,7 +63,50 @@ public class BruteSearch extends FormatUtils {
   public DataSet getDataSet() { return mDataSet; }
   public int getSearchNNear() { return mSearchNNear; }
   public boolean getIncludeDups() { return mIncludeDups; }
+  public boolean getUseVectorBlocks() { return (mVectorBlocks!=null); }
+  public ResultCache getResultCache() { return mResultCache; }
+
+  // Cache may be shared with other searchers, see ResultCache, null for none
+  public void setResultCache(ResultCache inResultCache) { mResultCache=inResultCache; }
   
+//--------------------------------------------------------------------------------------------------------
+// accumulateVectorDx
+//--------------------------------------------------------------------------------------------------------
+
+  private void accumulateVectorDx(int inVectorDx, float inDistance2) {
+
+    // Accumulate vector in search result
+    if (mIncludeDups) 
+      mAccumulator.addVectorDx(inVectorDx,inDistance2);
+    
+    // If not including dups, check whether new calc is a dup 
+    // Quick fail if distance longer than all vectors in the accumulator
+    else if (inDistance2<=mAccumulator.getNearLimitDistance2()) {
+      
+      // Note that for equal distances, the kept vector is the one with the smaller vectorDx.
+      // Since brute checks vectors in order of vectorDx, we can skip the equality case in the prev line
+
+      // Loop over vectors in the accumulator 
+      float[] theVector=mDataSet.getVector(inVectorDx);
+      boolean theIsDup=false;
+      int theNInHeap=mAccumulator.getNNear();
+      for (int i=0; i<theNInHeap; i++)
+        
+        // If distance the same, check if vectors are dups
+        if (inDistance2==mAccumulator.getDistance2(i)) {
+          
+          // Testing for dup is faster than a distance calc because you can fail early
+          theIsDup=VectorUtils.vectorsAreDups(mDataSet.getVector(mAccumulator.getVectorDx(i)),theVector);
+          if (theIsDup) 
+            break;
+        }
+      
+      // If not a dup, accumulate vector in search result
+      if (!theIsDup)
+        mAccumulator.addVectorDx(inVectorDx,inDistance2);
+    }      
+  }
+
 //--------------------------------------------------------------------------------------------------------
 // search
 // 
@@ -58,60 +120,142 @@ public class BruteSearch extends FormatUtils {
       String         inQueryDescriptor,
       SearchResult   inSearchResult) {
 
-    // Clean up 
-    for (int i=0; i<mMeasuredDistance2s.length; i++) 
-      mMeasuredDistance2s[i]=kNotFound;
-    mAccumulator.reset();
+    // Repeated query costs a lookup
+    if (mResultCache!=null) {
+      SearchResult theCachedResult=mResultCache.get(
+          mDataSet,mSearchNNear,mIncludeDups,mDataSet,inQueryDx,inQueryVector,inQueryDescriptor,inSearchResult);
+      if (theCachedResult!=null)
+        return theCachedResult;
+    }
+
+    startSearch();
+    float[] theMetricQueryVector=mDataSet.getMetric().prepareQueryVector(inQueryVector,mQueryWorkVector);
 
     // Loop over all data vectors
     int theNVectors=mDataSet.getNVectors();
-    for (int theVectorDx=0; theVectorDx<theNVectors; theVectorDx++) {
-      
-      // Calc distance to query vector
-      float[] theVector=mDataSet.getVector(theVectorDx);
-      float theDistance2=(float) VectorUtils.vectorSeparation2(inQueryVector,theVector);
-      mMeasuredDistance2s[theVectorDx]=theDistance2;
-      
-      // Accumulate vector in search result
-      if (mIncludeDups) 
-        mAccumulator.addVectorDx(theVectorDx);
-      
-      // If not including dups, check whether new calc is a dup 
-      // Quick fail if distance longer than all vectors in the accumulator
-      else if (theDistance2<=mAccumulator.getNearLimitDistance2()) {
-        
-        // Note that for equal distances, the kept vector is the one with the smaller vectorDx.
-        // Since brute checks vectors in order of vectorDx, we can skip the equality case in the prev line
+    if (mVectorBlocks==null) {
+      for (int theVectorDx=0; theVectorDx<theNVectors; theVectorDx++) 
+        addRowDistance2(theMetricQueryVector,theVectorDx);
 
-        // Loop over vectors in the accumulator 
-        boolean theIsDup=false;
-        int theNInHeap=mAccumulator.getNNear();
-        for (int i=0; i<theNInHeap; i++)
-          
-          // If distance the same, check if vectors are dups
-          if (theDistance2==mAccumulator.getDistance2(i)) {
-            
-            // Testing for dup is faster than a distance calc because you can fail early
-            theIsDup=VectorUtils.vectorsAreDups(mDataSet.getVector(mAccumulator.getVectorDx(i)),theVector);
-            if (theIsDup) 
-              break;
-          }
-        
-        // If not a dup, accumulate vector in search result
-        if (!theIsDup)
-          mAccumulator.addVectorDx(theVectorDx);
-      }      
+    // Loop over blocks of 64 vectors
+    } else {
+      int theNBlocks=mVectorBlocks.getNBlocks();
+      for (int theBlockDx=0; theBlockDx<theNBlocks; theBlockDx++) {
+
+        // Block skipped when all its vectors are further than the worst near vector
+        // Later vectors lose ties to the vector already in the accumulator, so equal distances can be skipped too
+        if (!mVectorBlocks.calcBlockSeparation2s(
+            theMetricQueryVector,
+            theBlockDx,
+            mAccumulator.getNearLimitDistance2(),
+            mBlockSeparation2s))
+          continue;
+
+        int theStartVectorDx=mVectorBlocks.getBlockStartVectorDx(theBlockDx);
+        int theBlockNVectors=mVectorBlocks.getBlockNVectors(theBlockDx);
+        for (int theLane=0; theLane<theBlockNVectors; theLane++) {
+          int theVectorDx=theStartVectorDx+theLane;
+          addDistance2(theVectorDx,(float) mBlockSeparation2s[theLane]);
+        }
+      }
     }
+
+    SearchResult theSearchResult=finishSearch(inQueryDx,inQueryVector,inQueryDescriptor,inSearchResult);
+    if (mResultCache!=null)
+      mResultCache.put(mDataSet,mSearchNNear,theSearchResult);
+    return theSearchResult;
+  }
+
+
+  // Only scans the vectors the filter allows, one at a time, and the result reports one calc per allowed vector
+  // Results are the same as filtering a search for every vector
+  public SearchResult search(
+      int            inQueryDx, 
+      float[]        inQueryVector, 
+      String         inQueryDescriptor,
+      VectorFilter   inFilter,
+      SearchResult   inSearchResult) {
+
+    startSearch();
+    float[] theMetricQueryVector=mDataSet.getMetric().prepareQueryVector(inQueryVector,mQueryWorkVector);
+    for (int theVectorDx=inFilter.getNextAllowed(0); theVectorDx!=kNotFound; theVectorDx=inFilter.getNextAllowed(theVectorDx+1))
+      addRowDistance2(theMetricQueryVector,theVectorDx);
+    return finishSearch(inQueryDx,inQueryVector,inQueryDescriptor,inSearchResult,inFilter.getNAllowed());
+  }
+
+
+  // This method allocates and returns a new search result
+  public SearchResult search(
+      int            inQueryDx, 
+      float[]        inQueryVector, 
+      String         inQueryDescriptor) {
+    return search(
+        inQueryDx,
+        inQueryVector,
+        inQueryDescriptor,
+        new SearchResult(mDataSet)); }
+
+//--------------------------------------------------------------------------------------------------------
+// startSearch, addDistance2, finishSearch
+//
+// Steps of search, also used by BatchBruteSearch to feed in distances it calculated for a block of queries
+// Distances must be added in order of vectorDx, see accumulateVectorDx
+//--------------------------------------------------------------------------------------------------------
+
+  float getNearLimitDistance2() { return mAccumulator.getNearLimitDistance2(); }
+
+
+  // Query vectors are raw, and are prepared for the dataset's metric before distances are calculated
+  static float[] createQueryWorkVector(DataSet inDataSet) {
+    Metric theMetric=inDataSet.getMetric();
+    return theMetric.createQueryWorkVector(inDataSet.getNDims()-theMetric.getNExtraDims());
+  }
+
+
+  // Calc distance to query vector
+  // Abandoned early once more than the accumulator limit - one float step past the limit so an abandoned 
+  //   partial sum can't round to a tie with the limit
+  private void addRowDistance2(float[] inMetricQueryVector, int inVectorDx) {
+    float[] theVector=mDataSet.getVector(inVectorDx);
+    float theLimitDistance2=mAccumulator.getNearLimitDistance2();
+    float theDistance2=(float) ((theLimitDistance2==Float.MAX_VALUE)?
+        kDistanceKernel.vectorSeparation2(inMetricQueryVector,theVector):
+        kDistanceKernel.vectorSeparation2(inMetricQueryVector,theVector,Math.nextUp(theLimitDistance2)));
+    addDistance2(inVectorDx,theDistance2);
+  }
+
+
+  void startSearch() {
+    mAccumulator.reset();
+  }
+
+
+  void addDistance2(int inVectorDx, float inDistance2) {
+    accumulateVectorDx(inVectorDx,inDistance2);
+  }
+
+
+  SearchResult finishSearch(
+      int            inQueryDx, 
+      float[]        inQueryVector, 
+      String         inQueryDescriptor,
+      SearchResult   inSearchResult) {
+    return finishSearch(inQueryDx,inQueryVector,inQueryDescriptor,inSearchResult,mDataSet.getNVectors()); }
+
+
+  private SearchResult finishSearch(
+      int            inQueryDx, 
+      float[]        inQueryVector, 
+      String         inQueryDescriptor,
+      SearchResult   inSearchResult,
+      long           inNDistanceCalcs) {
     
     // Reuse arrays from search result 
     int[] theNearVectorDxs=inSearchResult.getNearVectorDxs();
     float[] theNearDistance2s=inSearchResult.getNearDistance2s();
     
-    // Get nearest neighbor vectors from accumulator 
-    int theSearchNNear=mAccumulator.removeNear(theNearVectorDxs);
-    // Copy distances
-    for (int i=0; i<theSearchNNear; i++) 
-      theNearDistance2s[i]=mMeasuredDistance2s[theNearVectorDxs[i]];
+    // Get nearest neighbor vectors and their distances from accumulator 
+    int theSearchNNear=mAccumulator.removeNear(theNearVectorDxs,theNearDistance2s);
  
     return new SearchResult( 
         mDataSet,
@@ -122,21 +266,9 @@ public class BruteSearch extends FormatUtils {
         inQueryDescriptor,
         theNearVectorDxs,
         theNearDistance2s,
-        theNVectors);
+        inNDistanceCalcs);
   }
 
-
-  // This method allocates and returns a new search result
-  public SearchResult search(
-      int            inQueryDx, 
-      float[]        inQueryVector, 
-      String         inQueryDescriptor) {
-    return search(
-        inQueryDx,
-        inQueryVector,
-        inQueryDescriptor,
-        new SearchResult(mDataSet)); }
-
 //--------------------------------------------------------------------------------------------------------
 // Inner class SearchThread
 //--------------------------------------------------------------------------------------------------------
@@ -194,7 +326,7 @@ public class BruteSearch extends FormatUtils {
 
   public static final int    kNThreads=Math.min(kNCores-2,(int) (kNCores*0.8));
 
-  public static SearchResultSet searchSet(SearchResultSet inSearchResultSet) {
+  public static SearchResultSet searchSet(SearchResultSet inSearchResultSet, boolean inUseVectorBlocks) {
   
     // Create threads
     int theNQueries=inSearchResultSet.getQuerySet().getNVectors();
@@ -204,7 +336,8 @@ public class BruteSearch extends FormatUtils {
       BruteSearch theBruteSearch=new BruteSearch(
           inSearchResultSet.getDataSet(),
           inSearchResultSet.getSearchNNear(),
-          inSearchResultSet.getIncludeDups());
+          inSearchResultSet.getIncludeDups(),
+          inUseVectorBlocks);
       
       int theStartQueryDx=(i*theNQueries)/kNThreads;
       int theEndQueryDx=((i+1)*theNQueries)/kNThreads;
@@ -247,13 +380,18 @@ public class BruteSearch extends FormatUtils {
     
     return theSearchResultSet;
   }
+
+  
+  public static SearchResultSet searchSet(SearchResultSet inSearchResultSet) {
+    return searchSet(inSearchResultSet,false); }
  
   
   public static SearchResultSet searchSet(
       DataSet   inDataSet,
       int       inSearchNNear,
       boolean   inIncludeDups,
-      DataSet   inQuerySet) {
+      DataSet   inQuerySet,
+      boolean   inUseVectorBlocks) {
     
     // Create SearchResultSet
     SearchResultSet theSearchResultSet=new SearchResultSet(
@@ -262,8 +400,16 @@ public class BruteSearch extends FormatUtils {
         inIncludeDups,
         inQuerySet);
 
-    return searchSet(theSearchResultSet);
+    return searchSet(theSearchResultSet,inUseVectorBlocks);
   }
 
+  
+  public static SearchResultSet searchSet(
+      DataSet   inDataSet,
+      int       inSearchNNear,
+      boolean   inIncludeDups,
+      DataSet   inQuerySet) {
+    return searchSet(inDataSet,inSearchNNear,inIncludeDups,inQuerySet,false); }
+
 }
 
@@ -0,0 +1,151 @@
+//--------------------------------------------------------------------------------------------------------
+// FilteredSearch.java
+//--------------------------------------------------------------------------------------------------------
+
+package hiD.search;
+
+import java.util.*;
+
+import hiD.index.*;
+import hiD.utils.*;
+
+//--------------------------------------------------------------------------------------------------------
+// FilteredSearch
+//
+// Searches for the nearest vectors a VectorFilter allows, as in the nearest images of one modality
+// Filtering the result of a plain search breaks down for selective filters, as few of its K near vectors are 
+//   allowed, so the index search walks the graph through every vector, but only allowed vectors go in the 
+//   result, see IndexSearch.setFilter
+// The walk looks wider for more selective filters - it keeps SearchNNear/Selectivity near vectors, so it 
+//   meets about as many allowed vectors as an unfiltered search of SearchNNear meets vectors
+// When a filter allows fewer vectors than that walk would measure, or the walk would be more than
+//   kMaxExpansion times wider, the allowed vectors are scanned by brute force instead, which is exact
+// Assumes search is reused in a single thread - create multiple FilteredSearch objects to multi-thread
+//--------------------------------------------------------------------------------------------------------
+
+public class FilteredSearch extends FormatUtils {
+
+//--------------------------------------------------------------------------------------------------------
+// FilteredSearch consts
+//--------------------------------------------------------------------------------------------------------
+
+  public static final int       kMaxExpansion=64;           // Widest walk is 64 times SearchNNear
+  private static final int      kWalkGrowth=4;              // Walk that falls short is tried this much wider
+
+  // Rough calcs of an index search per near vector kept - measured from about 3 to 6, so the brute 
+  //   scan is used a little past where it is cheaper, as it is also exact
+  private static final int      kIndexNCalcsPerNNear=8;
+
+//--------------------------------------------------------------------------------------------------------
+// FilteredSearch member vars
+//--------------------------------------------------------------------------------------------------------
+
+  private Index         mIndex;
+  private int           mSearchNNear;
+  private boolean       mIncludeDups;
+
+  private HashMap       mIndexSearches;            // By walk width, created as filters need them
+  private BruteSearch   mBruteSearch;              // Created when a filter first needs it
+
+//--------------------------------------------------------------------------------------------------------
+// FilteredSearch 
+//--------------------------------------------------------------------------------------------------------
+
+  public FilteredSearch(Index inIndex, int inSearchNNear, boolean inIncludeDups) {
+    mIndex=inIndex;
+    mSearchNNear=inSearchNNear;
+    mIncludeDups=inIncludeDups;
+    mIndexSearches=new HashMap();
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// gets
+//--------------------------------------------------------------------------------------------------------
+
+  public Index getIndex() { return mIndex; }
+  public int getSearchNNear() { return mSearchNNear; }
+  public boolean getIncludeDups() { return mIncludeDups; }
+
+  // Near vectors the index search keeps for the filter, SearchNNear times a power of 2 up to kMaxExpansion,
+  //   so filters of about the same selectivity share an IndexSearch
+  public int getWalkNNear(VectorFilter inFilter) {
+    int theExpansion=1;
+    while ((theExpansion<kMaxExpansion)&&(theExpansion*inFilter.getSelectivity()<1))
+      theExpansion*=2;
+    return (int) Math.min(mIndex.getNVectors(),theExpansion*(long) mSearchNNear);
+  }
+
+  public boolean getUsesBrute(VectorFilter inFilter) {
+    if (inFilter.getSelectivity()*kMaxExpansion<1)
+      return true;
+    return (inFilter.getNAllowed()<=kIndexNCalcsPerNNear*(long) getWalkNNear(inFilter));
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// getIndexSearch, getBruteSearch
+//--------------------------------------------------------------------------------------------------------
+
+  private IndexSearch getIndexSearch(int inWalkNNear, VectorFilter inFilter) {
+    Integer theWalkNNear=Integer.valueOf(inWalkNNear);
+    IndexSearch theIndexSearch=(IndexSearch) mIndexSearches.get(theWalkNNear);
+    if (theIndexSearch==null) {
+      theIndexSearch=new IndexSearch(mIndex,inWalkNNear,mIncludeDups);
+      mIndexSearches.put(theWalkNNear,theIndexSearch);
+    }
+    theIndexSearch.setFilter(inFilter,mSearchNNear);
+    return theIndexSearch;
+  }
+
+
+  private BruteSearch getBruteSearch() {
+    if (mBruteSearch==null)
+      mBruteSearch=new BruteSearch(mIndex.getDataSet(),mSearchNNear,mIncludeDups);
+    return mBruteSearch;
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// search
+//--------------------------------------------------------------------------------------------------------
+
+  public SearchResult search(
+      int            inQueryDx, 
+      float[]        inQueryVector, 
+      String         inQueryDescriptor,
+      VectorFilter   inFilter,
+      SearchResult   inSearchResult) {
+
+    if (inFilter.getNVectors()!=mIndex.getNVectors())
+      throw new RuntimeException("Filter for "+inFilter.getNVectors()+" vectors, index has "+mIndex.getNVectors());
+
+    if (getUsesBrute(inFilter))
+      return getBruteSearch().search(inQueryDx,inQueryVector,inQueryDescriptor,inFilter,inSearchResult);
+
+    // A walk whose allowed vectors are not all within its near nodes was in a part of the graph the filter
+    //   mostly excludes, as when the filter follows clusters in the data, so it is tried wider, and then the 
+    //   allowed vectors are scanned, once that costs less than the next walk
+    int theMaxWalkNNear=(int) Math.min(mIndex.getNVectors(),kMaxExpansion*(long) mSearchNNear);
+    for (int theWalkNNear=getWalkNNear(inFilter); theWalkNNear<=theMaxWalkNNear; theWalkNNear*=kWalkGrowth) {
+      if (inFilter.getNAllowed()<=kIndexNCalcsPerNNear*(long) theWalkNNear)
+        break;
+      IndexSearch theIndexSearch=getIndexSearch(theWalkNNear,inFilter);
+      SearchResult theSearchResult=theIndexSearch.search(inQueryDx,inQueryVector,inQueryDescriptor,inSearchResult);
+      if (theIndexSearch.getFilterCovered())
+        return theSearchResult;
+      inSearchResult=theSearchResult;
+    }
+    return getBruteSearch().search(inQueryDx,inQueryVector,inQueryDescriptor,inFilter,inSearchResult);
+  }
+
+  public SearchResult search(
+      int            inQueryDx, 
+      float[]        inQueryVector, 
+      String         inQueryDescriptor,
+      VectorFilter   inFilter) {
+    return search(
+        inQueryDx,
+        inQueryVector,
+        inQueryDescriptor,
+        inFilter,
+        new SearchResult(mIndex.getDataSet())); }
+
+}
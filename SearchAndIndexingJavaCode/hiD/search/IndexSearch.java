@@ -4,6 +4,9 @@
 
 package hiD.search;
 
+import java.util.Arrays;
+import java.util.concurrent.*;
+
 import hiD.data.*;
 import hiD.index.*;
 import hiD.utils.*;
@@ -20,15 +23,40 @@ public class IndexSearch extends FormatUtils {
 
   private static final boolean   kVerbose=false;
     
-  // Each vector in the index gets a set of flags
-  private static final byte      kNoFlags=0;
-  private static final byte      kMeasuredFlag=16;     // Indicates distance to query has been measured
+  // Each vector touched by a search gets a set of flags, kept by the visited set with whether it was measured
   private static final byte      kSpreadFlag=32;       // Indicates node has been spread - all links have been measured
+  private static final byte      kCollectedFlag=16;    // Link already collected by the parallel spread in progress
   
-  // Speeds up calc ~10% - not sure worth the added complexity - currently turned off
-  private static final boolean   kUseReferenceCountsInSpread=false;
-  private static final int       kReferenceCountThreshold=3;
+  // Spread can put off measuring a link until this many spread near nodes link to it, see countReference
+  // Saves calcs at some cost in recall, 0 measures every link, as does 1 - off by default
+  public static final String     kReferenceCountProperty="hiD.referenceCount";
   private static final byte      kReferenceMask=15;    // Bottom 4bits of flags hold reference count 
+  public static final int        kMaxReferenceCountThreshold=kReferenceMask;
+
+  // Sizes the hashed visited set, which grows when searches touch more vectors
+  private static final int       kExpectedNTouchedPerNNear=64;
+
+  // Spread measures the links of a near node in batches of up to this many with the multi-row kernel, see spreadLinks
+  // 1 measures them one at a time with the early abandon calc
+  public static final String     kSpreadBatchProperty="hiD.spreadBatch";
+  public static final int        kDefaultSpreadBatchSize=16;
+
+  // Spread splits its calcs across this many threads, see spreadParallel
+  // 1 spreads on the search thread alone
+  public static final String     kSpreadThreadsProperty="hiD.spreadThreads";
+  private static final int       kMinNSpreadJobCalcs=32;       // Fewer calcs are not worth handing to another thread
+
+  // Traversal heuristics, see maxLinkDistance and descend - an index tuned by TuneSearch keeps its own
+  public static final float      kDefaultSpreadFactor=2.2f;
+  public static final float      kDefaultShortCircuitDistance=3;
+
+  // Radius searches follow links from vectors this many times the radius from the query, see searchRadius
+  public static final double     kRadiusExpansion=1.1;
+
+  // searchSet runs the queries in file order, or grouped by their nearest routing entry, see orderQueries
+  public static final String     kQueryOrderProperty="hiD.queryOrder";
+  public static final String     kFileQueryOrder="file";
+  public static final String     kRouteQueryOrder="route";
 
 //--------------------------------------------------------------------------------------------------------
 // IndexSearch member vars
@@ -37,46 +65,111 @@ public class IndexSearch extends FormatUtils {
   private Index         mIndex;
   private int           mSearchNNear;              // Number of nearest neighbors in search, Ks, which can be different from number in index, Ki
   private boolean       mIncludeDups;
+  private DistanceKernel   mDistanceKernel;        // DistanceKernel.getSearchKernel when created
+  private int[]         mEntryVectorDxs;           // Routing table entries searches start from, null to start at the root
+  private ExpressLayer  mExpressLayer;             // Levels searches descend through first, null if index has no levels
 
   private int           mQueryDx;                  // Index of query vector - just used for reporting purposes
   private float[]       mQueryVector;
+  private float[]       mMetricQueryVector;        // Query vector prepared for the dataset's metric - used in distance calcs
+  private float[]       mQueryWorkVector;          // Holds the prepared query vector, null for l2, see Metric
   private String        mQueryDescriptor;          // For OpenI data, this is the URL of the image that produced the feature vector
 
   private long          mNDescends;
   private long          mNSpreads;
   private long          mNDescendCalcs;
   private long          mNSpreadCalcs;
+  private VisitedSet    mVisitedSet;               // Measured distance2s and flags of vectors touched by the current search
+                                                   // Spread calcs abandoned early hold a partial distance2, more than the limit when measured
   private int           mNMeasuredVectors;
-  private int[]         mMeasuredVectorDxs;
-  private float[]       mMeasuredDistance2s;
-  private byte[]        mVectorFlags;
+  private int[]         mMeasuredVectorDxs;        // In order of measurement, grows as needed - null unless tracking settled calcs,
+                                                   //   or during a radius search
+  private int[]         mMeasuredNDistanceCalcs;   // Calcs done when each measured vector was measured, counting its own calc -
+                                                   //   null unless tracking settled calcs
   private int[]         mNearVectorDxs;            // Work array to copy nodeDxs out of accumulator
-  private Accumulator   mAccumulator;              // heap that keeps track of the K nearest nodes
+  private InlineAccumulator mAccumulator;          // heap that keeps track of the K nearest nodes and their distance2s
+
+  private int           mSpreadBatchSize;
+  private int[]         mBatchVectorDxs;           // Links collected for the batch being measured
+  private float[]       mBatchDistance2s;
+
+  private int           mNSpreadThreads;
+  private SpreadJob[]   mSpreadJobs;               // One per spread thread, null when spread is serial
+  private int[]         mCandidateVectorDxs;       // Links collected by spreadParallel, grows as needed
+
+  private SearchBudget  mBudget;                  // Per query limits, SearchBudget.kNoBudget by default
+  private long          mMaxNDistanceCalcs;        // From the budget, so checks are a compare
+  private long          mMaxNSpreads;
+  private long          mDeadline;                 // In System.nanoTime, set at the start of each search
+  private boolean       mIsPartial;                // Current search ran out of budget
+
+  private ResultCache   mResultCache;              // Answers repeated queries, null for none
+
+  private int           mReferenceCountThreshold;  // Links spread before a calc, 0 for none, see countReference
+
+  private float         mSpreadFactor;             // Spread follows links up to SpreadFactor*limit-query distance2
+  private float         mShortCircuitDistance;     // Descend stops at a link this much nearer the query than its node
+
+  private VectorFilter  mFilter;                   // Vectors results may hold, null for all, see FilteredSearch
+  private InlineAccumulator mFilteredAccumulator;  // Nearest allowed vectors measured, the result when filtered
+  private boolean       mFilterCovered;            // Last filtered result was within the near nodes walked
+
+  private float         mExpandDistance2;          // Expanded radius of the radius search in progress, 0 otherwise
+  private long[]        mRadiusKeys;               // Distance2 bits and vectorDx of each vector in the radius, grows as needed
+  private int[]         mRadiusVectorDxs;          // Measured vectors list kept between radius searches, so other searches
+                                                   //   do not record every measured vector
+
+  private boolean       mTrackSettled;             // Whether results report the calcs at which each top k settled
+  private long[]        mSettleKeys;               // Work array of near vectorDxs and their ranks, see findSettledNDistanceCalcs
 
 //--------------------------------------------------------------------------------------------------------
 // IndexSearch 
 //--------------------------------------------------------------------------------------------------------
   
-  public IndexSearch(Index inIndex, int inSearchNNear, boolean inIncludeDups) {
+  // TrackSettled has each result report the calcs at which its top k settled, for every k up to SearchNNear
+  // One search for the largest K then serves all smaller Ks, see SearchResult.getTopNear
+  public IndexSearch(Index inIndex, int inSearchNNear, boolean inIncludeDups, boolean inTrackSettled) {
     mIndex=inIndex;
     mSearchNNear=inSearchNNear;
     mIncludeDups=inIncludeDups;
+    mTrackSettled=inTrackSettled;
+    if (mTrackSettled)
+      mSettleKeys=new long[inSearchNNear];
+    mDistanceKernel=DistanceKernel.getSearchKernel();
+    if (RoutingTable.getUseRouting())
+      mEntryVectorDxs=mIndex.getRoutingVectorDxs();
+    if (ExpressLayer.getUseExpress()) {
+      mExpressLayer=mIndex.getExpressLayer();
+      if ((mExpressLayer!=null)&&(mExpressLayer.getNLevels()==1))
+        mExpressLayer=null;
+    }
     
-    int theNVectors=mIndex.getNVectors();
-    mMeasuredVectorDxs=new int[theNVectors];
-    mMeasuredDistance2s=new float[theNVectors];
-    mVectorFlags=new byte[theNVectors];
-    mNearVectorDxs=new int[theNVectors];
+    // Scratch memory is the visited set, plus arrays of K
+    mVisitedSet=VisitedSet.createVisitedSet(mIndex.getNVectors(),kExpectedNTouchedPerNNear*inSearchNNear);
+    mNearVectorDxs=new int[inSearchNNear];
     mNMeasuredVectors=0;
-    for (int i=0; i<theNVectors; i++) {
-      mMeasuredVectorDxs[i]=kNotFound;
-      mMeasuredDistance2s[i]=kNotFound;
-      mVectorFlags[i]=kNoFlags;
-      mNearVectorDxs[i]=kNotFound;
+    if (mTrackSettled) {
+      mMeasuredVectorDxs=new int[kExpectedNTouchedPerNNear*inSearchNNear];
+      mMeasuredNDistanceCalcs=new int[kExpectedNTouchedPerNNear*inSearchNNear];
     }
-    mAccumulator=new Accumulator(mSearchNNear,mMeasuredDistance2s);
+    mAccumulator=InlineAccumulator.createAccumulator(mSearchNNear);
+    mQueryWorkVector=BruteSearch.createQueryWorkVector(mIndex.getDataSet());
+    setBudget(SearchBudget.kNoBudget);
+
+    mSpreadBatchSize=getSpreadBatchSize();
+    if (mSpreadBatchSize>1) {
+      mBatchVectorDxs=new int[mSpreadBatchSize];
+      mBatchDistance2s=new float[mSpreadBatchSize];
+    }
+    setNSpreadThreads(getDefaultNSpreadThreads());
+    setReferenceCountThreshold(getDefaultReferenceCountThreshold());
+    mSpreadFactor=mIndex.getMetadataFloat(Index.kSpreadFactorName,kDefaultSpreadFactor);
+    mShortCircuitDistance=mIndex.getMetadataFloat(Index.kShortCircuitDistanceName,kDefaultShortCircuitDistance);
   }
 
+  public IndexSearch(Index inIndex, int inSearchNNear, boolean inIncludeDups) {
+    this(inIndex,inSearchNNear,inIncludeDups,false); }
+
 //--------------------------------------------------------------------------------------------------------
 // gets
 //--------------------------------------------------------------------------------------------------------
@@ -85,6 +178,104 @@ public class IndexSearch extends FormatUtils {
   public DataSet getDataSet() { return mIndex.getDataSet(); }
   public int getSearchNNear() { return mSearchNNear; }
   public boolean getIncludeDups() { return mIncludeDups; }
+  public boolean getTrackSettled() { return mTrackSettled; }
+  public boolean getUsesRouting() { return (mEntryVectorDxs!=null); }
+  public boolean getUsesExpress() { return (mExpressLayer!=null); }
+  public VisitedSet getVisitedSet() { return mVisitedSet; }
+  public SearchBudget getBudget() { return mBudget; }
+  public int getNSpreadThreads() { return mNSpreadThreads; }
+  public ResultCache getResultCache() { return mResultCache; }
+  public int getReferenceCountThreshold() { return mReferenceCountThreshold; }
+  public float getSpreadFactor() { return mSpreadFactor; }
+  public float getShortCircuitDistance() { return mShortCircuitDistance; }
+
+  // Cache may be shared with other searchers, see ResultCache, null for none
+  // Not used when tracking settled calcs, which the cache does not keep, or counting references, which
+  //   changes results
+  public void setResultCache(ResultCache inResultCache) { mResultCache=inResultCache; }
+
+  public VectorFilter getFilter() { return mFilter; }
+
+  // Whether the last filtered search found FilteredNNear allowed vectors, none further than its furthest 
+  //   near node - allowed vectors further out were only met on the way, so nearer ones may have been missed
+  public boolean getFilterCovered() { return mFilterCovered; }
+
+  // Later searches only return the FilteredNNear nearest vectors the filter allows, null for no filter
+  // The search still walks through every vector, and SearchNNear sets how wide it looks, so it should be
+  //   larger than FilteredNNear for a selective filter, see FilteredSearch
+  public void setFilter(VectorFilter inFilter, int inFilteredNNear) {
+    mFilter=inFilter;
+    if ((mFilter!=null)&&
+        ((mFilteredAccumulator==null)||(mFilteredAccumulator.getMaxNNear()!=inFilteredNNear)))
+      mFilteredAccumulator=InlineAccumulator.createAccumulator(inFilteredNNear);
+  }
+
+  // Applies to every later search
+  public void setBudget(SearchBudget inBudget) {
+    mBudget=inBudget;
+    mMaxNDistanceCalcs=inBudget.getMaxNDistanceCalcs();
+    mMaxNSpreads=inBudget.getMaxNSpreads();
+  }
+
+  // Applies to every later search
+  // More than 1 is for single queries when cores are idle - searchSet already keeps every core busy
+  public void setNSpreadThreads(int inNSpreadThreads) {
+    if (inNSpreadThreads<1)
+      throw new RuntimeException("Spread threads must be at least 1: "+inNSpreadThreads);
+    mNSpreadThreads=inNSpreadThreads;
+    mSpreadJobs=null;
+    if (mNSpreadThreads>1) {
+      mSpreadJobs=new SpreadJob[mNSpreadThreads];
+      for (int i=0; i<mNSpreadThreads; i++)
+        mSpreadJobs[i]=new SpreadJob(mDistanceKernel,mIndex.getVectors());
+      mCandidateVectorDxs=new int[kExpectedNTouchedPerNNear*mSearchNNear];
+    }
+  }
+
+  public static String getQueryOrder() { return System.getProperty(kQueryOrderProperty,kFileQueryOrder); }
+
+  // Applies to every later search
+  // Spread only measures a link once Threshold spread near nodes have linked to it, up to kMaxReferenceCountThreshold
+  // 0 or 1 measures every link
+  public void setReferenceCountThreshold(int inReferenceCountThreshold) {
+    if ((inReferenceCountThreshold<0)||(inReferenceCountThreshold>kMaxReferenceCountThreshold))
+      throw new RuntimeException("Reference count threshold must be 0 to "+kMaxReferenceCountThreshold+": "+inReferenceCountThreshold);
+    mReferenceCountThreshold=(inReferenceCountThreshold<=1)?0:inReferenceCountThreshold;
+  }
+
+  // Applies to every later search - defaults to the index's tuned setting, see TuneSearch
+  // Bigger follows longer links from each near node, for more calcs and better recall
+  public void setSpreadFactor(float inSpreadFactor) {
+    if (inSpreadFactor<1)
+      throw new RuntimeException("Spread factor must be at least 1: "+inSpreadFactor);
+    mSpreadFactor=inSpreadFactor;
+  }
+
+  // Applies to every later search - defaults to the index's tuned setting, see TuneSearch
+  // Smaller stops descending a node's links sooner, Float.MAX_VALUE measures every link shorter than the query
+  public void setShortCircuitDistance(float inShortCircuitDistance) {
+    if (inShortCircuitDistance<0)
+      throw new RuntimeException("Short circuit distance must not be negative: "+inShortCircuitDistance);
+    mShortCircuitDistance=inShortCircuitDistance;
+  }
+
+  public static int getDefaultReferenceCountThreshold() { return Integer.getInteger(kReferenceCountProperty,0).intValue(); }
+
+  public static int getDefaultNSpreadThreads() { return Integer.getInteger(kSpreadThreadsProperty,1).intValue(); }
+
+  // Scratch RAM of one IndexSearch - its visited set, plus an accumulator and a work array of K
+  public static long estimateScratchNBytes(int inNVectors, int inSearchNNear) {
+    return VisitedSet.estimateNBytes(inNVectors,kExpectedNTouchedPerNNear*inSearchNNear)+
+        inSearchNNear*(2L*ConversionUtils.kIntMemory+ConversionUtils.kFloatMemory);
+  }
+  public DistanceKernel getDistanceKernel() { return mDistanceKernel; }
+
+  public static int getSpreadBatchSize() {
+    int theSpreadBatchSize=Integer.getInteger(kSpreadBatchProperty,kDefaultSpreadBatchSize).intValue();
+    if (theSpreadBatchSize<1)
+      throw new RuntimeException("Spread batch size must be at least 1: "+theSpreadBatchSize);
+    return theSpreadBatchSize;
+  }
 
 //--------------------------------------------------------------------------------------------------------
 // search
@@ -98,11 +289,28 @@ public class IndexSearch extends FormatUtils {
       float[]        inQueryVector, 
       String         inQueryDescriptor,
       SearchResult   inSearchResult) {
+
+    // Repeated query costs a lookup
+    // Serial, batched and parallel spread can measure different links, so the spread mode is part of the key
+    boolean theUseCache=((mResultCache!=null)&&(!mTrackSettled)&&(mFilter==null)&&(mReferenceCountThreshold==0));
+    if (theUseCache) {
+      SearchResult theCachedResult=mResultCache.get(
+          mIndex,mSearchNNear,mIncludeDups,mSpreadFactor,mShortCircuitDistance,mNSpreadThreads,mSpreadBatchSize,
+          mIndex.getDataSet(),inQueryDx,inQueryVector,inQueryDescriptor,inSearchResult);
+      if (theCachedResult!=null)
+        return theCachedResult;
+    }
+
     start(inQueryDx,inQueryVector,inQueryDescriptor);      
     step();
     if (mIncludeDups)
       addDups();    
-    return done(mIncludeDups,inSearchResult);
+    SearchResult theSearchResult=done(mIncludeDups,inSearchResult);
+
+    if (theUseCache)
+      mResultCache.put(mIndex,mSearchNNear,mSpreadFactor,mShortCircuitDistance,mNSpreadThreads,mSpreadBatchSize,
+          theSearchResult);
+    return theSearchResult;
   }
 
 
@@ -117,6 +325,221 @@ public class IndexSearch extends FormatUtils {
         inQueryDescriptor,
         new SearchResult(mIndex.getDataSet())); }
 
+//--------------------------------------------------------------------------------------------------------
+// searchVectorDx, searchDescriptor
+//
+// Searches for the near neighbors of an indexed vector, as in "find images like this one"
+// The vector's links are its near neighbors, sorted by distance, so they are the result without calcs, as 
+//   bullseye does - calcs are only needed to spread further when the vector has fewer links than SearchNNear
+// A dup is searched from the real vector it was collapsed into, and comes back with the other dups
+// Link distances are only query distances when a query is prepared like the vectors were, so vectors of an
+//   ip index, which have an extra dim, and dups collapsed within a dup distance are searched as usual 
+//--------------------------------------------------------------------------------------------------------
+
+  public SearchResult searchVectorDx(int inVectorDx, SearchResult inSearchResult) {
+
+    // Query is the raw vector, so the result reads like a search for it
+    Metric theMetric=mIndex.getDataSet().getMetric();
+    float[] theVector=mIndex.getVector(inVectorDx);
+    float[] theQueryVector=(theMetric.getNExtraDims()==0)?
+        theVector:Arrays.copyOf(theVector,theVector.length-theMetric.getNExtraDims());
+    String theQueryDescriptor=mIndex.getDescriptor(inVectorDx);
+
+    boolean theIsDup=mIndex.getIsDup(inVectorDx);
+    if ((theMetric.getNExtraDims()>0)||((theIsDup)&&(mIndex.getDupDistance2()>0)))
+      return search(inVectorDx,theQueryVector,theQueryDescriptor,inSearchResult);
+
+    start(inVectorDx,theQueryVector,theQueryDescriptor);
+    int theNodeVectorDx=(theIsDup?mIndex.getNearestLinkVectorDx(inVectorDx):inVectorDx);
+    setMeasured(theNodeVectorDx,0);
+    mAccumulator.addVectorDx(theNodeVectorDx,0);
+    if (!bullseye())
+      spreadToNNear();
+
+    if (mIncludeDups)
+      addDups();    
+    return done(mIncludeDups,inSearchResult);
+  }
+
+  public SearchResult searchVectorDx(int inVectorDx) {
+    return searchVectorDx(inVectorDx,new SearchResult(mIndex.getDataSet())); }
+
+
+  public SearchResult searchDescriptor(String inDescriptor, SearchResult inSearchResult) {
+    int theVectorDx=(mIndex.getHasDescriptors()?mIndex.getVectorDxForDescriptor(inDescriptor):kNotFound);
+    if (theVectorDx==kNotFound)
+      throw new RuntimeException("Descriptor not in index: "+inDescriptor);
+    return searchVectorDx(theVectorDx,inSearchResult);
+  }
+
+  public SearchResult searchDescriptor(String inDescriptor) {
+    return searchDescriptor(inDescriptor,new SearchResult(mIndex.getDataSet())); }
+
+
+  // Batch of searchVectorDx, each result with arrays of SearchNNear
+  public SearchResult[] searchVectorDxs(int[] inVectorDxs) {
+    SearchResult[] theSearchResults=new SearchResult[inVectorDxs.length];
+    for (int i=0; i<inVectorDxs.length; i++)
+      theSearchResults[i]=searchVectorDx(inVectorDxs[i],new SearchResult(mIndex.getDataSet(),mSearchNNear));
+    return theSearchResults;
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// searchRadius
+//
+// Searches for every vector within Radius2 of the query, nearest first, instead of SearchNNear of them
+// A search for SearchNNear finds the nearest vectors, then links are followed from every vector found within 
+//   kRadiusExpansion times the radius - a link of length L from a vector at distance D can only reach the 
+//   radius R when |D-L|<=R, and links are sorted, so most are never looked at
+// Every vector in the expanded radius is measured exactly, so the vectors followed and their link windows
+//   use true distances, results are only missed when the graph does not link them to the vectors found,
+//   and the result holds as many vectors as are found
+// A filter, see setFilter, limits the vectors returned, but not the vectors followed
+//--------------------------------------------------------------------------------------------------------
+
+  public SearchResult searchRadius(
+      int            inQueryDx,
+      float[]        inQueryVector, 
+      String         inQueryDescriptor,
+      float          inRadius2,
+      SearchResult   inSearchResult) {
+
+    if (mRadiusKeys==null) {
+      mRadiusVectorDxs=new int[kExpectedNTouchedPerNNear*mSearchNNear];
+      mRadiusKeys=new long[kExpectedNTouchedPerNNear*mSearchNNear];
+    }
+    if (!mTrackSettled)
+      mMeasuredVectorDxs=mRadiusVectorDxs;
+
+    // Calcs abandon early past the expanded radius, see calcBound, so a partial distance2 is never followed
+    float theExpandDistance2=(float) (inRadius2*kRadiusExpansion*kRadiusExpansion);
+    start(inQueryDx,inQueryVector,inQueryDescriptor);
+    mExpandDistance2=theExpandDistance2;
+    step();
+
+    // Vectors found within the expanded radius are followed, in the order found
+    // The measured vectors list doubles as the queue, as vectors are measured before they are followed
+    double theRadius=Math.sqrt(inRadius2);
+    for (int i=0; (i<mNMeasuredVectors)&&(!mIsPartial); i++) {
+      int theVectorDx=mMeasuredVectorDxs[i];
+      float theDistance2=mVisitedSet.getMeasuredDistance2(theVectorDx);
+      if (theDistance2>theExpandDistance2)
+        continue;
+
+      // Out of budget - the vectors found so far are the partial result
+      if (isOutOfBudget())
+        break;
+
+      double theDistance=Math.sqrt(theDistance2);
+      float theMinLinkDistance2=(float) Math.max(0,theDistance-theRadius);
+      theMinLinkDistance2*=theMinLinkDistance2;
+      float theMaxLinkDistance2=(float) ((theDistance+theRadius)*(theDistance+theRadius));
+
+      int theNLinks=mIndex.getNLinks(theVectorDx);
+      int[] theLinkVectorDxs=mIndex.getLinkVectorDxs(theVectorDx);
+      float[] theLinkDistance2s=mIndex.getLinkDistance2s(theVectorDx);
+      for (int j=0; j<theNLinks; j++) {
+        float theLinkDistance2=theLinkDistance2s[j];
+        if ((theLinkDistance2==0)||(theLinkDistance2<theMinLinkDistance2))   // Dups added at end
+          continue;
+        if (theLinkDistance2>theMaxLinkDistance2)
+          break;
+        int theLinkVectorDx=theLinkVectorDxs[j];
+        if (!isMeasured(theLinkVectorDx)) {
+          if (isOutOfCalcs())
+            break;
+          calcDistance2(theLinkVectorDx,false,calcBound());
+        }
+      }
+    }
+
+    // Dups of the vectors in the radius are measured, or share the distance of their vector
+    if (mIncludeDups) {
+      boolean theMeasureDups=(mIndex.getDupDistance2()>0);
+      int theNMeasuredVectors=mNMeasuredVectors;
+      for (int i=0; i<theNMeasuredVectors; i++) {
+        int theVectorDx=mMeasuredVectorDxs[i];
+        float theDistance2=mVisitedSet.getMeasuredDistance2(theVectorDx);
+        if (theDistance2>inRadius2)
+          continue;
+        int theNLinks=mIndex.getNLinks(theVectorDx);
+        int[] theLinkVectorDxs=mIndex.getLinkVectorDxs(theVectorDx);
+        float[] theLinkDistance2s=mIndex.getLinkDistance2s(theVectorDx);
+        for (int j=0; (j<theNLinks)&&(theLinkDistance2s[j]==0); j++)
+          if (!isMeasured(theLinkVectorDxs[j])) {
+            if (theMeasureDups)
+              calcDistance2(theLinkVectorDxs[j],true);
+            else
+              setMeasured(theLinkVectorDxs[j],theDistance2);
+          }
+      }
+    }
+
+    // Collect the vectors in the radius, and sort them by distance2 then vectorDx
+    // Distance2s are not negative, so their float bits sort in the same order
+    int theNInRadius=0;
+    for (int i=0; i<mNMeasuredVectors; i++) {
+      int theVectorDx=mMeasuredVectorDxs[i];
+      float theDistance2=mVisitedSet.getMeasuredDistance2(theVectorDx);
+      if ((theDistance2<=inRadius2)&&((mFilter==null)||(mFilter.getIsAllowed(theVectorDx)))) {
+        if (theNInRadius==mRadiusKeys.length)
+          mRadiusKeys=Arrays.copyOf(mRadiusKeys,2*theNInRadius);
+        mRadiusKeys[theNInRadius++]=(((long) Float.floatToRawIntBits(theDistance2))<<32)|theVectorDx;
+      }
+    }
+    Arrays.sort(mRadiusKeys,0,theNInRadius);
+
+    int[] theNearVectorDxs=inSearchResult.getNearVectorDxs();
+    float[] theNearDistance2s=inSearchResult.getNearDistance2s();
+    if (theNearVectorDxs.length<theNInRadius) {
+      theNearVectorDxs=new int[theNInRadius];
+      theNearDistance2s=new float[theNInRadius];
+    }
+    for (int i=0; i<theNInRadius; i++) {
+      theNearVectorDxs[i]=(int) mRadiusKeys[i];
+      theNearDistance2s[i]=Float.intBitsToFloat((int) (mRadiusKeys[i]>>>32));
+    }
+
+    SearchResult theSearchResult=new SearchResult( 
+        mIndex.getDataSet(),
+        theNInRadius,
+        mIncludeDups,
+        mQueryDx,
+        mQueryVector,
+        mQueryDescriptor,
+        theNearVectorDxs,
+        theNearDistance2s,
+        mNDescendCalcs+mNSpreadCalcs,
+        null,
+        mIsPartial);
+
+    mAccumulator.reset();
+    if (mFilter!=null)
+      mFilteredAccumulator.reset();
+    mExpandDistance2=0;
+    if (!mTrackSettled) {
+      mRadiusVectorDxs=mMeasuredVectorDxs;    // May have grown
+      mMeasuredVectorDxs=null;
+    }
+    mQueryDx=kNotFound;
+    mQueryVector=null;
+    mMetricQueryVector=null;
+    mQueryDescriptor=null;
+    return theSearchResult;
+  }
+
+  public SearchResult searchRadius(
+      int            inQueryDx,
+      float[]        inQueryVector, 
+      String         inQueryDescriptor,
+      float          inRadius2) {
+    return searchRadius(
+        inQueryDx,
+        inQueryVector,
+        inQueryDescriptor,
+        inRadius2,
+        new SearchResult(mIndex.getDataSet())); }
+
 //--------------------------------------------------------------------------------------------------------
 // Inner class SearchThread
 //--------------------------------------------------------------------------------------------------------
@@ -126,6 +549,7 @@ public class IndexSearch extends FormatUtils {
     // Member vars
     IndexSearch       mIndexSearch;
     SearchResultSet   mSearchResultSet;
+    int[]             mQueryDxs;                 // Order to run the queries in, null for file order
     int               mStartQueryDx;
     int               mEndQueryDx;
     long              mNDistanceCalcs;
@@ -136,10 +560,12 @@ public class IndexSearch extends FormatUtils {
     public SearchThread(
         IndexSearch       inIndexSearch,
         SearchResultSet   inSearchResultSet, 
+        int[]             inQueryDxs,
         int               inStartQueryDx,
         int               inEndQueryDx) {
       mIndexSearch=inIndexSearch;
       mSearchResultSet=inSearchResultSet;
+      mQueryDxs=inQueryDxs;
       mStartQueryDx=inStartQueryDx;
       mEndQueryDx=inEndQueryDx;
       setDaemon(true);
@@ -153,16 +579,19 @@ public class IndexSearch extends FormatUtils {
       // Loop over queries
       long theStartTime=System.currentTimeMillis();
       for (int i=mStartQueryDx; i<mEndQueryDx; i++) {
-        float[] theQueryVector=theQuerySet.getVector(i);
-        String theQueryDescriptor=theQuerySet.getDescriptor(i);
-        SearchResult theSearchResult=mSearchResultSet.getSearchResult(i);
+        int theQueryDx=(mQueryDxs==null)?i:mQueryDxs[i];
+        long theQueryStartNanos=System.nanoTime();
+        float[] theQueryVector=theQuerySet.getVector(theQueryDx);
+        String theQueryDescriptor=theQuerySet.getDescriptor(theQueryDx);
+        SearchResult theSearchResult=mSearchResultSet.getSearchResult(theQueryDx);
 
         // Calc nearest neighbors 
         theSearchResult=mIndexSearch.search(
-            i,
+            theQueryDx,
             theQueryVector,
             theQueryDescriptor,
             theSearchResult);  
+        mSearchResultSet.setQueryStats(theQueryDx,System.nanoTime()-theQueryStartNanos,theSearchResult.getIsPartial());
         mNDistanceCalcs+=theSearchResult.getNDistanceCalcs();
         mSumDistance2+=theSearchResult.getNearestDistance2();
       }
@@ -170,6 +599,108 @@ public class IndexSearch extends FormatUtils {
     }
   };
 
+//--------------------------------------------------------------------------------------------------------
+// Inner class OrderThread
+//
+// Finds the nearest routing entry of each query in a range, see orderQueries
+//--------------------------------------------------------------------------------------------------------
+
+  private static class OrderThread extends Thread {
+
+    // Member vars
+    Index             mIndex;
+    DataSet           mQuerySet;
+    int[]             mEntryVectorDxs;
+    int[]             mEntryDxs;                 // Nearest entry of each query, shared by the threads
+    int               mStartQueryDx;
+    int               mEndQueryDx;
+
+    // Constructor
+    public OrderThread(
+        Index             inIndex,
+        DataSet           inQuerySet,
+        int[]             inEntryVectorDxs,
+        int[]             outEntryDxs,
+        int               inStartQueryDx,
+        int               inEndQueryDx) {
+      mIndex=inIndex;
+      mQuerySet=inQuerySet;
+      mEntryVectorDxs=inEntryVectorDxs;
+      mEntryDxs=outEntryDxs;
+      mStartQueryDx=inStartQueryDx;
+      mEndQueryDx=inEndQueryDx;
+      setDaemon(true);
+    }
+
+    // Code that does the work
+    public void run() {
+      DistanceKernel theKernel=DistanceKernel.getSearchKernel();
+      Metric theMetric=mIndex.getDataSet().getMetric();
+      float[] theWorkVector=theMetric.createQueryWorkVector(mQuerySet.getNDims());
+      for (int i=mStartQueryDx; i<mEndQueryDx; i++) {
+        float[] theQueryVector=theMetric.prepareQueryVector(mQuerySet.getVector(i),theWorkVector);
+        int theNearestDx=0;
+        double theNearestDistance2=Double.MAX_VALUE;
+        for (int j=0; j<mEntryVectorDxs.length; j++) {
+          double theDistance2=theKernel.vectorSeparation2(mIndex.getVector(mEntryVectorDxs[j]),theQueryVector,theNearestDistance2);
+          if (theDistance2<theNearestDistance2) {
+            theNearestDistance2=theDistance2;
+            theNearestDx=j;
+          }
+        }
+        mEntryDxs[i]=theNearestDx;
+      }
+    }
+  };
+
+//--------------------------------------------------------------------------------------------------------
+// orderQueries
+//
+// Returns the queryDxs grouped by their nearest routing entry, and in file order within each group
+// Consecutive queries of a search thread then walk the same part of the graph, so its vectors and links
+//   are still in cache, which is most of the time of an index too big for cache
+// Costs each query a calc per entry, the same as route, spread over the search threads
+// Builds a table for an index without one, see RoutingTable
+//--------------------------------------------------------------------------------------------------------
+
+  public static int[] orderQueries(Index inIndex, DataSet inQuerySet) {
+
+    int[] theEntryVectorDxs=inIndex.getRoutingVectorDxs();
+    if (theEntryVectorDxs==null)
+      theEntryVectorDxs=RoutingTable.createRoutingVectorDxs(inIndex,RoutingTable.defaultNEntries(inIndex.getNVectors()));
+
+    int theNQueries=inQuerySet.getNVectors();
+    int[] theEntryDxs=new int[theNQueries];
+    OrderThread[] theThreads=new OrderThread[kNThreads];
+    for (int i=0; i<kNThreads; i++)
+      theThreads[i]=new OrderThread(
+          inIndex,
+          inQuerySet,
+          theEntryVectorDxs,
+          theEntryDxs,
+          (i*theNQueries)/kNThreads,
+          ((i+1)*theNQueries)/kNThreads);
+    try {
+      for (int i=0; i<kNThreads; i++) 
+        theThreads[i].start();
+      for (int i=0; i<kNThreads; i++) 
+        theThreads[i].join();
+    } catch (Throwable e) {
+      throw new RuntimeException("OrderThread died",e);
+    }
+
+    // Counting sort by entry keeps file order within each entry
+    int[] theEntryStarts=new int[theEntryVectorDxs.length+1];
+    for (int i=0; i<theNQueries; i++)
+      theEntryStarts[theEntryDxs[i]+1]++;
+    for (int i=0; i<theEntryVectorDxs.length; i++)
+      theEntryStarts[i+1]+=theEntryStarts[i];
+    int[] theQueryDxs=new int[theNQueries];
+    for (int i=0; i<theNQueries; i++)
+      theQueryDxs[theEntryStarts[theEntryDxs[i]]++]=i;
+    return theQueryDxs;
+  }
+
 //--------------------------------------------------------------------------------------------------------
 // searchSet
 // 
@@ -178,23 +709,42 @@ public class IndexSearch extends FormatUtils {
 
   public static final int    kNThreads=Math.min(kNCores-2,(int) (kNCores*0.8));
 
-  public static SearchResultSet searchSet(SearchResultSet inSearchResultSet) {
+  // Budget and reference count threshold apply to every query, see SearchBudget and setReferenceCountThreshold
+  // The system property hiD.queryOrder=route runs the queries grouped by nearest routing entry, see orderQueries
+  public static SearchResultSet searchSet(
+      SearchResultSet   inSearchResultSet, 
+      SearchBudget      inBudget, 
+      int               inReferenceCountThreshold) {
     
-    // Create threads
+    // Order queries
     int theNQueries=inSearchResultSet.getQuerySet().getNVectors();
+    int[] theQueryDxs=null;
+    String theQueryOrder=getQueryOrder();
+    if (theQueryOrder.equals(kRouteQueryOrder)) {
+      long theStartTime=System.currentTimeMillis();
+      theQueryDxs=orderQueries(inSearchResultSet.getIndex(),inSearchResultSet.getQuerySet());
+      log("\n  Ordered queries by routing entry, "+formatDuration(System.currentTimeMillis()-theStartTime));
+    } else if (!theQueryOrder.equals(kFileQueryOrder))
+      throw new RuntimeException("Unknown query order: "+theQueryOrder);
+
+    // Create threads
     SearchThread[] theThreads=new SearchThread[kNThreads];    
     for (int i=0; i<kNThreads; i++) {
       
       IndexSearch theIndexSearch=new IndexSearch(
           inSearchResultSet.getIndex(),
           inSearchResultSet.getSearchNNear(),
-          inSearchResultSet.getIncludeDups());
+          inSearchResultSet.getIncludeDups(),
+          inSearchResultSet.getTrackSettled());
+      theIndexSearch.setBudget(inBudget);
+      theIndexSearch.setReferenceCountThreshold(inReferenceCountThreshold);
 
       int theStartQueryDx=(i*theNQueries)/kNThreads;
       int theEndQueryDx=((i+1)*theNQueries)/kNThreads;
       theThreads[i]=new SearchThread(
           theIndexSearch,
           inSearchResultSet,
+          theQueryDxs,
           theStartQueryDx,
           theEndQueryDx);
     }
@@ -227,6 +777,8 @@ public class IndexSearch extends FormatUtils {
     log("  Avg N Distance Calcs:   "+theAvgNDistanceCalcs+" per query    "+
         formatPercent(theAvgNDistanceCalcs/(double) inSearchResultSet.getDataSet().getNVectors())+" of Brute");
     log("  Avg Nearest Distance2:  "+formatDistance2((float) theAvgNearestDistance2));
+    if (!inBudget.getIsUnlimited())
+      log("  Partial Results:        "+inSearchResultSet.getNPartialResults()+" of "+theNQueries+"    budget "+inBudget);
 
     SearchResultSet theSearchResultSet=new SearchResultSet(
         inSearchResultSet,
@@ -237,23 +789,42 @@ public class IndexSearch extends FormatUtils {
     return theSearchResultSet;
   }
 
+
+  public static SearchResultSet searchSet(SearchResultSet inSearchResultSet, SearchBudget inBudget) {
+    return searchSet(inSearchResultSet,inBudget,getDefaultReferenceCountThreshold()); }
+
+
+  public static SearchResultSet searchSet(SearchResultSet inSearchResultSet) {
+    return searchSet(inSearchResultSet,SearchBudget.kNoBudget); }
+
   
   
   public static SearchResultSet searchSet(
       Index     inIndex,
       int       inSearchNNear,
       boolean   inIncludeDups,
-      DataSet   inQuerySet) {
+      DataSet   inQuerySet,
+      boolean   inTrackSettled) {
     
     // Create SearchResultSet
     SearchResultSet theSearchResultSet=new SearchResultSet(
         inIndex,
         inSearchNNear,
         inIncludeDups,
-        inQuerySet);
+        inQuerySet,
+        inTrackSettled);
 
     return searchSet(theSearchResultSet);
   }
+
+  
+  
+  public static SearchResultSet searchSet(
+      Index     inIndex,
+      int       inSearchNNear,
+      boolean   inIncludeDups,
+      DataSet   inQuerySet) {
+    return searchSet(inIndex,inSearchNNear,inIncludeDups,inQuerySet,false); }
   
   
   
@@ -273,72 +844,144 @@ public class IndexSearch extends FormatUtils {
     
     mQueryDx=inQueryDx;
     mQueryVector=inQueryVector;
+    mMetricQueryVector=mIndex.getDataSet().getMetric().prepareQueryVector(inQueryVector,mQueryWorkVector);
     mQueryDescriptor=inQueryDescriptor;
   
-    // Clean up 
-    for (int i=0; i<mNMeasuredVectors; i++) {
-      int theVectorDx=mMeasuredVectorDxs[i];
-      mMeasuredVectorDxs[i]=kNotFound;
-      mMeasuredDistance2s[theVectorDx]=kNotFound;
-      mVectorFlags[theVectorDx]=kNoFlags;
-    }
-    mNMeasuredVectors=0;
+    // New stamp instead of clean up, see VisitedSet
+    mVisitedSet.reset();
     mAccumulator.reset();
+    if (mFilter!=null)
+      mFilteredAccumulator.reset();
 
     mNDescends=0;
     mNSpreads=0;
     mNDescendCalcs=0;
     mNSpreadCalcs=0;
     mNMeasuredVectors=0;
+
+    mIsPartial=false;
+    mDeadline=(mBudget.getMaxNanos()==SearchBudget.kUnlimited)?SearchBudget.kUnlimited:mBudget.getDeadline(System.nanoTime());
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// isOutOfCalcs, isOutOfBudget
+//
+// Once a search is out of budget it stops where it is, and its result is partial, see SearchBudget
+// Calcs are checked before every calc, but time only before bigger steps, as reading the clock costs about 
+//   as much as a short distance calc
+//--------------------------------------------------------------------------------------------------------
+
+  private boolean isOutOfCalcs() {
+    if (mNDescendCalcs+mNSpreadCalcs>=mMaxNDistanceCalcs)
+      mIsPartial=true;
+    return mIsPartial;
+  }
+
+
+  private boolean isOutOfBudget() {
+    if ((mNDescendCalcs+mNSpreadCalcs>=mMaxNDistanceCalcs)||
+        ((mDeadline!=SearchBudget.kUnlimited)&&(System.nanoTime()>=mDeadline)))
+      mIsPartial=true;
+    return mIsPartial;
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// isMeasured, setMeasured
+//--------------------------------------------------------------------------------------------------------
+
+  private boolean isMeasured(int inVectorDx) { return mVisitedSet.isMeasured(inVectorDx); }
+
+
+  // Every measured vector the filter allows is offered to the filtered accumulator here
+  // A calc is counted before its vector is set measured, so the vector is numbered by its own calc,
+  //   and vectors measured without a calc, from link distances or as the query itself, by the calcs before them
+  private void setMeasured(int inVectorDx, float inMeasuredDistance2) {
+    mVisitedSet.setMeasured(inVectorDx,inMeasuredDistance2);    // Track which vectors have been measured, so never measure again, and their measured distance2s
+    if ((mFilter!=null)&&(mFilter.getIsAllowed(inVectorDx)))
+      mFilteredAccumulator.addVectorDx(inVectorDx,inMeasuredDistance2);
+    if (mMeasuredVectorDxs!=null) {
+      if (mNMeasuredVectors==mMeasuredVectorDxs.length)
+        mMeasuredVectorDxs=Arrays.copyOf(mMeasuredVectorDxs,2*mNMeasuredVectors);
+      mMeasuredVectorDxs[mNMeasuredVectors]=inVectorDx;
+    }
+    if (mMeasuredNDistanceCalcs!=null) {
+      if (mNMeasuredVectors==mMeasuredNDistanceCalcs.length)
+        mMeasuredNDistanceCalcs=Arrays.copyOf(mMeasuredNDistanceCalcs,2*mNMeasuredVectors);
+      mMeasuredNDistanceCalcs[mNMeasuredVectors]=(int) (mNDescendCalcs+mNSpreadCalcs);
+    }
+    mNMeasuredVectors++;
   }
  
 //--------------------------------------------------------------------------------------------------------
 // calcDistance2
 //--------------------------------------------------------------------------------------------------------
   
-  private float calcDistance2(int inVectorDx, boolean inDescendCalc) {
+  // Bound is passed to the early abandon distance calc - use Double.MAX_VALUE for an exact distance
+  private float calcDistance2(int inVectorDx, boolean inDescendCalc, double inBound) {
     
-    // This is a recent optimization 
-    // Speeds up calcs significantly, at cost of less accurate search results
-    // During spread, we calculate on the order of K^2 distance calcs, which is 10,000 for our standard K=100
-    // One way to avoid many of these calcs is to only calc distance for vectors linked to several of the K nearest neighbors
-    // So we count how many links reference a vector and wait till the count exceeds some threshold before doing the distance calc
-    boolean theDoCalc=true;
-    if (kUseReferenceCountsInSpread)
-      if (!inDescendCalc) {   // Always do calcs during descend
-        int theReferenceCount=(mVectorFlags[inVectorDx]&kReferenceMask)+1;  // includes +1 reference for this vector
-        mVectorFlags[inVectorDx]=(byte) ((mVectorFlags[inVectorDx]&(~kReferenceMask))|theReferenceCount);
-        theDoCalc=(theReferenceCount>=kReferenceCountThreshold);            // do calc when count exceeds threshold
-      }
-    
-    if (theDoCalc) {
-      float theMeasuredDistance2=(float) VectorUtils.vectorSeparation2(mIndex.getVector(inVectorDx),mQueryVector);
-      mMeasuredVectorDxs[mNMeasuredVectors++]=inVectorDx;       // Track which vectors have been measured, so never measure again,
-      mMeasuredDistance2s[inVectorDx]=theMeasuredDistance2;     //   and their measured distance2s
-      mVectorFlags[inVectorDx]|=kMeasuredFlag;                  // Flag vector as measured
-
-      // Track number of calcs in descend and spread 
-      // Calcs are the majority of search time, so want to minimize them
-      // Currently, spread dominates for standard 100NN case, so thats where optimizations make a difference
-      if (inDescendCalc)
-        mNDescendCalcs++;
-      else
-        mNSpreadCalcs++;
+    float theMeasuredDistance2=(float) ((inBound==Double.MAX_VALUE)?
+        mDistanceKernel.vectorSeparation2(mIndex.getVector(inVectorDx),mMetricQueryVector):
+        mDistanceKernel.vectorSeparation2(mIndex.getVector(inVectorDx),mMetricQueryVector,inBound));
 
-      return theMeasuredDistance2;
-    } else 
-      return kNotFound;  // Indicates distance not calculated - only occurs when using ref counts in spread
+    // Track number of calcs in descend and spread 
+    // Calcs are the majority of search time, so want to minimize them
+    // Currently, spread dominates for standard 100NN case, so thats where optimizations make a difference
+    if (inDescendCalc)
+      mNDescendCalcs++;
+    else
+      mNSpreadCalcs++;
+    setMeasured(inVectorDx,theMeasuredDistance2);
+
+    return theMeasuredDistance2;
+  }
+
+  
+  private float calcDistance2(int inVectorDx, boolean inDescendCalc) {
+    return calcDistance2(inVectorDx,inDescendCalc,Double.MAX_VALUE); }
+
+
+  // Counts one more spread link to the vector, and returns whether it has enough to be worth a calc
+  // During spread, we calculate on the order of K^2 distance calcs, which is 10,000 for our standard K=100
+  // One way to avoid many of these calcs is to only calc distance for vectors linked to several of the K nearest 
+  //   neighbors, at the cost of less accurate search results - descend and radius calcs are not counted
+  // The count stops at kReferenceMask, so it never carries into the flags above it
+  private boolean countReference(int inVectorDx) {
+    byte theFlags=mVisitedSet.getFlags(inVectorDx);
+    int theReferenceCount=Math.min(kReferenceMask,(theFlags&kReferenceMask)+1);  // includes +1 reference for this vector
+    mVisitedSet.setFlags(inVectorDx,(byte) ((theFlags&(~kReferenceMask))|theReferenceCount));
+    return (theReferenceCount>=mReferenceCountThreshold);            // do calc when count reaches threshold
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// calcBound
+//
+// Bound for early abandon calcs of vectors that are only kept if nearer than the accumulator limit
+// The bound is one float step past the limit, so a partial sum more than the bound still rounds to a float 
+//   more than the limit, and the accumulator rejects it just as it would the full distance2
+//--------------------------------------------------------------------------------------------------------
+
+  // A filtered search also keeps vectors nearer than the filtered accumulator limit, and a radius search follows
+  //   every vector in the expanded radius, so the bound is the largest
+  private double calcBound() {
+    float theLimitDistance2=mAccumulator.getNearLimitDistance2();
+    if (mFilter!=null)
+      theLimitDistance2=Math.max(theLimitDistance2,mFilteredAccumulator.getNearLimitDistance2());
+    theLimitDistance2=Math.max(theLimitDistance2,mExpandDistance2);
+    return (theLimitDistance2==Float.MAX_VALUE)?Double.MAX_VALUE:Math.nextUp(theLimitDistance2); 
   }
   
 //--------------------------------------------------------------------------------------------------------
 // bullseye
 //--------------------------------------------------------------------------------------------------------
   
-  private void bullseye() {
+  // Returns whether the links were enough for the near nodes - with fewer links than SearchNNear, nodes met on
+  //   the way, like routing entries, fill the rest, so the search must spread from the links to replace them
+  private boolean bullseye() {
 
     // Found query at distance zero, indicating it is a node from the indexed dataset
     // Copy over node links as the search result
     int theNearestVectorDx=mAccumulator.getNearestVectorDx();
+    int theNNear=1;
  
     // Get links from index
     int theNLinks=mIndex.getNLinks(theNearestVectorDx);
@@ -357,21 +1000,21 @@ public class IndexSearch extends FormatUtils {
         // Don't keep links that are too big to matter
         // Bail - remaining links bigger
         if (theLinkDistance2>mAccumulator.getNearLimitDistance2()) 
-          break;
+          return (theNNear>=mSearchNNear);
+        theNNear++;
 
         // Skip links to known nodes - they are already in the accumulator
-        if (mMeasuredDistance2s[theLinkVectorDx]==kNotFound) {
+        if (!isMeasured(theLinkVectorDx)) {
           
           // No need for calc - node to query distance is link distance
-          mMeasuredVectorDxs[mNMeasuredVectors++]=theLinkVectorDx;
-          mMeasuredDistance2s[theLinkVectorDx]=theLinkDistance2;  
-          mVectorFlags[theLinkVectorDx]|=kMeasuredFlag;
+          setMeasured(theLinkVectorDx,theLinkDistance2);
 
           // Update near nodes
-          mAccumulator.addVectorDx(theLinkVectorDx);
+          mAccumulator.addVectorDx(theLinkVectorDx,theLinkDistance2);
         }
       }
     }
+    return (theNNear>=mSearchNNear);
   }
   
 //--------------------------------------------------------------------------------------------------------
@@ -392,15 +1035,16 @@ public class IndexSearch extends FormatUtils {
     // Links that are too long are less likely to make progress and are skipped
     // This heuristic is based loosely on the geometry of overlapping hyper spheres, but the fine structure 
     //   of the data also has a big impact.  More reasearch & experiments needed to optimize 
-    float theQueryDistance2=mMeasuredDistance2s[theNearestVectorDx];
+    float theQueryDistance2=mVisitedSet.getMeasuredDistance2(theNearestVectorDx);
     float theMaxLinkDistance2=theQueryDistance2;
 
     // Another optimization is to follow the first long link that makes significant progress
     // This shortcut takes advantage of the fact the overall distribution is only one std dev thick
     // If ever a link makes 3 std dev of progress, we are unlikely to do better so skip rest of the links
+    // The 3 is the default ShortCircuitDistance, which TuneSearch can tune for an index
     // Note that spread takes more than 10x longer than descend for std 100NN case, so speeding up descend 
     //   does not make much difference
-    double theShortCircuitDistance=Math.max(0,Math.sqrt(theQueryDistance2)-3);
+    double theShortCircuitDistance=Math.max(0,Math.sqrt(theQueryDistance2)-mShortCircuitDistance);
     float theShortCircuitDistance2=(float) (theShortCircuitDistance*theShortCircuitDistance);
 
     // Get links from index
@@ -423,13 +1067,15 @@ public class IndexSearch extends FormatUtils {
       
       // Skip links to known nodes - they are already in the accumulator
       int theLinkVectorDx=theLinkVectorDxs[j];
-      if (mMeasuredDistance2s[theLinkVectorDx]==kNotFound) {
+      if (!isMeasured(theLinkVectorDx)) {
+        if (isOutOfCalcs())
+          break;
 
         // Calc distance from linked node to query vector 
         float theMeasuredDistance2=calcDistance2(theLinkVectorDx,true);
        
         // Update nodes in accumulator
-        mAccumulator.addVectorDx(theLinkVectorDx);
+        mAccumulator.addVectorDx(theLinkVectorDx,theMeasuredDistance2);
         
         // Early nodes, especially the root node, have tons of links
         // If we follow a link that makes significant progress, bail out of loop over the rest of them
@@ -479,62 +1125,26 @@ public class IndexSearch extends FormatUtils {
       
       // Don't spread nodes which have already been spread (i.e. all links checked)
       // This lets us race past finished nodes to find the remaining unspread ones 
-      if ((mVectorFlags[theNearVectorDx]&kSpreadFlag)!=0) 
+      if ((mVisitedSet.getFlags(theNearVectorDx)&kSpreadFlag)!=0) 
         continue;
+
+      // Out of budget - return to step, which stops the search
+      if (isOutOfBudget())
+        return;
       
-      // Links that are too long are less likely to make progress and are skipped
-      // This heuristic is based loosely on the geometry of overlapping hyper spheres, but the fine structure 
-      //   of the data also has a big impact.  More reasearch & experiments needed to optimize 
-      float theKeptLimitDistance2=mAccumulator.getNearLimitDistance2();
-      float theMaxLinkDistance=2.2f*theKeptLimitDistance2-theQueryDistance2;      // If heuristic changed, change in ### 2nd place below
-   
-      // Get links from index
-      int theNLinks=mIndex.getNLinks(theNearVectorDx);
-      int[] theLinkVectorDxs=mIndex.getLinkVectorDxs(theNearVectorDx);
-      float[] theLinkDistance2s=mIndex.getLinkDistance2s(theNearVectorDx);
-  
-      // Loop over links for current near node, shortest to longest
-      for (int j=0; j<theNLinks; j++) {
-        float theLinkDistance2=theLinkDistance2s[j];
-  
-        // Skip dups (zero length links)
-        // Dups are optionally added in at end, after stepping is done
-        if (theLinkDistance2==0) 
-          continue;
-          
-        // Don't follow links that are too big to find a closer neighbor
-        if (theLinkDistance2>theMaxLinkDistance) 
-          break;  // Bail - remaining links are longer
-        
-        // Skip links to known nodes - they have already been added to the accumulator
-        int theLinkVectorDx=theLinkVectorDxs[j];
-        if (mMeasuredDistance2s[theLinkVectorDx]==kNotFound) {
-
-          // Calc distance from linked node to query vector 
-          // ### This line takes 90% of search time for std 100NN case ###
-          float theMeasuredDistance2=calcDistance2(theLinkVectorDx,false);
-
-          // New optimization: spread does not perform calc until several links reference it
-          // Only continue if calc actually performed
-          if (theMeasuredDistance2!=kNotFound) {
-            
-            // Update nodes in accumulator
-            boolean theFoundNearNode=(mAccumulator.addVectorDx(theLinkVectorDx)!=kNotFound);
-
-            // If we found a near node
-            if (theFoundNearNode) {
-              
-              // Update kept distance and max link distance so we can bail out of spread loop earlier
-              theKeptLimitDistance2=mAccumulator.getNearLimitDistance2();
-              theMaxLinkDistance=2.2f*theKeptLimitDistance2-theQueryDistance2;        // ### 2nd place mentioned above
-            }
-          }                           
-        }
-      }
-      
+      // Measure the useful links of the near node
+      if (mSpreadBatchSize>1)
+        spreadLinksBatched(theNearVectorDx,theQueryDistance2);
+      else
+        spreadLinks(theNearVectorDx,theQueryDistance2);
+
+      // Out of calcs part way through the links - node is not fully spread
+      if (mIsPartial)
+        return;
+
       // All useful links measured
       // Mark the current node as spread, so it won't be spread again
-      mVectorFlags[theNearVectorDx]|=kSpreadFlag;
+      mVisitedSet.setFlags(theNearVectorDx,(byte) (mVisitedSet.getFlags(theNearVectorDx)|kSpreadFlag));
       
       if (kVerbose) {
         long theInnerStepNCalcs=mNSpreadCalcs-theInnerStartNCalcs;
@@ -553,24 +1163,414 @@ public class IndexSearch extends FormatUtils {
     }
   }
   
+//--------------------------------------------------------------------------------------------------------
+// spreadStep, spreadToNNear
+//--------------------------------------------------------------------------------------------------------
+
+  private void spreadStep() {
+    if (mSpreadJobs!=null)
+      spreadParallel();
+    else
+      spread();
+  }
+
+
+  // Spreads until the near nodes stop changing, as step does, when bullseye links did not fill the accumulator
+  private void spreadToNNear() {
+    int theKeptLimitVectorDx=mAccumulator.getNearLimitVectorDx();
+    while (!isOutOfBudget()) {
+      if (mNSpreads>=mMaxNSpreads) {
+        mIsPartial=true;
+        break;
+      }
+      spreadStep();
+      if (theKeptLimitVectorDx==mAccumulator.getNearLimitVectorDx())
+        break;
+      theKeptLimitVectorDx=mAccumulator.getNearLimitVectorDx();
+    }
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// spreadLinks
+//   measures the links of a near node that could lead to a nearer node, one at a time
+//--------------------------------------------------------------------------------------------------------
+
+  private void spreadLinks(int inNearVectorDx, float inQueryDistance2) {
+
+    // Links that are too long are less likely to make progress and are skipped
+    // This heuristic is based loosely on the geometry of overlapping hyper spheres, but the fine structure 
+    //   of the data also has a big impact.  More reasearch & experiments needed to optimize 
+    float theMaxLinkDistance=maxLinkDistance(inQueryDistance2);
+
+    // Get links from index
+    int theNLinks=mIndex.getNLinks(inNearVectorDx);
+    int[] theLinkVectorDxs=mIndex.getLinkVectorDxs(inNearVectorDx);
+    float[] theLinkDistance2s=mIndex.getLinkDistance2s(inNearVectorDx);
+
+    // Loop over links for current near node, shortest to longest
+    for (int j=0; j<theNLinks; j++) {
+      float theLinkDistance2=theLinkDistance2s[j];
+
+      // Skip dups (zero length links)
+      // Dups are optionally added in at end, after stepping is done
+      if (theLinkDistance2==0) 
+        continue;
+        
+      // Don't follow links that are too big to find a closer neighbor
+      if (theLinkDistance2>theMaxLinkDistance) 
+        break;  // Bail - remaining links are longer
+      
+      // Skip links to known nodes - they have already been added to the accumulator
+      int theLinkVectorDx=theLinkVectorDxs[j];
+      if (!isMeasured(theLinkVectorDx)) {
+        if (isOutOfCalcs())
+          return;
+
+        // Optional optimization: spread does not perform calc until several links reference it
+        if ((mReferenceCountThreshold>0)&&(!countReference(theLinkVectorDx)))
+          continue;
+
+        // Calc distance from linked node to query vector 
+        // ### This line takes 90% of search time for std 100NN case ###
+        // Once the accumulator is full, most of these calcs are rejections, so they are abandoned early
+        float theMeasuredDistance2=calcDistance2(theLinkVectorDx,false,calcBound());
+
+        // Update nodes in accumulator
+        // If we found a near node, update max link distance so we can bail out of spread loop earlier
+        if (mAccumulator.addVectorDx(theLinkVectorDx,theMeasuredDistance2)!=kNotFound) 
+          theMaxLinkDistance=maxLinkDistance(inQueryDistance2);
+      }
+    }
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// spreadLinksBatched
+//   measures the same links as spreadLinks, but collects up to SpreadBatchSize unmeasured links at a time and
+//     measures them together with the multi-row kernel, which overlaps the memory loads of several vectors
+//   the kernel's distances are exact, so a batch gives up the early abandon of spreadLinks, and the max link
+//     distance only shrinks between batches, so a batch can measure a few links spreadLinks would have skipped
+//--------------------------------------------------------------------------------------------------------
+
+  private void spreadLinksBatched(int inNearVectorDx, float inQueryDistance2) {
+
+    float theMaxLinkDistance=maxLinkDistance(inQueryDistance2);
+
+    int theNLinks=mIndex.getNLinks(inNearVectorDx);
+    int[] theLinkVectorDxs=mIndex.getLinkVectorDxs(inNearVectorDx);
+    float[] theLinkDistance2s=mIndex.getLinkDistance2s(inNearVectorDx);
+
+    int j=0;
+    while (j<theNLinks) {
+
+      // Collect the next batch of links to measure, skipping dups and known nodes as spreadLinks does
+      int theNBatch=0;
+      while ((j<theNLinks)&&(theNBatch<mSpreadBatchSize)) {
+        float theLinkDistance2=theLinkDistance2s[j];
+        if (theLinkDistance2>theMaxLinkDistance) {
+          j=theNLinks;    // Bail after this batch - remaining links are longer
+          break;
+        }
+        int theLinkVectorDx=theLinkVectorDxs[j++];
+        if ((theLinkDistance2!=0)&&(!isMeasured(theLinkVectorDx)))
+          if ((mReferenceCountThreshold==0)||countReference(theLinkVectorDx))
+            mBatchVectorDxs[theNBatch++]=theLinkVectorDx;
+      }
+      if (theNBatch==0)
+        continue;
+
+      // Only measure the calcs left in the budget, so the calcs limit stays exact
+      long theNCalcsLeft=mMaxNDistanceCalcs-(mNDescendCalcs+mNSpreadCalcs);
+      if (theNBatch>theNCalcsLeft) {
+        theNBatch=(int) theNCalcsLeft;
+        mIsPartial=true;
+      }
+
+      mDistanceKernel.vectorSeparation2s(mMetricQueryVector,mIndex.getVectors(),mBatchVectorDxs,theNBatch,mBatchDistance2s);
+
+      // Update nodes in accumulator, and the max link distance if any was a near node
+      // Calcs are counted one at a time, so each vector is numbered by its calc, see setMeasured
+      boolean theFoundNearNode=false;
+      for (int k=0; k<theNBatch; k++) {
+        mNSpreadCalcs++;
+        setMeasured(mBatchVectorDxs[k],mBatchDistance2s[k]);
+        if (mAccumulator.addVectorDx(mBatchVectorDxs[k],mBatchDistance2s[k])!=kNotFound)
+          theFoundNearNode=true;
+      }
+      if (theFoundNearNode)
+        theMaxLinkDistance=maxLinkDistance(inQueryDistance2);
+
+      if (mIsPartial)
+        return;
+    }
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// spreadParallel
+//   spreads near nodes in the same order as spread, but in rounds - each round collects the useful links of
+//     the next near nodes until there are enough calcs to split across the spread threads, then measures them
+//   like spread, stops once a new near node is found, so the search can descend again
+//   links are collected and results added on the search thread, so the visited set and the accumulator are
+//     only used by one thread, and only the calcs run on the spread threads
+//   results are added in the order the links were collected, so they do not depend on thread timing
+//   links are followed with the max link distance from the start of the round, which is never shorter than
+//     the one spread would use, so a round can measure a few links spread would skip
+//--------------------------------------------------------------------------------------------------------
+
+  private void spreadParallel() {
+
+    mNSpreads++;
+    long theStartNCalcs=mNSpreadCalcs;
+    int theKeptLimitVectorDx=mAccumulator.getNearLimitVectorDx();
+    int theRoundNCalcs=mNSpreadThreads*kMinNSpreadJobCalcs;
+
+    boolean theAllSpread=false;
+    while (!theAllSpread) {
+
+      // Out of budget - return to step, which stops the search
+      if (isOutOfBudget())
+        return;
+
+      // Collect the useful links of the next near nodes, each once, with the same tests as spreadLinks
+      int theNCandidates=0;
+      theAllSpread=true;
+      int theNNear=mAccumulator.getNNear();
+      for (int i=theNNear-1; i>=0; i--) {
+
+        int theNearVectorDx=mAccumulator.getVectorDx(i);
+        byte theNearFlags=mVisitedSet.getFlags(theNearVectorDx);
+        if ((theNearFlags&kSpreadFlag)!=0)
+          continue;
+
+        // Enough calcs for this round - rest of the near nodes wait for the next one
+        if (theNCandidates>=theRoundNCalcs) {
+          theAllSpread=false;
+          break;
+        }
+        mVisitedSet.setFlags(theNearVectorDx,(byte) (theNearFlags|kSpreadFlag));
+
+        float theMaxLinkDistance=maxLinkDistance(mAccumulator.getDistance2(i));
+        int theNLinks=mIndex.getNLinks(theNearVectorDx);
+        int[] theLinkVectorDxs=mIndex.getLinkVectorDxs(theNearVectorDx);
+        float[] theLinkDistance2s=mIndex.getLinkDistance2s(theNearVectorDx);
+        for (int j=0; j<theNLinks; j++) {
+          float theLinkDistance2=theLinkDistance2s[j];
+          if (theLinkDistance2==0) 
+            continue;
+          if (theLinkDistance2>theMaxLinkDistance) 
+            break;
+
+          int theLinkVectorDx=theLinkVectorDxs[j];
+          if ((!isMeasured(theLinkVectorDx))&&((mVisitedSet.getFlags(theLinkVectorDx)&kCollectedFlag)==0))
+            if ((mReferenceCountThreshold==0)||countReference(theLinkVectorDx)) {
+              mVisitedSet.setFlags(theLinkVectorDx,(byte) (mVisitedSet.getFlags(theLinkVectorDx)|kCollectedFlag));
+              if (theNCandidates==mCandidateVectorDxs.length)
+                mCandidateVectorDxs=Arrays.copyOf(mCandidateVectorDxs,2*theNCandidates);
+              mCandidateVectorDxs[theNCandidates++]=theLinkVectorDx;
+            }
+        }
+      }
+
+      // Only measure the calcs left in the budget, so the calcs limit stays exact
+      long theNCalcsLeft=mMaxNDistanceCalcs-(mNDescendCalcs+mNSpreadCalcs);
+      if (theNCandidates>theNCalcsLeft) {
+        theNCandidates=(int) theNCalcsLeft;
+        mIsPartial=true;
+      }
+
+      // Split the calcs in contiguous runs, hand all but the first to the spread threads, and do the first here
+      int theNJobs=Math.max(1,Math.min(mNSpreadThreads,theNCandidates/kMinNSpreadJobCalcs));
+      for (int k=0; k<theNJobs; k++)
+        mSpreadJobs[k].setCalcs(mMetricQueryVector,mCandidateVectorDxs,(k*theNCandidates)/theNJobs,((k+1)*theNCandidates)/theNJobs);
+      for (int k=1; k<theNJobs; k++)
+        mSpreadJobs[k].submit();
+      mSpreadJobs[0].run();
+      for (int k=1; k<theNJobs; k++)
+        mSpreadJobs[k].waitTillDone();
+
+      // Merge the calcs into the accumulator, counting them one at a time as in spreadLinksBatched
+      for (int k=0; k<theNJobs; k++) {
+        SpreadJob theSpreadJob=mSpreadJobs[k];
+        for (int c=0; c<theSpreadJob.getNCalcs(); c++) {
+          mNSpreadCalcs++;
+          setMeasured(theSpreadJob.getVectorDx(c),theSpreadJob.getDistance2(c));
+          mAccumulator.addVectorDx(theSpreadJob.getVectorDx(c),theSpreadJob.getDistance2(c));
+        }
+      }
+
+      if (kVerbose)
+        System.out.println("    Spread "+mNSpreads+",  "+theNCandidates+" calcs on "+theNJobs+" threads");
+
+      // If new near node was found, return to step, as spread does
+      if ((mIsPartial)||(theKeptLimitVectorDx!=mAccumulator.getNearLimitVectorDx()))
+        break;
+    }
+
+    if (kVerbose) {
+      long theStepNCalcs=mNSpreadCalcs-theStartNCalcs;
+      System.out.println("  Spread "+mNSpreads+",  "+theStepNCalcs+" calcs");
+    }
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// maxLinkDistance
+//   links of a near node longer than this are not followed, see spreadLinks
+//   SpreadFactor defaults to 2.2, which TuneSearch can tune for an index
+//--------------------------------------------------------------------------------------------------------
+
+  private float maxLinkDistance(float inQueryDistance2) {
+    return mSpreadFactor*mAccumulator.getNearLimitDistance2()-inQueryDistance2; }
+
+//--------------------------------------------------------------------------------------------------------
+// Inner class SpreadJob
+//
+// One thread's share of the calcs of a parallel spread, see spreadParallel
+// Jobs run on a shared pool of daemon threads, so the pool lives as long as the program, and searches only
+//   wait on their own jobs
+//--------------------------------------------------------------------------------------------------------
+
+  private static class SpreadJob implements Runnable {
+
+    private static final ExecutorService   kSpreadService=
+        Executors.newFixedThreadPool(
+            Math.max(1,kNCores-1),       // Search thread does one job itself
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread theThread=Executors.defaultThreadFactory().newThread(r);
+                    theThread.setDaemon(true);
+                    return theThread;
+                }
+            });
+
+    private DistanceKernel   mDistanceKernel;
+    private float[][]     mVectors;
+    private float[]       mQueryVector;
+
+    private Future        mWaitState;
+
+    private int           mNCalcs;
+    private int[]         mCalcVectorDxs;          // Grow as needed
+    private float[]       mCalcDistance2s;
+
+    public SpreadJob(DistanceKernel inDistanceKernel, float[][] inVectors) {
+      mDistanceKernel=inDistanceKernel;
+      mVectors=inVectors;
+      mCalcVectorDxs=new int[kMinNSpreadJobCalcs];
+      mCalcDistance2s=new float[kMinNSpreadJobCalcs];
+    }
+
+    public int getNCalcs() { return mNCalcs; }
+    public int getVectorDx(int inCalcDx) { return mCalcVectorDxs[inCalcDx]; }
+    public float getDistance2(int inCalcDx) { return mCalcDistance2s[inCalcDx]; }
+
+    // Copies the job's run of vectorDxs, so the job does not share arrays with the search thread
+    public void setCalcs(float[] inQueryVector, int[] inVectorDxs, int inStartDx, int inEndDx) {
+      mQueryVector=inQueryVector;
+      mNCalcs=inEndDx-inStartDx;
+      if (mNCalcs>mCalcVectorDxs.length) {
+        mCalcVectorDxs=new int[2*mNCalcs];
+        mCalcDistance2s=new float[2*mNCalcs];
+      }
+      System.arraycopy(inVectorDxs,inStartDx,mCalcVectorDxs,0,mNCalcs);
+    }
+
+    public void run() {
+      mDistanceKernel.vectorSeparation2s(mQueryVector,mVectors,mCalcVectorDxs,mNCalcs,mCalcDistance2s); }
+
+    public void submit() { mWaitState=kSpreadService.submit(this); }
+
+    // waitTillDone will not return till job is done or dies
+    public void waitTillDone() {
+      try {
+        mWaitState.get();
+        mWaitState=null;
+      } catch (Exception e) {
+        throw new RuntimeException("SpreadJob died",e);
+      }
+    }
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// route
+//   measures every routing table entry, so the search starts from the entries nearest the query 
+//   the entries are spread over the dataset, so the nearest is usually much nearer than the root node, 
+//     and descend skips most of the root's long link list
+//   entry calcs are counted as descend calcs
+//--------------------------------------------------------------------------------------------------------
+  
+  private void route() {
+    for (int i=0; i<mEntryVectorDxs.length; i++) {
+      int theEntryVectorDx=mEntryVectorDxs[i];
+      if (!isMeasured(theEntryVectorDx)) {
+        if (isOutOfCalcs())
+          return;
+        mAccumulator.addVectorDx(theEntryVectorDx,calcDistance2(theEntryVectorDx,true));
+      }
+    }
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// express
+//   descends the express layer from the root, one level at a time
+//   at each level, moves to the nearest linked node of the level until none is nearer, then drops a level
+//   each level is kLevelRatio times denser than the one above, so it takes a few moves per level to get
+//     near the query, instead of scanning the root's long link list
+//   express calcs are counted as descend calcs
+//--------------------------------------------------------------------------------------------------------
+  
+  private void express() {
+
+    int theVectorDx=mExpressLayer.getEntryVectorDx();
+    if (!isMeasured(theVectorDx))
+      mAccumulator.addVectorDx(theVectorDx,calcDistance2(theVectorDx,true));
+    float theDistance2=mVisitedSet.getMeasuredDistance2(theVectorDx);
+
+    for (int theLevel=mExpressLayer.getTopLevel(); theLevel>0; theLevel--) {
+      if (isOutOfBudget())
+        return;
+      int theStartVectorDx;
+      do {
+        theStartVectorDx=theVectorDx;
+        int[] theLinkVectorDxs=mExpressLayer.getLevelLinkVectorDxs(theStartVectorDx,theLevel);
+        for (int j=0; j<theLinkVectorDxs.length; j++) {
+          int theLinkVectorDx=theLinkVectorDxs[j];
+          float theLinkDistance2;
+          if (isMeasured(theLinkVectorDx))
+            theLinkDistance2=mVisitedSet.getMeasuredDistance2(theLinkVectorDx);
+          else if (isOutOfCalcs())
+            return;
+          else {
+            theLinkDistance2=calcDistance2(theLinkVectorDx,true);
+            mAccumulator.addVectorDx(theLinkVectorDx,theLinkDistance2);
+          }
+          if (theLinkDistance2<theDistance2) {
+            theDistance2=theLinkDistance2;
+            theVectorDx=theLinkVectorDx;
+          }
+        }
+      } while (theVectorDx!=theStartVectorDx);
+    }
+  }
+
 //--------------------------------------------------------------------------------------------------------
 // step
 //--------------------------------------------------------------------------------------------------------
   
   private void step() {
 
-    // Start at root node
-    // Note: using the word node and vector interchangeably
-    int theRootVectorDx=0;    
-
     // The accumulator is a heap that keeps track of the nodes near the query
     // At the end of the search, the accumulator contents will be the search result - i.e. the K nearest neighbors
-    // Start with adding the root node to the accumulator
-    // ### CAUTION!  Calc distance first!  ###
-    // For efficiency, the accumulator shares an array of distances with this search class and assumes the
-    //   distance has already been calculated when a vector is added
-    calcDistance2(theRootVectorDx,true);
-    mAccumulator.addVectorDx(theRootVectorDx);
+    // Start with the nodes met descending the express layer and the routing table entries, or just the root node 
+    //   for an index with neither
+    // The accumulator keeps each distance2 with its vectorDx, so it is passed in with the vector
+    // Note: using the word node and vector interchangeably
+    if (mExpressLayer!=null)
+      express();
+    if (mEntryVectorDxs!=null)
+      route();
+    if ((mExpressLayer==null)&&(mEntryVectorDxs==null)) {
+      int theRootVectorDx=0;    
+      mAccumulator.addVectorDx(theRootVectorDx,calcDistance2(theRootVectorDx,true));
+    }
 
     // The kept limit node is the furthest of the near nodes = top of the accumulator heap
     // When the kept node changes, it indicates a new near node has been added to the accumulator
@@ -584,14 +1584,19 @@ public class IndexSearch extends FormatUtils {
     // Must make sure to do a spread after descend is complete
     // Search not finished without a spread
 
-    // Repeatedly step until spread does not change the K nearest nodes
+    // Repeatedly step until spread does not change the K nearest nodes, or the search is out of budget
+    // Out of budget searches stop with the near nodes found so far
     while (true) {
+
+      if (isOutOfBudget())
+        break;
  
       // Rare case
       // If nearest node to query distance is zero, query was one of the indexed vectors
       // No need to calc distances from linked nodes to query - link lengths are the distances 
       if (mAccumulator.getNearestDistance2()==0) {
-        bullseye();
+        if (!bullseye())
+          spreadToNNear();
         return;  // Search is done      
            
       // If the nearest node changed, we can make rapid progress with a descend step
@@ -601,7 +1606,11 @@ public class IndexSearch extends FormatUtils {
      
       // Otherwise, do a spread step
       } else {
-        spread();
+        if (mNSpreads>=mMaxNSpreads) {
+          mIsPartial=true;
+          break;
+        }
+        spreadStep();
         
         // Check if we are done
         // If kept limit node did not change, then none of them did, and we have as many NN as can be found
@@ -624,13 +1633,15 @@ public class IndexSearch extends FormatUtils {
     // During indexing, duplicates are found, separated from the nearest neighbor links, and added back in at the end
     // If J vectors are the same, one is treated as the real vector and the other J-1 are dups.
     // Dups are recognized by having one zero length link to the real vector
+    // If the index collapsed near dups, the dup is not exactly the real vector, so its distance must be measured
 
+    boolean theMeasureDups=(mIndex.getDupDistance2()>0);
     int theSearchNNear=mAccumulator.copyNear(mNearVectorDxs);
     
     // Loop over near nodes
     for (int i=0; i<theSearchNNear; i++) {        
       int theVectorDx=mNearVectorDxs[i]; 
-      float theMeasuredDistance2=mMeasuredDistance2s[theVectorDx];
+      float theMeasuredDistance2=mVisitedSet.getMeasuredDistance2(theVectorDx);
       
       // Get links
       int theNLinks=mIndex.getNLinks(theVectorDx);
@@ -646,11 +1657,13 @@ public class IndexSearch extends FormatUtils {
 
         // Don't add if already measured - already in accumulator
         int theLinkVectorDx=theLinkVectorDxs[j];
-        if (mMeasuredDistance2s[theLinkVectorDx]==kNotFound) {
-          mMeasuredVectorDxs[mNMeasuredVectors++]=theLinkVectorDx;
-          mMeasuredDistance2s[theLinkVectorDx]=theMeasuredDistance2;  
-          mVectorFlags[theLinkVectorDx]|=kMeasuredFlag;
-          mAccumulator.addVectorDx(theLinkVectorDx);
+        if (!isMeasured(theLinkVectorDx)) {
+          if (theMeasureDups)
+            mAccumulator.addVectorDx(theLinkVectorDx,calcDistance2(theLinkVectorDx,true));
+          else {
+            setMeasured(theLinkVectorDx,theMeasuredDistance2);
+            mAccumulator.addVectorDx(theLinkVectorDx,theMeasuredDistance2);
+          }
           
           if (theNLinks==1) 
             throw new RuntimeException("Found dup added real");
@@ -670,13 +1683,25 @@ public class IndexSearch extends FormatUtils {
     int[] theNearVectorDxs=ioSearchResult.getNearVectorDxs();
     float[] theNearDistance2s=ioSearchResult.getNearDistance2s();
     
-    // Get near neighbors from accumulator in sorted order - this resets the accumulator 
-    int theSearchNNear=mAccumulator.removeNear(theNearVectorDxs);
-    
-    // Copy out distances
-    theNearDistance2s[0]=mMeasuredDistance2s[theNearVectorDxs[0]];
-    for (int i=1; i<theSearchNNear; i++) 
-      theNearDistance2s[i]=mMeasuredDistance2s[theNearVectorDxs[i]];
+    // Get near neighbors and their distances from accumulator in sorted order - this resets the accumulator 
+    // A filtered search returns the nearest allowed vectors instead, and drops the near nodes it walked
+    int theSearchNNear;
+    if (mFilter!=null) {
+      mFilterCovered=((mFilteredAccumulator.getNNear()==mFilteredAccumulator.getMaxNNear())&&
+          (mFilteredAccumulator.getNearLimitDistance2()<=mAccumulator.getNearLimitDistance2()));
+      theSearchNNear=mFilteredAccumulator.removeNear(theNearVectorDxs,theNearDistance2s);
+      mAccumulator.reset();
+    } else
+      theSearchNNear=mAccumulator.removeNear(theNearVectorDxs,theNearDistance2s);
+
+    // Reuse the settled calcs array too, if the search result has one
+    int[] theSettledNDistanceCalcs=null;
+    if (mTrackSettled) {
+      theSettledNDistanceCalcs=ioSearchResult.getSettledNDistanceCalcs();
+      if ((theSettledNDistanceCalcs==null)||(theSettledNDistanceCalcs.length<mSearchNNear))
+        theSettledNDistanceCalcs=new int[mSearchNNear];
+      findSettledNDistanceCalcs(theNearVectorDxs,theSearchNNear,theSettledNDistanceCalcs);
+    }
  
     int theQueryDx=mQueryDx;
     float[] theQueryVector=mQueryVector;
@@ -684,6 +1709,7 @@ public class IndexSearch extends FormatUtils {
     
     mQueryDx=kNotFound;
     mQueryVector=null;
+    mMetricQueryVector=null;
     mQueryDescriptor=null;
     
     SearchResult theSearchResult=new SearchResult( 
@@ -695,7 +1721,9 @@ public class IndexSearch extends FormatUtils {
         theQueryDescriptor,
         theNearVectorDxs,
         theNearDistance2s,
-        mNDescendCalcs+mNSpreadCalcs);
+        mNDescendCalcs+mNSpreadCalcs,
+        theSettledNDistanceCalcs,
+        mIsPartial);
     
     if (kVerbose) {
       System.out.println("Search summary:");
@@ -708,6 +1736,41 @@ public class IndexSearch extends FormatUtils {
 
     return theSearchResult;
   }
-  
-}
 
+//--------------------------------------------------------------------------------------------------------
+// findSettledNDistanceCalcs
+//
+// For each k, the number of calcs after which the top k near vectors no longer changed
+// A vector is measured once, and a vector in the final result was never pushed out after it was added,
+//   so the top k settled with the calc that measured the last of the final top k
+// Each measured vector is numbered by the calcs done when it was measured, see setMeasured, so vectors
+//   measured without a calc, by bullseye from link distances or as dups, settle with the calc before them
+//--------------------------------------------------------------------------------------------------------
+
+  private void findSettledNDistanceCalcs(int[] inNearVectorDxs, int inSearchNNear, int[] outSettledNDistanceCalcs) {
+
+    // Near vectors sorted by vectorDx, with their rank in the low bits
+    for (int i=0; i<inSearchNNear; i++)
+      mSettleKeys[i]=(((long) inNearVectorDxs[i])<<32)|i;
+    Arrays.sort(mSettleKeys,0,inSearchNNear);
+
+    int theNDistanceCalcs=(int) (mNDescendCalcs+mNSpreadCalcs);
+    for (int i=0; i<inSearchNNear; i++)
+      outSettledNDistanceCalcs[i]=theNDistanceCalcs;
+
+    // Calc number of each near vector measured
+    for (int i=0; i<mNMeasuredVectors; i++) {
+      long theVectorKey=((long) mMeasuredVectorDxs[i])<<32;
+      int theKeyDx=Arrays.binarySearch(mSettleKeys,0,inSearchNNear,theVectorKey);
+      if (theKeyDx<0)
+        theKeyDx=-theKeyDx-1;
+      if ((theKeyDx<inSearchNNear)&&((mSettleKeys[theKeyDx]&0xFFFFFFFF00000000L)==theVectorKey))
+        outSettledNDistanceCalcs[(int) mSettleKeys[theKeyDx]]=mMeasuredNDistanceCalcs[i];
+    }
+
+    // Top k settled when the last of them was measured
+    for (int i=1; i<inSearchNNear; i++)
+      outSettledNDistanceCalcs[i]=Math.max(outSettledNDistanceCalcs[i],outSettledNDistanceCalcs[i-1]);
+  }
+
+}
@@ -0,0 +1,394 @@
+//--------------------------------------------------------------------------------------------------------
+// InlineAccumulator.java
+//--------------------------------------------------------------------------------------------------------
+
+package hiD.search;
+
+import hiD.utils.*;
+
+//--------------------------------------------------------------------------------------------------------
+// InlineAccumulator
+//
+// Collects the K nearest neighbors like Accumulator, but keeps each distance2 next to its vectorDx in
+//   primitive arrays of K entries, instead of reading distances through an array of N floats owned by
+//   the search, so a comparison never leaves the accumulator's own few cache lines
+// Distance2s are passed in with the vectorDx when it is added
+//
+// Ordering is the same as Accumulator - smaller distance2 is nearer, and when distance2s are equal the
+//   smaller vectorDx is nearer - so all layouts keep exactly the same K nearest neighbors
+// Entry 0 is always the worst of the near neighbors, the limit, and higher entries are roughly nearer
+//
+// Layouts
+//   heap     binary heap with iterative sifts - entries are in the same order as Accumulator
+//   heap4    4-ary heap - half as many levels, and the 4 children share a cache line
+//   sorted   sorted array, worst first - inserts shift entries, so it suits small K
+// The system property hiD.accumulator picks the layout, and TimeAccumulator times each layout for a range of K
+// auto is heap - it was fastest or tied at every K measured, the others were never ahead by more than the noise,
+//   and a heap keeps entries in the order Accumulator did, so spread still visits near nodes in the same order
+//--------------------------------------------------------------------------------------------------------
+
+public abstract class InlineAccumulator implements Constants {
+
+//--------------------------------------------------------------------------------------------------------
+// InlineAccumulator consts
+//--------------------------------------------------------------------------------------------------------
+
+  public static final String    kAccumulatorProperty="hiD.accumulator";
+
+  public static final String    kAutoLayout="auto";
+  public static final String    kHeapLayout="heap";
+  public static final String    kHeap4Layout="heap4";
+  public static final String    kSortedLayout="sorted";
+
+  public static final String[]  kLayoutNames={kHeapLayout,kHeap4Layout,kSortedLayout};
+
+//--------------------------------------------------------------------------------------------------------
+// InlineAccumulator member vars
+//--------------------------------------------------------------------------------------------------------
+
+  protected int       mMaxNNear;
+  protected int       mNNear;                // Fills up to MaxNNear
+
+  protected int       mNearestVectorDx;      // Best of the nearest
+  protected float     mNearestDistance2;
+
+  protected int[]     mNearVectorDxs;        // Entry 0 is the worst of the nearest
+  protected float[]   mNearDistance2s;       // Distance2 of each entry, kept inline with its vectorDx
+
+//--------------------------------------------------------------------------------------------------------
+// InlineAccumulator
+//--------------------------------------------------------------------------------------------------------
+
+  protected InlineAccumulator(int inMaxNNear) {
+    mMaxNNear=inMaxNNear;
+    mNNear=0;
+    mNearestVectorDx=kNotFound;
+    mNearestDistance2=Float.MAX_VALUE;
+    mNearVectorDxs=new int[inMaxNNear];
+    mNearDistance2s=new float[inMaxNNear];
+    for (int i=0; i<inMaxNNear; i++) {
+      mNearVectorDxs[i]=kNotFound;
+      mNearDistance2s[i]=Float.MAX_VALUE;
+    }
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// createAccumulator
+//--------------------------------------------------------------------------------------------------------
+
+  public static InlineAccumulator createAccumulator(String inLayoutName, int inMaxNNear) {
+    if (inLayoutName.equals(kAutoLayout))
+      inLayoutName=kHeapLayout;
+
+    if (inLayoutName.equals(kHeapLayout))
+      return new Heap(inMaxNNear);
+    else if (inLayoutName.equals(kHeap4Layout))
+      return new Heap4(inMaxNNear);
+    else if (inLayoutName.equals(kSortedLayout))
+      return new Sorted(inMaxNNear);
+    else
+      throw new RuntimeException("Unknown accumulator layout: "+inLayoutName);
+  }
+
+  public static InlineAccumulator createAccumulator(int inMaxNNear) {
+    return createAccumulator(System.getProperty(kAccumulatorProperty,kAutoLayout),inMaxNNear); }
+
+//--------------------------------------------------------------------------------------------------------
+// gets
+//--------------------------------------------------------------------------------------------------------
+
+  public abstract String getLayoutName();
+
+  public int getMaxNNear() { return mMaxNNear; }
+  public int getNNear() { return mNNear; }
+
+  public int getNearestVectorDx() { return mNearestVectorDx; }
+  public float getNearestDistance2() { return mNearestDistance2; }
+
+  public int getNearLimitVectorDx() { return (mNNear==0)?kNotFound:mNearVectorDxs[0]; }
+  public float getNearLimitDistance2() { return (mNNear<mMaxNNear)?Float.MAX_VALUE:mNearDistance2s[0]; }
+
+  public int getVectorDx(int inDx) { return mNearVectorDxs[inDx]; }
+  public float getDistance2(int inDx) { return mNearDistance2s[inDx]; }
+
+//--------------------------------------------------------------------------------------------------------
+// copyNear
+//
+// Non-destructive and unsorted
+//--------------------------------------------------------------------------------------------------------
+
+  public int copyNear(int[] outVectorDxs) {
+    if (mNNear>outVectorDxs.length)
+      throw new RuntimeException("Mismatch!  Accumulator has too many vectors");
+    System.arraycopy(mNearVectorDxs,0,outVectorDxs,0,mNNear);
+    return mNNear;
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// removeNear
+//
+// Destructive (accumulator reset) and sorted, nearest first
+//--------------------------------------------------------------------------------------------------------
+
+  public abstract int removeNear(int[] outVectorDxs, float[] outDistance2s);
+
+//--------------------------------------------------------------------------------------------------------
+// reset
+//--------------------------------------------------------------------------------------------------------
+
+  public void reset() {
+    mNNear=0;
+    mNearestVectorDx=kNotFound;
+    mNearestDistance2=Float.MAX_VALUE;
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// addVectorDx
+//
+// Returns the same as Accumulator.addVectorDx
+//   kNotFound if the accumulator was not full, or the vector was too far to be kept
+//   otherwise the vectorDx of the worst near vector, which was pushed out to make room
+//--------------------------------------------------------------------------------------------------------
+
+  public abstract int addVectorDx(int inVectorDx, float inDistance2);
+
+  // Nearer, with ties broken by vectorDx
+  protected static boolean isNearer(float inDistance21, int inVectorDx1, float inDistance22, int inVectorDx2) {
+    return (inDistance21<inDistance22)||((inDistance21==inDistance22)&&(inVectorDx1<inVectorDx2)); }
+
+  protected void updateNearest(int inVectorDx, float inDistance2) {
+    if ((mNearestVectorDx==kNotFound)||isNearer(inDistance2,inVectorDx,mNearestDistance2,mNearestVectorDx)) {
+      mNearestVectorDx=inVectorDx;
+      mNearestDistance2=inDistance2;
+    }
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// Inner class Heap
+//
+// Binary heap, worst at the top
+// Sifts move a hole instead of swapping, but make the same moves as Accumulator's recursive swaps
+//--------------------------------------------------------------------------------------------------------
+
+  public static final class Heap extends InlineAccumulator {
+
+    public Heap(int inMaxNNear) { super(inMaxNNear); }
+
+    public String getLayoutName() { return kHeapLayout; }
+
+    public int addVectorDx(int inVectorDx, float inDistance2) {
+      if (mNNear<mMaxNNear) {
+        updateNearest(inVectorDx,inDistance2);
+        siftUp(mNNear++,inVectorDx,inDistance2);
+        return kNotFound;
+      }
+
+      int theLimitVectorDx=mNearVectorDxs[0];
+      if (!isNearer(inDistance2,inVectorDx,mNearDistance2s[0],theLimitVectorDx))
+        return kNotFound;
+
+      updateNearest(inVectorDx,inDistance2);
+      siftDown(0,inVectorDx,inDistance2);
+      return theLimitVectorDx;
+    }
+
+    public int removeNear(int[] outVectorDxs, float[] outDistance2s) {
+      if (mNNear>outVectorDxs.length)
+        throw new RuntimeException("Mismatch!  Accumulator has too many vectors");
+      int theNNear=mNNear;
+      while (mNNear>0) {
+        mNNear--;
+        outVectorDxs[mNNear]=mNearVectorDxs[0];
+        outDistance2s[mNNear]=mNearDistance2s[0];
+        if (mNNear>0)
+          siftDown(0,mNearVectorDxs[mNNear],mNearDistance2s[mNNear]);
+      }
+      reset();
+      return theNNear;
+    }
+
+    // Moves the hole at HeapDx up until the vector fits, then puts the vector in it
+    private void siftUp(int inHeapDx, int inVectorDx, float inDistance2) {
+      int theHeapDx=inHeapDx;
+      while (theHeapDx>0) {
+        int theParentHeapDx=(theHeapDx-1)>>1;
+        if (isNearer(inDistance2,inVectorDx,mNearDistance2s[theParentHeapDx],mNearVectorDxs[theParentHeapDx]))
+          break;
+        mNearVectorDxs[theHeapDx]=mNearVectorDxs[theParentHeapDx];
+        mNearDistance2s[theHeapDx]=mNearDistance2s[theParentHeapDx];
+        theHeapDx=theParentHeapDx;
+      }
+      mNearVectorDxs[theHeapDx]=inVectorDx;
+      mNearDistance2s[theHeapDx]=inDistance2;
+    }
+
+    // Moves the hole at HeapDx down past its worse child until the vector fits, then puts the vector in it
+    private void siftDown(int inHeapDx, int inVectorDx, float inDistance2) {
+      int theHeapDx=inHeapDx;
+      while (true) {
+        int theChildHeapDx=2*theHeapDx+1;
+        if (theChildHeapDx>=mNNear)
+          break;
+        int theRightHeapDx=theChildHeapDx+1;
+        if ((theRightHeapDx<mNNear)&&
+            isNearer(mNearDistance2s[theChildHeapDx],mNearVectorDxs[theChildHeapDx],mNearDistance2s[theRightHeapDx],mNearVectorDxs[theRightHeapDx]))
+          theChildHeapDx=theRightHeapDx;
+        if (!isNearer(inDistance2,inVectorDx,mNearDistance2s[theChildHeapDx],mNearVectorDxs[theChildHeapDx]))
+          break;
+        mNearVectorDxs[theHeapDx]=mNearVectorDxs[theChildHeapDx];
+        mNearDistance2s[theHeapDx]=mNearDistance2s[theChildHeapDx];
+        theHeapDx=theChildHeapDx;
+      }
+      mNearVectorDxs[theHeapDx]=inVectorDx;
+      mNearDistance2s[theHeapDx]=inDistance2;
+    }
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// Inner class Heap4
+//
+// 4-ary heap, worst at the top - children of entry i are 4i+1 to 4i+4
+//--------------------------------------------------------------------------------------------------------
+
+  public static final class Heap4 extends InlineAccumulator {
+
+    public Heap4(int inMaxNNear) { super(inMaxNNear); }
+
+    public String getLayoutName() { return kHeap4Layout; }
+
+    public int addVectorDx(int inVectorDx, float inDistance2) {
+      if (mNNear<mMaxNNear) {
+        updateNearest(inVectorDx,inDistance2);
+        siftUp(mNNear++,inVectorDx,inDistance2);
+        return kNotFound;
+      }
+
+      int theLimitVectorDx=mNearVectorDxs[0];
+      if (!isNearer(inDistance2,inVectorDx,mNearDistance2s[0],theLimitVectorDx))
+        return kNotFound;
+
+      updateNearest(inVectorDx,inDistance2);
+      siftDown(0,inVectorDx,inDistance2);
+      return theLimitVectorDx;
+    }
+
+    public int removeNear(int[] outVectorDxs, float[] outDistance2s) {
+      if (mNNear>outVectorDxs.length)
+        throw new RuntimeException("Mismatch!  Accumulator has too many vectors");
+      int theNNear=mNNear;
+      while (mNNear>0) {
+        mNNear--;
+        outVectorDxs[mNNear]=mNearVectorDxs[0];
+        outDistance2s[mNNear]=mNearDistance2s[0];
+        if (mNNear>0)
+          siftDown(0,mNearVectorDxs[mNNear],mNearDistance2s[mNNear]);
+      }
+      reset();
+      return theNNear;
+    }
+
+    private void siftUp(int inHeapDx, int inVectorDx, float inDistance2) {
+      int theHeapDx=inHeapDx;
+      while (theHeapDx>0) {
+        int theParentHeapDx=(theHeapDx-1)>>2;
+        if (isNearer(inDistance2,inVectorDx,mNearDistance2s[theParentHeapDx],mNearVectorDxs[theParentHeapDx]))
+          break;
+        mNearVectorDxs[theHeapDx]=mNearVectorDxs[theParentHeapDx];
+        mNearDistance2s[theHeapDx]=mNearDistance2s[theParentHeapDx];
+        theHeapDx=theParentHeapDx;
+      }
+      mNearVectorDxs[theHeapDx]=inVectorDx;
+      mNearDistance2s[theHeapDx]=inDistance2;
+    }
+
+    private void siftDown(int inHeapDx, int inVectorDx, float inDistance2) {
+      int theHeapDx=inHeapDx;
+      while (true) {
+        int theFirstChildHeapDx=4*theHeapDx+1;
+        if (theFirstChildHeapDx>=mNNear)
+          break;
+
+        // Worst of up to 4 children
+        int theEndChildHeapDx=Math.min(mNNear,theFirstChildHeapDx+4);
+        int theChildHeapDx=theFirstChildHeapDx;
+        float theChildDistance2=mNearDistance2s[theChildHeapDx];
+        int theChildVectorDx=mNearVectorDxs[theChildHeapDx];
+        for (int i=theFirstChildHeapDx+1; i<theEndChildHeapDx; i++)
+          if (isNearer(theChildDistance2,theChildVectorDx,mNearDistance2s[i],mNearVectorDxs[i])) {
+            theChildHeapDx=i;
+            theChildDistance2=mNearDistance2s[i];
+            theChildVectorDx=mNearVectorDxs[i];
+          }
+
+        if (!isNearer(inDistance2,inVectorDx,theChildDistance2,theChildVectorDx))
+          break;
+        mNearVectorDxs[theHeapDx]=theChildVectorDx;
+        mNearDistance2s[theHeapDx]=theChildDistance2;
+        theHeapDx=theChildHeapDx;
+      }
+      mNearVectorDxs[theHeapDx]=inVectorDx;
+      mNearDistance2s[theHeapDx]=inDistance2;
+    }
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// Inner class Sorted
+//
+// Sorted array, worst first and nearest last
+// An accepted vector shifts the worse entries down one place, so its cost grows with K, but the loop is
+//   a short predictable scan with no index arithmetic
+//--------------------------------------------------------------------------------------------------------
+
+  public static final class Sorted extends InlineAccumulator {
+
+    public Sorted(int inMaxNNear) { super(inMaxNNear); }
+
+    public String getLayoutName() { return kSortedLayout; }
+
+    public int addVectorDx(int inVectorDx, float inDistance2) {
+
+      // Not full - shift nearer entries up one place to make room
+      if (mNNear<mMaxNNear) {
+        updateNearest(inVectorDx,inDistance2);
+        int i=mNNear++;
+        while ((i>0)&&isNearer(mNearDistance2s[i-1],mNearVectorDxs[i-1],inDistance2,inVectorDx)) {
+          mNearVectorDxs[i]=mNearVectorDxs[i-1];
+          mNearDistance2s[i]=mNearDistance2s[i-1];
+          i--;
+        }
+        mNearVectorDxs[i]=inVectorDx;
+        mNearDistance2s[i]=inDistance2;
+        return kNotFound;
+      }
+
+      int theLimitVectorDx=mNearVectorDxs[0];
+      if (!isNearer(inDistance2,inVectorDx,mNearDistance2s[0],theLimitVectorDx))
+        return kNotFound;
+
+      // Full - worst entry drops off, and worse entries shift down one place to make room
+      updateNearest(inVectorDx,inDistance2);
+      int i=0;
+      while ((i+1<mNNear)&&isNearer(inDistance2,inVectorDx,mNearDistance2s[i+1],mNearVectorDxs[i+1])) {
+        mNearVectorDxs[i]=mNearVectorDxs[i+1];
+        mNearDistance2s[i]=mNearDistance2s[i+1];
+        i++;
+      }
+      mNearVectorDxs[i]=inVectorDx;
+      mNearDistance2s[i]=inDistance2;
+      return theLimitVectorDx;
+    }
+
+    public int removeNear(int[] outVectorDxs, float[] outDistance2s) {
+      if (mNNear>outVectorDxs.length)
+        throw new RuntimeException("Mismatch!  Accumulator has too many vectors");
+      int theNNear=mNNear;
+      for (int i=0; i<theNNear; i++) {
+        outVectorDxs[i]=mNearVectorDxs[theNNear-1-i];
+        outDistance2s[i]=mNearDistance2s[theNNear-1-i];
+      }
+      reset();
+      return theNNear;
+    }
+  }
+
+}
@@ -0,0 +1,292 @@
+//--------------------------------------------------------------------------------------------------------
+// ResultCache.java
+//--------------------------------------------------------------------------------------------------------
+
+package hiD.search;
+
+import java.util.*;
+
+import hiD.data.*;
+import hiD.utils.*;
+
+//--------------------------------------------------------------------------------------------------------
+// ResultCache
+//
+// Bounded cache of search results, so a repeated query costs a hash lookup instead of a search
+// Keyed by the bytes of the query vector, the number of near neighbors and whether dups are included, and by
+//   what was searched - the Index for an IndexSearch, the DataSet for a BruteSearch - so one cache can be
+//   shared by several searchers without mixing their results
+// An IndexSearch also keys by the settings that change its results - its spread factor, short circuit distance,
+//   spread threads and spread batch size - and a BruteSearch, which has none of them, by 0
+// Query vectors are compared exactly, not just by hash, so a hit is always the result of the same query
+// Least recently used results are evicted when the cache has more than MaxNEntries results, or its results
+//   take more than MaxNBytes
+// Methods are synchronized, so searchers on several threads can share a cache
+// Partial results, see SearchBudget, are not cached
+//--------------------------------------------------------------------------------------------------------
+
+public class ResultCache extends FormatUtils {
+
+//--------------------------------------------------------------------------------------------------------
+// ResultCache consts
+//--------------------------------------------------------------------------------------------------------
+
+  private static final long      kFnvOffset=0xcbf29ce484222325L;
+  private static final long      kFnvPrime=0x100000001b3L;
+
+  private static final int       kEntryOverheadNBytes=96;    // Entry, key and map node objects, roughly
+
+//--------------------------------------------------------------------------------------------------------
+// ResultCache member vars
+//--------------------------------------------------------------------------------------------------------
+
+  private int             mMaxNEntries;
+  private long            mMaxNBytes;
+
+  private LinkedHashMap   mEntries;                // Key to Entry, in access order - eldest is least recently used
+  private long            mNBytes;
+  private Key             mProbeKey;               // Reused for lookups, under the lock
+
+  private long            mNHits;
+  private long            mNMisses;
+  private long            mNEvictions;
+
+//--------------------------------------------------------------------------------------------------------
+// ResultCache 
+//--------------------------------------------------------------------------------------------------------
+
+  public ResultCache(int inMaxNEntries, long inMaxNBytes) {
+    if ((inMaxNEntries<1)||(inMaxNBytes<1))
+      throw new RuntimeException("Result cache too small");
+    mMaxNEntries=inMaxNEntries;
+    mMaxNBytes=inMaxNBytes;
+    mEntries=new LinkedHashMap(16,0.75f,true);
+    mNBytes=0;
+    mProbeKey=new Key();
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// gets
+//--------------------------------------------------------------------------------------------------------
+
+  public int getMaxNEntries() { return mMaxNEntries; }
+  public long getMaxNBytes() { return mMaxNBytes; }
+
+  public synchronized int getNEntries() { return mEntries.size(); }
+  public synchronized long getNBytes() { return mNBytes; }
+  public synchronized long getNHits() { return mNHits; }
+  public synchronized long getNMisses() { return mNMisses; }
+  public synchronized long getNEvictions() { return mNEvictions; }
+
+  public synchronized double getHitRate() { 
+    return ((mNHits+mNMisses)==0)?0:mNHits/(double) (mNHits+mNMisses); }
+
+  public synchronized void clear() {
+    mEntries.clear();
+    mNBytes=0;
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// get
+//
+// Cached result of the query, or null on a miss
+// The near vectors are copied into the arrays of SearchResult, the way the searches reuse them, and the
+//   result reports no distance calcs
+//--------------------------------------------------------------------------------------------------------
+
+  public synchronized SearchResult get(
+      Object         inSearched,
+      int            inSearchNNear,
+      boolean        inIncludeDups,
+      float          inSpreadFactor,
+      float          inShortCircuitDistance,
+      int            inNSpreadThreads,
+      int            inSpreadBatchSize,
+      DataSet        inDataSet,
+      int            inQueryDx,
+      float[]        inQueryVector,
+      String         inQueryDescriptor,
+      SearchResult   ioSearchResult) {
+
+    mProbeKey.set(inSearched,inSearchNNear,inIncludeDups,inSpreadFactor,inShortCircuitDistance,
+        inNSpreadThreads,inSpreadBatchSize,inQueryVector,hashVector(inQueryVector));
+    Entry theEntry=(Entry) mEntries.get(mProbeKey);
+    mProbeKey.set(null,0,false,0,0,0,0,null,0);
+    if (theEntry==null) {
+      mNMisses++;
+      return null;
+    }
+    mNHits++;
+
+    int theNNear=theEntry.mNearVectorDxs.length;
+    int[] theNearVectorDxs=ioSearchResult.getNearVectorDxs();
+    float[] theNearDistance2s=ioSearchResult.getNearDistance2s();
+    if (theNearVectorDxs.length<theNNear) {
+      theNearVectorDxs=new int[theNNear];
+      theNearDistance2s=new float[theNNear];
+    }
+    System.arraycopy(theEntry.mNearVectorDxs,0,theNearVectorDxs,0,theNNear);
+    System.arraycopy(theEntry.mNearDistance2s,0,theNearDistance2s,0,theNNear);
+
+    return new SearchResult(
+        inDataSet,
+        theNNear,
+        inIncludeDups,
+        inQueryDx,
+        inQueryVector,
+        inQueryDescriptor,
+        theNearVectorDxs,
+        theNearDistance2s,
+        0);
+  }
+
+  public SearchResult get(
+      Object         inSearched,
+      int            inSearchNNear,
+      boolean        inIncludeDups,
+      DataSet        inDataSet,
+      int            inQueryDx,
+      float[]        inQueryVector,
+      String         inQueryDescriptor,
+      SearchResult   ioSearchResult) {
+    return get(inSearched,inSearchNNear,inIncludeDups,0,0,0,0,inDataSet,inQueryDx,inQueryVector,inQueryDescriptor,ioSearchResult); }
+
+//--------------------------------------------------------------------------------------------------------
+// put
+//
+// Keeps a compact copy of the query vector and the near vectors of the result
+//--------------------------------------------------------------------------------------------------------
+
+  public synchronized void put(
+      Object         inSearched,
+      int            inSearchNNear,
+      float          inSpreadFactor,
+      float          inShortCircuitDistance,
+      int            inNSpreadThreads,
+      int            inSpreadBatchSize,
+      SearchResult   inSearchResult) {
+    if (inSearchResult.getIsPartial())
+      return;
+
+    float[] theQueryVector=inSearchResult.getQueryVector();
+    Entry theEntry=new Entry(
+        new Key(inSearched,inSearchNNear,inSearchResult.getIncludeDups(),inSpreadFactor,inShortCircuitDistance,
+            inNSpreadThreads,inSpreadBatchSize,theQueryVector.clone(),hashVector(theQueryVector)),
+        Arrays.copyOf(inSearchResult.getNearVectorDxs(),inSearchResult.getSearchNNear()),
+        Arrays.copyOf(inSearchResult.getNearDistance2s(),inSearchResult.getSearchNNear()));
+    if (theEntry.mNBytes>mMaxNBytes)
+      return;
+
+    Entry theOldEntry=(Entry) mEntries.put(theEntry.mKey,theEntry);
+    if (theOldEntry!=null)
+      mNBytes-=theOldEntry.mNBytes;
+    mNBytes+=theEntry.mNBytes;
+
+    // Evict least recently used
+    Iterator theIterator=mEntries.values().iterator();
+    while ((mEntries.size()>mMaxNEntries)||(mNBytes>mMaxNBytes)) {
+      Entry theEldestEntry=(Entry) theIterator.next();
+      theIterator.remove();
+      mNBytes-=theEldestEntry.mNBytes;
+      mNEvictions++;
+    }
+  }
+
+  public void put(Object inSearched, int inSearchNNear, SearchResult inSearchResult) {
+    put(inSearched,inSearchNNear,0,0,0,0,inSearchResult); }
+
+//--------------------------------------------------------------------------------------------------------
+// hashVector
+//
+// 64 bit FNV-1a over the bits of the components
+//--------------------------------------------------------------------------------------------------------
+
+  public static long hashVector(float[] inVector) {
+    long theHash=kFnvOffset;
+    for (int i=0; i<inVector.length; i++) {
+      int theBits=Float.floatToRawIntBits(inVector[i]);
+      for (int b=0; b<4; b++) {
+        theHash^=(theBits&0xff);
+        theHash*=kFnvPrime;
+        theBits>>>=8;
+      }
+    }
+    return theHash;
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// Inner class Key
+//--------------------------------------------------------------------------------------------------------
+
+  private static final class Key {
+
+    Object    mSearched;
+    int       mSearchNNear;
+    boolean   mIncludeDups;
+    float     mSpreadFactor;
+    float     mShortCircuitDistance;
+    int       mNSpreadThreads;
+    int       mSpreadBatchSize;
+    float[]   mQueryVector;
+    long      mHash;
+
+    Key() {}
+
+    Key(Object inSearched, int inSearchNNear, boolean inIncludeDups, float inSpreadFactor, float inShortCircuitDistance,
+        int inNSpreadThreads, int inSpreadBatchSize, float[] inQueryVector, long inHash) {
+      set(inSearched,inSearchNNear,inIncludeDups,inSpreadFactor,inShortCircuitDistance,
+          inNSpreadThreads,inSpreadBatchSize,inQueryVector,inHash); }
+
+    void set(Object inSearched, int inSearchNNear, boolean inIncludeDups, float inSpreadFactor, float inShortCircuitDistance,
+        int inNSpreadThreads, int inSpreadBatchSize, float[] inQueryVector, long inHash) {
+      mSearched=inSearched;
+      mSearchNNear=inSearchNNear;
+      mIncludeDups=inIncludeDups;
+      mSpreadFactor=inSpreadFactor;
+      mShortCircuitDistance=inShortCircuitDistance;
+      mNSpreadThreads=inNSpreadThreads;
+      mSpreadBatchSize=inSpreadBatchSize;
+      mQueryVector=inQueryVector;
+      mHash=inHash;
+    }
+
+    public int hashCode() { return (int) (mHash^(mHash>>>32))+31*mSearchNNear; }
+
+    // Searched is compared by identity
+    // Query vectors compare by bits, so -0 and 0 are different queries, which only costs a miss
+    public boolean equals(Object inObject) {
+      Key theKey=(Key) inObject;
+      return (mHash==theKey.mHash)&&
+          (mSearched==theKey.mSearched)&&
+          (mSearchNNear==theKey.mSearchNNear)&&
+          (mIncludeDups==theKey.mIncludeDups)&&
+          (mSpreadFactor==theKey.mSpreadFactor)&&
+          (mShortCircuitDistance==theKey.mShortCircuitDistance)&&
+          (mNSpreadThreads==theKey.mNSpreadThreads)&&
+          (mSpreadBatchSize==theKey.mSpreadBatchSize)&&
+          Arrays.equals(mQueryVector,theKey.mQueryVector);
+    }
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// Inner class Entry
+//--------------------------------------------------------------------------------------------------------
+
+  private static final class Entry {
+
+    Key       mKey;
+    int[]     mNearVectorDxs;
+    float[]   mNearDistance2s;
+    long      mNBytes;
+
+    Entry(Key inKey, int[] inNearVectorDxs, float[] inNearDistance2s) {
+      mKey=inKey;
+      mNearVectorDxs=inNearVectorDxs;
+      mNearDistance2s=inNearDistance2s;
+      mNBytes=kEntryOverheadNBytes+
+          ConversionUtils.kFloatMemory*(long) mKey.mQueryVector.length+
+          (ConversionUtils.kIntMemory+ConversionUtils.kFloatMemory)*(long) mNearVectorDxs.length;
+    }
+  }
+
+}
@@ -38,7 +38,19 @@ public class SearchAccuracyTest extends FormatUtils {
         inIncludeDups,
         inQuerySet);
 
-    int theNCountRows=inSearchNNear+kNExtraRows;
+    return testAccuracy(theIndexResultSet,inQuerySet,inBruteResultSet);
+  }
+
+
+  // Counts missing nearest neighbors in searches already done
+  // Row k of the table is the top k of each search, so one search for the largest K covers every smaller k
+  public static double[] testAccuracy(
+      SearchResultSet   inIndexResultSet,
+      DataSet           inQuerySet,
+      SearchResultSet   inBruteResultSet) throws Exception {
+
+    SearchResultSet theIndexResultSet=inIndexResultSet;
+    int theNCountRows=inIndexResultSet.getSearchNNear()+kNExtraRows;
     double[] theExpectedNMissings=new double[theNCountRows];
     double[][] theExpectedFractionss=new double[kNCountCols][theNCountRows];
 
@@ -118,6 +130,33 @@ public class SearchAccuracyTest extends FormatUtils {
     return theExpectedNMissings;
   }
 
+//--------------------------------------------------------------------------------------------------------
+// findRecall
+//
+// Fraction of the top NNear index results no further than the NNear-th brute force result, so ties count 
+//   as found - no table is logged, for sweeps of many searches
+//--------------------------------------------------------------------------------------------------------
+
+  public static double findRecall(
+      SearchResultSet   inIndexResultSet,
+      SearchResultSet   inBruteResultSet,
+      int               inNNear) {
+
+    long theNFound=0;
+    long theNTrue=0;
+    for (int i=0; i<inIndexResultSet.getNQueryVectors(); i++) {
+      SearchResult theBruteSearchResult=inBruteResultSet.getSearchResult(i);
+      SearchResult theIndexSearchResult=inIndexResultSet.getSearchResult(i);
+      int theNNear=Math.min(inNNear,theBruteSearchResult.getSearchNNear());
+      float theLimitDistance2=theBruteSearchResult.getNearDistance2(theNNear-1);
+      for (int k=0; k<Math.min(theNNear,theIndexSearchResult.getSearchNNear()); k++)
+        if (theIndexSearchResult.getNearDistance2(k)<=theLimitDistance2)
+          theNFound++;
+      theNTrue+=theNNear;
+    }
+    return theNFound/(double) theNTrue;
+  }
+
 //--------------------------------------------------------------------------------------------------------
 // findSearchNNearForRecallAtN
 //--------------------------------------------------------------------------------------------------------
@@ -228,7 +267,7 @@ public class SearchAccuracyTest extends FormatUtils {
     log("  Can take a while");
 
     int theBruteSearchNNear=Math.min(inIndex.getNVectors(),inRecallN+200);
-    SearchResultSet theBruteResultSet=BruteSearch.searchSet(
+    SearchResultSet theBruteResultSet=BatchBruteSearch.searchSet(
         inIndex.getDataSet(),
         theBruteSearchNNear,
         inIncludeDups,
@@ -243,6 +282,81 @@ public class SearchAccuracyTest extends FormatUtils {
         theBruteResultSet);
   }
 
+//--------------------------------------------------------------------------------------------------------
+// testAccuracyAtNNears
+//
+// Recall at several NNears from one search per query for the largest NNear, with the avg calcs each top
+//   NNear took to settle, see IndexSearch
+// Recall at a smaller NNear is for the top of the larger search, which is usually better than a search
+//   for only that NNear, and the settled calcs show how much of the search the smaller NNear needed
+//--------------------------------------------------------------------------------------------------------
+
+  public static double[] testAccuracyAtNNears(
+      Index             inIndex, 
+      DataSet           inQuerySet, 
+      boolean           inIncludeDups,
+      int[]             inNNears,
+      SearchResultSet   inBruteResultSet) throws Exception {
+
+    int theMaxNNear=0;
+    for (int i=0; i<inNNears.length; i++)
+      theMaxNNear=Math.max(theMaxNNear,inNNears[i]);
+
+    log("\n\nIndex Search Accuracy Test at Several NNears");
+    log("  Index holds IndexNNear, Ki = "+inIndex.getIndexNNear()+"NN");
+    log("  One search per query for SearchNNear, Ks = "+theMaxNNear+"NN");
+    log("  "+(inIncludeDups?"Includes":"Does NOT include")+" duplicates");
+    log("  "+inQuerySet.getNVectors()+" queries from "+inQuerySet.getStandardFilename());
+
+    System.gc();
+    SearchResultSet theIndexResultSet=IndexSearch.searchSet(
+        inIndex,
+        theMaxNNear,
+        inIncludeDups,
+        inQuerySet,
+        true);
+    double[] theExpectedNMissings=testAccuracy(theIndexResultSet,inQuerySet,inBruteResultSet);
+
+    double[] theRecalls=new double[inNNears.length];
+    double theAvgNDistanceCalcs=theIndexResultSet.getAvgNDistanceCalcs();
+    log("\n      NNear      Recall   Settled Calcs   of Search");
+    for (int i=0; i<inNNears.length; i++) {
+      int theNNear=inNNears[i];
+      theRecalls[i]=1.0-theExpectedNMissings[theNNear-1]/theNNear;
+      double theAvgSettledNDistanceCalcs=theIndexResultSet.getAvgSettledNDistanceCalcs(theNNear);
+      log(leftPad(theNNear,11)+
+          leftPad(formatPercent(theRecalls[i]),12)+
+          leftPad(formatDouble(theAvgSettledNDistanceCalcs,1),16)+
+          leftPad(formatPercent(theAvgSettledNDistanceCalcs/theAvgNDistanceCalcs),12));
+    }
+    return theRecalls;
+  }
+
+
+
+  public static double[] testAccuracyAtNNears(
+      Index     inIndex, 
+      DataSet   inQuerySet, 
+      boolean   inIncludeDups,
+      int[]     inNNears) throws Exception {
+
+    int theMaxNNear=0;
+    for (int i=0; i<inNNears.length; i++)
+      theMaxNNear=Math.max(theMaxNNear,inNNears[i]);
+
+    log("\n\nFirst, perform brute force search to get true nearest neighbors");
+    log("  Can take a while");
+
+    int theBruteSearchNNear=Math.min(inIndex.getNVectors(),theMaxNNear+2*kNExtraRows);
+    SearchResultSet theBruteResultSet=BatchBruteSearch.searchSet(
+        inIndex.getDataSet(),
+        theBruteSearchNNear,
+        inIncludeDups,
+        inQuerySet);
+
+    return testAccuracyAtNNears(inIndex,inQuerySet,inIncludeDups,inNNears,theBruteResultSet);
+  }
+
 //--------------------------------------------------------------------------------------------------------
 // run 
 //--------------------------------------------------------------------------------------------------------
@@ -252,7 +366,8 @@ public class SearchAccuracyTest extends FormatUtils {
       String  inQuerySetFilename, 
       String  inIncludeDups,
       String  inReall, 
-      String  inRecallN) throws Exception {
+      String  inRecallN,
+      String  inNNears) throws Exception {
 
     long theStartTime=System.currentTimeMillis();
     log(reportHeader("Search Accuracy Test",theStartTime));  
@@ -285,7 +400,15 @@ public class SearchAccuracyTest extends FormatUtils {
       theRecallN=Integer.parseInt(inRecallN);
     }
 
-    findSearchNNearForRecallAtN(theIndex,theQuerySet,theIncludeDups,theRecall,theRecallN);
+    // A list of NNears measures them all with one search per query, instead of scanning for the best SearchNNear
+    if (inNNears!=null) {
+      String[] theFields=inNNears.split(",");
+      int[] theNNears=new int[theFields.length];
+      for (int i=0; i<theFields.length; i++)
+        theNNears[i]=Integer.parseInt(theFields[i].trim());
+      testAccuracyAtNNears(theIndex,theQuerySet,theIncludeDups,theNNears);
+    } else
+      findSearchNNearForRecallAtN(theIndex,theQuerySet,theIncludeDups,theRecall,theRecallN);
 
     log(reportFooter(theStartTime));
     Thread.sleep(3000);
@@ -312,7 +435,10 @@ public class SearchAccuracyTest extends FormatUtils {
       String theRecallN=null;
       if (inArgs.length>4)
         theRecallN=inArgs[4];
-      run(theIndexFilename,theQuerySetFilename,theIncludeDups,theRecall,theRecallN);
+      String theNNears=null;
+      if (inArgs.length>5)
+        theNNears=inArgs[5];
+      run(theIndexFilename,theQuerySetFilename,theIncludeDups,theRecall,theRecallN,theNNears);
     } catch (Throwable e) {
       e.printStackTrace(System.err);
       try { Thread.sleep(3000); } catch (Exception e2) { }
@@ -0,0 +1,113 @@
+//--------------------------------------------------------------------------------------------------------
+// SearchBudget.java
+//--------------------------------------------------------------------------------------------------------
+
+package hiD.search;
+
+import hiD.utils.*;
+
+//--------------------------------------------------------------------------------------------------------
+// SearchBudget
+//
+// Per query limits on an IndexSearch - distance calcs, spreads, and time
+// A search that runs out of any of them stops where it is, and returns the near vectors it has found so far,
+//   flagged as partial, see SearchResult.getIsPartial
+// Bounds the tail latency of hard queries, at the cost of recall on those queries
+//
+// Calcs are checked before every calc, spreads before every spread, and time before every descend, and
+//   before spreading each near vector, so a search can run over its time by about the time of one of those
+//--------------------------------------------------------------------------------------------------------
+
+public class SearchBudget extends FormatUtils {
+
+//--------------------------------------------------------------------------------------------------------
+// SearchBudget consts
+//--------------------------------------------------------------------------------------------------------
+
+  public static final long           kUnlimited=Long.MAX_VALUE;
+
+  public static final SearchBudget   kNoBudget=new SearchBudget(kUnlimited,kUnlimited,kUnlimited);
+
+//--------------------------------------------------------------------------------------------------------
+// SearchBudget member vars
+//--------------------------------------------------------------------------------------------------------
+
+  private long    mMaxNDistanceCalcs;
+  private long    mMaxNSpreads;
+  private long    mMaxNanos;            // From the start of each search
+
+//--------------------------------------------------------------------------------------------------------
+// SearchBudget
+//--------------------------------------------------------------------------------------------------------
+
+  // Use kUnlimited for no limit
+  public SearchBudget(long inMaxNDistanceCalcs, long inMaxNSpreads, long inMaxNanos) {
+    if ((inMaxNDistanceCalcs<1)||(inMaxNSpreads<0)||(inMaxNanos<1))
+      throw new RuntimeException("Search budget too small");
+    mMaxNDistanceCalcs=inMaxNDistanceCalcs;
+    mMaxNSpreads=inMaxNSpreads;
+    mMaxNanos=inMaxNanos;
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// gets
+//--------------------------------------------------------------------------------------------------------
+
+  public long getMaxNDistanceCalcs() { return mMaxNDistanceCalcs; }
+  public long getMaxNSpreads() { return mMaxNSpreads; }
+  public long getMaxNanos() { return mMaxNanos; }
+  
+  public boolean getIsUnlimited() { 
+    return (mMaxNDistanceCalcs==kUnlimited)&&(mMaxNSpreads==kUnlimited)&&(mMaxNanos==kUnlimited); }
+
+  // Deadline for a search started at StartNanos, in System.nanoTime
+  public long getDeadline(long inStartNanos) { 
+    return (mMaxNanos==kUnlimited)?kUnlimited:inStartNanos+mMaxNanos; }
+
+  public String toString() {
+    if (getIsUnlimited())
+      return "none";
+    StringBuffer theBuffer=new StringBuffer();
+    if (mMaxNDistanceCalcs!=kUnlimited)
+      theBuffer.append(mMaxNDistanceCalcs+" calcs");
+    if (mMaxNSpreads!=kUnlimited)
+      theBuffer.append(((theBuffer.length()>0)?", ":"")+mMaxNSpreads+" spreads");
+    if (mMaxNanos!=kUnlimited)
+      theBuffer.append(((theBuffer.length()>0)?", ":"")+formatDuration(mMaxNanos/1e6));
+    return theBuffer.toString();
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// parseBudget
+//
+// Comma separated limits, any of  calcs=N  spreads=N  micros=N  as in  calcs=5000,micros=2000
+// Null or none is no budget
+//--------------------------------------------------------------------------------------------------------
+
+  public static SearchBudget parseBudget(String inBudget) {
+    if ((inBudget==null)||inBudget.equals("none"))
+      return kNoBudget;
+
+    long theMaxNDistanceCalcs=kUnlimited;
+    long theMaxNSpreads=kUnlimited;
+    long theMaxNanos=kUnlimited;
+    String[] theFields=inBudget.split(",");
+    for (int i=0; i<theFields.length; i++) {
+      String[] theNameValue=theFields[i].trim().split("=");
+      if (theNameValue.length!=2)
+        throw new RuntimeException("Search budget field not name=value: "+theFields[i]);
+      long theValue=Long.parseLong(theNameValue[1].trim());
+      String theName=theNameValue[0].trim();
+      if (theName.equals("calcs"))
+        theMaxNDistanceCalcs=theValue;
+      else if (theName.equals("spreads"))
+        theMaxNSpreads=theValue;
+      else if (theName.equals("micros"))
+        theMaxNanos=theValue*1000;
+      else
+        throw new RuntimeException("Unknown search budget field: "+theName);
+    }
+    return new SearchBudget(theMaxNDistanceCalcs,theMaxNSpreads,theMaxNanos);
+  }
+
+}
@@ -26,6 +26,8 @@ public class SearchResult extends FormatUtils {
   private int[]     mNearVectorDxs;
   private float[]   mNearDistance2s;
   private long      mNDistanceCalcs;
+  private int[]     mSettledNDistanceCalcs;    // By rank, calcs at which the top rank+1 settled - null unless tracked
+  private boolean   mIsPartial;                // Search ran out of budget before it was done, see SearchBudget
 
 //--------------------------------------------------------------------------------------------------------
 // SearchResult 
@@ -41,7 +43,9 @@ public class SearchResult extends FormatUtils {
       String      inQueryDescriptor,
       int[]       inNearVectorDxs, 
       float[]     inNearDistance2s, 
-      long        inNDistanceCalcs) {
+      long        inNDistanceCalcs,
+      int[]       inSettledNDistanceCalcs,
+      boolean     inIsPartial) {
     mDataSet=inDataSet;
     mQueryDx=inQueryDx;
     mQueryVector=inQueryVector;
@@ -51,6 +55,54 @@ public class SearchResult extends FormatUtils {
     mNearVectorDxs=inNearVectorDxs;
     mNearDistance2s=inNearDistance2s;
     mNDistanceCalcs=inNDistanceCalcs;
+    mSettledNDistanceCalcs=inSettledNDistanceCalcs;
+    mIsPartial=inIsPartial;
+  }
+
+  public SearchResult(
+      DataSet     inDataSet,
+      int         inSearchNNear,
+      boolean     inIncludeDups,
+      int         inQueryDx,
+      float[]     inQueryVector,
+      String      inQueryDescriptor,
+      int[]       inNearVectorDxs, 
+      float[]     inNearDistance2s, 
+      long        inNDistanceCalcs,
+      int[]       inSettledNDistanceCalcs) {
+    this(inDataSet,
+         inSearchNNear,
+         inIncludeDups,
+         inQueryDx,
+         inQueryVector,
+         inQueryDescriptor,
+         inNearVectorDxs,
+         inNearDistance2s,
+         inNDistanceCalcs,
+         inSettledNDistanceCalcs,
+         false);
+  }
+
+  public SearchResult(
+      DataSet     inDataSet,
+      int         inSearchNNear,
+      boolean     inIncludeDups,
+      int         inQueryDx,
+      float[]     inQueryVector,
+      String      inQueryDescriptor,
+      int[]       inNearVectorDxs, 
+      float[]     inNearDistance2s, 
+      long        inNDistanceCalcs) {
+    this(inDataSet,
+         inSearchNNear,
+         inIncludeDups,
+         inQueryDx,
+         inQueryVector,
+         inQueryDescriptor,
+         inNearVectorDxs,
+         inNearDistance2s,
+         inNDistanceCalcs,
+         null);
   }
   
   // Empty result
@@ -65,6 +117,19 @@ public class SearchResult extends FormatUtils {
          new float[inDataSet.getNVectors()],
          kNotFound);
   }
+
+  // Empty result with room for MaxNNear near vectors
+  public SearchResult(DataSet inDataSet, int inMaxNNear) {
+    this(inDataSet,
+         0,
+         false,
+         kNotFound,
+         null,
+         null,
+         new int[inMaxNNear],
+         new float[inMaxNNear],
+         kNotFound);
+  }
     
 //--------------------------------------------------------------------------------------------------------
 // gets
@@ -88,9 +153,50 @@ public class SearchResult extends FormatUtils {
   public float getFurthestDistance2() { return mNearDistance2s[mSearchNNear-1]; }  
   public float getNearDistance2(int inRank) { return mNearDistance2s[inRank]; }  
   public float[] getNearDistance2s() { return mNearDistance2s; }  
+
+  // Get the dataset metric's own measure for rank - distance2 for l2, similarity for cosine and ip, see Metric
+  public double getNearScore(int inRank) { return mDataSet.getMetric().toScore(mQueryVector,mNearDistance2s[inRank]); }
  
   public long getNDistanceCalcs() { return mNDistanceCalcs; }  
 
+  // Partial results are the best found before the search ran out of budget, and can hold fewer than SearchNNear
+  public boolean getIsPartial() { return mIsPartial; }
+
+  // Calcs the search had done when its top NNear stopped changing - only when the search tracked them, see IndexSearch
+  public boolean getHasSettledNDistanceCalcs() { return (mSettledNDistanceCalcs!=null); }
+  public int[] getSettledNDistanceCalcs() { return mSettledNDistanceCalcs; }
+  public int getSettledNDistanceCalcs(int inNNear) { 
+    if (mSettledNDistanceCalcs==null)
+      throw new RuntimeException("Search did not track settled calcs");
+    return mSettledNDistanceCalcs[Math.min(inNNear,mSearchNNear)-1]; 
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// getTopNear
+//
+// Top NNear of this result, without copying - shares the near arrays with this result
+// The near vectors are sorted, so the top NNear of a search for K are the same as a top NNear that only
+//   kept NNear during the same search, and a search for the largest K serves every smaller K at once
+// A search for only NNear does fewer calcs, and can find fewer of the true nearest neighbors
+//--------------------------------------------------------------------------------------------------------
+
+  public SearchResult getTopNear(int inNNear) {
+    if (inNNear>=mSearchNNear)
+      return this;
+    return new SearchResult(
+        mDataSet,
+        inNNear,
+        mIncludeDups,
+        mQueryDx,
+        mQueryVector,
+        mQueryDescriptor,
+        mNearVectorDxs,
+        mNearDistance2s,
+        mNDistanceCalcs,
+        mSettledNDistanceCalcs,
+        mIsPartial);
+  }
+
 //--------------------------------------------------------------------------------------------------------
 // show
 //--------------------------------------------------------------------------------------------------------
@@ -139,6 +245,8 @@ public class SearchResult extends FormatUtils {
           "      "+((theDescriptor!=null)?theDescriptor:""));
     }
     log("  NDistanceCalcs:  "+mNDistanceCalcs);
+    if (mIsPartial)
+      log("  Partial - search ran out of budget");
   }
 
 }
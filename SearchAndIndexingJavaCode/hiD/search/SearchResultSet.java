@@ -4,6 +4,8 @@
 
 package hiD.search;
 
+import java.util.Arrays;
+
 import hiD.data.*;
 import hiD.index.*;
 import hiD.utils.*;
@@ -26,6 +28,9 @@ public class SearchResultSet extends FormatUtils {
   
   private int[][]     mNearVectorDxss;
   private float[][]   mNearDistance2ss;
+  private int[][]     mSettledNDistanceCalcss;     // Null unless searches track settled calcs, see IndexSearch
+  private long[]      mQueryNanos;                 // Time each query took, in the last searchSet
+  private boolean[]   mIsPartials;                 // Whether each query ran out of budget, see SearchBudget
   
   private long        mAvgNDistanceCalcs;
   private double      mAvgNearestDistance2;
@@ -40,7 +45,8 @@ public class SearchResultSet extends FormatUtils {
       DataSet     inDataSet,
       int         inSearchNNear,
       boolean     inIncludeDups,
-      DataSet     inQuerySet) {
+      DataSet     inQuerySet,
+      boolean     inTrackSettled) {
     
     mIndex=inIndex;
     mDataSet=inDataSet;
@@ -50,20 +56,33 @@ public class SearchResultSet extends FormatUtils {
     
     mNearVectorDxss=new int[inQuerySet.getNVectors()][inSearchNNear];
     mNearDistance2ss=new float[inQuerySet.getNVectors()][inSearchNNear];
+    if (inTrackSettled)
+      mSettledNDistanceCalcss=new int[inQuerySet.getNVectors()][inSearchNNear];
+    mQueryNanos=new long[inQuerySet.getNVectors()];
+    mIsPartials=new boolean[inQuerySet.getNVectors()];
   }  
 
   public SearchResultSet(
       Index       inIndex,
       int         inSearchNNear,
       boolean     inIncludeDups,
-      DataSet     inQuerySet) {
+      DataSet     inQuerySet,
+      boolean     inTrackSettled) {
     this(inIndex,
          inIndex.getDataSet(),
          inSearchNNear,
          inIncludeDups,
-         inQuerySet);
+         inQuerySet,
+         inTrackSettled);
   }  
 
+  public SearchResultSet(
+      Index       inIndex,
+      int         inSearchNNear,
+      boolean     inIncludeDups,
+      DataSet     inQuerySet) {
+    this(inIndex,inSearchNNear,inIncludeDups,inQuerySet,false); }
+
   public SearchResultSet(
       DataSet     inDataSet,
       int         inSearchNNear,
@@ -73,7 +92,8 @@ public class SearchResultSet extends FormatUtils {
          inDataSet,
          inSearchNNear,
          inIncludeDups,
-         inQuerySet);
+         inQuerySet,
+         false);
   }  
 
   public SearchResultSet(
@@ -88,6 +108,9 @@ public class SearchResultSet extends FormatUtils {
     mQuerySet=inSearchResultSet.mQuerySet;
     mNearVectorDxss=inSearchResultSet.mNearVectorDxss;
     mNearDistance2ss=inSearchResultSet.mNearDistance2ss;
+    mSettledNDistanceCalcss=inSearchResultSet.mSettledNDistanceCalcss;
+    mQueryNanos=inSearchResultSet.mQueryNanos;
+    mIsPartials=inSearchResultSet.mIsPartials;
     
     mAvgNDistanceCalcs=inAvgNDistanceCalcs;
     mAvgNearestDistance2=inAvgNearestDistance2;
@@ -104,6 +127,7 @@ public class SearchResultSet extends FormatUtils {
   public int getSearchNNear() { return mSearchNNear; }
   public boolean getIncludeDups() { return mIncludeDups; }
   public DataSet getQuerySet() { return mQuerySet; }
+  public boolean getTrackSettled() { return (mSettledNDistanceCalcss!=null); }
   
   public long getAvgNDistanceCalcs() { return mAvgNDistanceCalcs; }
   public double getAvgNearestDistance2() { return mAvgNearestDistance2; }
@@ -124,8 +148,44 @@ public class SearchResultSet extends FormatUtils {
         mQuerySet.getDescriptor(inQueryDx),
         mNearVectorDxss[inQueryDx], 
         mNearDistance2ss[inQueryDx], 
-        kNotFound);
+        kNotFound,
+        (mSettledNDistanceCalcss==null)?null:mSettledNDistanceCalcss[inQueryDx],
+        mIsPartials[inQueryDx]);
    }  
 
+  // Set by the search threads as each query is done
+  void setQueryStats(int inQueryDx, long inNanos, boolean inIsPartial) {
+    mQueryNanos[inQueryDx]=inNanos;
+    mIsPartials[inQueryDx]=inIsPartial;
+  }
+
+  public long getQueryNanos(int inQueryDx) { return mQueryNanos[inQueryDx]; }
+
+  // Query time at a fraction of queries, as in 0.999 for p99.9
+  public long getQueryNanosPercentile(double inFraction) {
+    long[] theQueryNanos=mQueryNanos.clone();
+    Arrays.sort(theQueryNanos);
+    return theQueryNanos[Math.min(theQueryNanos.length-1,(int) (inFraction*theQueryNanos.length))];
+  }
+
+  public int getNPartialResults() {
+    int theNPartial=0;
+    for (int i=0; i<mIsPartials.length; i++)
+      if (mIsPartials[i])
+        theNPartial++;
+    return theNPartial;
+  }
+
+  // Avg over queries of the calcs at which the top NNear settled
+  public double getAvgSettledNDistanceCalcs(int inNNear) {
+    if (mSettledNDistanceCalcss==null)
+      throw new RuntimeException("Searches did not track settled calcs");
+    int theNNear=Math.min(inNNear,mSearchNNear);
+    double theSum=0;
+    for (int i=0; i<mSettledNDistanceCalcss.length; i++)
+      theSum+=mSettledNDistanceCalcss[i][theNNear-1];
+    return theSum/mSettledNDistanceCalcss.length;
+  }
+
 }
 
@@ -0,0 +1,252 @@
+//--------------------------------------------------------------------------------------------------------
+// TimeAccumulator.java
+//--------------------------------------------------------------------------------------------------------
+
+package hiD.search;
+
+import java.util.Random;
+
+import hiD.utils.*;
+
+//--------------------------------------------------------------------------------------------------------
+// TimeAccumulator
+//
+// Times Accumulator and each InlineAccumulator layout for a range of K, and reports the fastest layout
+// Two streams of candidates are timed
+//   brute    distance2s in random order, as brute search feeds them - almost all are rejected at the limit
+//   spread   distance2s that trend nearer, as spread finds them - a large share are accepted
+// Distance2s are rounded so some are tied, and every layout must return the same neighbors as Accumulator
+//
+// Each layout is timed through the same call site, which costs them all a virtual call
+// A search only ever uses one layout, so to time one alone, name it with -DhiD.accumulator
+//--------------------------------------------------------------------------------------------------------
+
+public class TimeAccumulator extends FormatUtils {
+
+//--------------------------------------------------------------------------------------------------------
+// TimeAccumulator consts
+//--------------------------------------------------------------------------------------------------------
+
+  public static final int[]    kDefaultNNears={1,5,10,20,50,100,200};
+  public static final int      kNBruteCandidates=100000;
+  public static final int      kNSpreadCandidatesPerNNear=50;
+  public static final int      kNReps=7;                  // Best of
+  public static final long     kMinNAddsPerRep=2000000;
+
+  private static final long    kSeed=20221005L;
+
+//--------------------------------------------------------------------------------------------------------
+// Inner class Stream
+//--------------------------------------------------------------------------------------------------------
+
+  private static final class Stream {
+    String    mName;
+    int       mNCandidates;
+    int[]     mVectorDxs;
+    float[]   mDistance2s;          // By candidate
+    float[]   mDistance2sByDx;      // By vectorDx, shared with Accumulator
+  }
+
+  // Distance2s near 100, rounded to 0.01 so there are ties
+  private static float roundDistance2(double inDistance2) {
+    return Math.round(Math.max(0,inDistance2)*100)/100f; }
+
+  private static Stream createBruteStream(Random inGenerator) {
+    Stream theStream=new Stream();
+    theStream.mName="brute";
+    theStream.mNCandidates=kNBruteCandidates;
+    theStream.mVectorDxs=new int[kNBruteCandidates];
+    theStream.mDistance2s=new float[kNBruteCandidates];
+    theStream.mDistance2sByDx=new float[kNBruteCandidates];
+    for (int i=0; i<kNBruteCandidates; i++) {
+      float theDistance2=roundDistance2(100*(1+0.1*inGenerator.nextGaussian()));
+      theStream.mVectorDxs[i]=i;
+      theStream.mDistance2s[i]=theDistance2;
+      theStream.mDistance2sByDx[i]=theDistance2;
+    }
+    return theStream;
+  }
+
+  private static Stream createSpreadStream(Random inGenerator, int inNNear) {
+    int theNCandidates=Math.max(1000,inNNear*kNSpreadCandidatesPerNNear);
+    Stream theStream=new Stream();
+    theStream.mName="spread";
+    theStream.mNCandidates=theNCandidates;
+    theStream.mVectorDxs=new int[theNCandidates];
+    theStream.mDistance2s=new float[theNCandidates];
+    theStream.mDistance2sByDx=new float[4*theNCandidates];
+
+    // Distinct vectorDxs in random order
+    int[] theVectorDxs=new int[4*theNCandidates];
+    for (int i=0; i<theVectorDxs.length; i++)
+      theVectorDxs[i]=i;
+    for (int i=0; i<theNCandidates; i++) {
+      int j=i+inGenerator.nextInt(theVectorDxs.length-i);
+      int theSwapVectorDx=theVectorDxs[i];
+      theVectorDxs[i]=theVectorDxs[j];
+      theVectorDxs[j]=theSwapVectorDx;
+    }
+
+    for (int i=0; i<theNCandidates; i++) {
+      double theTrend=1-0.5*i/(double) theNCandidates;
+      float theDistance2=roundDistance2(100*theTrend*(1+0.05*inGenerator.nextGaussian()));
+      theStream.mVectorDxs[i]=theVectorDxs[i];
+      theStream.mDistance2s[i]=theDistance2;
+      theStream.mDistance2sByDx[theVectorDxs[i]]=theDistance2;
+    }
+    return theStream;
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// feed
+//--------------------------------------------------------------------------------------------------------
+
+  private static long feed(InlineAccumulator inAccumulator, Stream inStream) {
+    long theNPushed=0;
+    inAccumulator.reset();
+    for (int i=0; i<inStream.mNCandidates; i++)
+      if (inAccumulator.addVectorDx(inStream.mVectorDxs[i],inStream.mDistance2s[i])!=kNotFound)
+        theNPushed++;
+    return theNPushed;
+  }
+
+  private static long feed(Accumulator inAccumulator, Stream inStream) {
+    long theNPushed=0;
+    inAccumulator.reset();
+    for (int i=0; i<inStream.mNCandidates; i++)
+      if (inAccumulator.addVectorDx(inStream.mVectorDxs[i])!=kNotFound)
+        theNPushed++;
+    return theNPushed;
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// checkSame
+//
+// Every layout must keep the same neighbors, in the same order, as Accumulator
+//--------------------------------------------------------------------------------------------------------
+
+  private static void checkSame(InlineAccumulator inAccumulator, Stream inStream, int inNNear) {
+    Accumulator theAccumulator=new Accumulator(inNNear,inStream.mDistance2sByDx);
+    feed(theAccumulator,inStream);
+    int theNearestVectorDx=theAccumulator.getNearestVectorDx();
+    int[] theVectorDxs=new int[inNNear];
+    int theNNear=theAccumulator.removeNear(theVectorDxs);
+
+    feed(inAccumulator,inStream);
+    if (inAccumulator.getNearestVectorDx()!=theNearestVectorDx)
+      throw new RuntimeException(inAccumulator.getLayoutName()+" nearest differs from Accumulator");
+    int[] theInlineVectorDxs=new int[inNNear];
+    float[] theInlineDistance2s=new float[inNNear];
+    if (inAccumulator.removeNear(theInlineVectorDxs,theInlineDistance2s)!=theNNear)
+      throw new RuntimeException(inAccumulator.getLayoutName()+" NNear differs from Accumulator");
+    for (int i=0; i<theNNear; i++)
+      if ((theInlineVectorDxs[i]!=theVectorDxs[i])||(theInlineDistance2s[i]!=inStream.mDistance2sByDx[theVectorDxs[i]]))
+        throw new RuntimeException(inAccumulator.getLayoutName()+" neighbors differ from Accumulator");
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// timeAccumulators
+//--------------------------------------------------------------------------------------------------------
+
+  // Returns ns per candidate, best of kNReps
+  private static double time(Object inAccumulator, Stream inStream) {
+    int theNFeeds=(int) Math.max(1,kMinNAddsPerRep/inStream.mNCandidates);
+    long theBestTime=Long.MAX_VALUE;
+    long theSum=0;
+    for (int theRep=0; theRep<kNReps; theRep++) {
+      long theStartTime=System.nanoTime();
+      for (int i=0; i<theNFeeds; i++)
+        theSum+=(inAccumulator instanceof Accumulator)?
+            feed((Accumulator) inAccumulator,inStream):
+            feed((InlineAccumulator) inAccumulator,inStream);
+      theBestTime=Math.min(theBestTime,System.nanoTime()-theStartTime);
+    }
+    if (theSum<0)
+      log("Impossible");
+    return theBestTime/(double) (theNFeeds*(long) inStream.mNCandidates);
+  }
+
+  public static void timeAccumulators(int[] inNNears) {
+
+    String theLayoutName=System.getProperty(InlineAccumulator.kAccumulatorProperty,InlineAccumulator.kAutoLayout);
+    String[] theLayoutNames=theLayoutName.equals(InlineAccumulator.kAutoLayout)?
+        InlineAccumulator.kLayoutNames:new String[] {theLayoutName};
+
+    log("\n\nAccumulator Timing Test");
+    log("  "+kNBruteCandidates+" brute candidates, "+kNSpreadCandidatesPerNNear+"*K spread candidates");
+    log("  Times are ns per candidate, best of "+kNReps);
+
+    Random theGenerator=new Random(kSeed);
+    Stream theBruteStream=createBruteStream(theGenerator);
+
+    StringBuffer theBuffer=new StringBuffer(256);
+    theBuffer.append(rightPad("\n  Stream",10)+leftPad("K",6)+leftPad("Accumulator",14));
+    for (int j=0; j<theLayoutNames.length; j++)
+      theBuffer.append(leftPad(theLayoutNames[j],10));
+    theBuffer.append(leftPad("Fastest",10));
+    log(theBuffer.toString());
+
+    for (int theStreamDx=0; theStreamDx<2; theStreamDx++) {
+      for (int k=0; k<inNNears.length; k++) {
+        int theNNear=inNNears[k];
+        Stream theStream=(theStreamDx==0)?theBruteStream:createSpreadStream(theGenerator,theNNear);
+
+        theBuffer.setLength(0);
+        theBuffer.append(rightPad("  "+theStream.mName,10)+leftPad(theNNear,6));
+        theBuffer.append(leftPad(formatDouble(time(new Accumulator(theNNear,theStream.mDistance2sByDx),theStream),2),14));
+
+        String theFastestLayoutName=null;
+        double theFastestTime=Double.MAX_VALUE;
+        for (int j=0; j<theLayoutNames.length; j++) {
+          InlineAccumulator theAccumulator=InlineAccumulator.createAccumulator(theLayoutNames[j],theNNear);
+          checkSame(theAccumulator,theStream,theNNear);
+          double theTime=time(theAccumulator,theStream);
+          theBuffer.append(leftPad(formatDouble(theTime,2),10));
+          if (theTime<theFastestTime) {
+            theFastestTime=theTime;
+            theFastestLayoutName=theLayoutNames[j];
+          }
+        }
+        theBuffer.append(leftPad(theFastestLayoutName,10));
+        log(theBuffer.toString());
+      }
+    }
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// run
+//--------------------------------------------------------------------------------------------------------
+
+  public static void run(String inNNears) throws Exception {
+
+    long theStartTime=System.currentTimeMillis();
+    log(reportHeader("Time Accumulator",theStartTime));
+
+    int[] theNNears=kDefaultNNears;
+    if (inNNears!=null) {
+      String[] theFields=inNNears.split(",");
+      theNNears=new int[theFields.length];
+      for (int i=0; i<theFields.length; i++)
+        theNNears[i]=Integer.parseInt(theFields[i].trim());
+    }
+    timeAccumulators(theNNears);
+
+    log(reportFooter(theStartTime));
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// main
+//--------------------------------------------------------------------------------------------------------
+
+  public static void main(String[] inArgs) {
+    try {
+      String theNNears=null;
+      if (inArgs.length>0)
+        theNNears=inArgs[0];
+      run(theNNears);
+    } catch (Throwable e) {
+      e.printStackTrace(System.err);
+    }
+  }
+
+}
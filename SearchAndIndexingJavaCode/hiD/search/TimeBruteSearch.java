@@ -13,6 +13,26 @@ import hiD.utils.*;
 
 public class TimeBruteSearch extends FormatUtils {
 
+//--------------------------------------------------------------------------------------------------------
+// TimeBruteSearch consts
+//--------------------------------------------------------------------------------------------------------
+
+  // How brute search scans the dataset - all give identical results
+  public static final String   kRowsScan="rows";        // BruteSearch, one vector at a time
+  public static final String   kBlocksScan="blocks";    // BruteSearch over the dimension-major VectorBlocks copy
+  public static final String   kBatchScan="batch";      // BatchBruteSearch, blocks of queries against cached tiles
+
+//--------------------------------------------------------------------------------------------------------
+// searchSet
+//--------------------------------------------------------------------------------------------------------
+
+  private static SearchResultSet searchSet(SearchResultSet inSearchResultSet, String inScan) {
+    if (inScan.equals(kBatchScan))
+      return BatchBruteSearch.searchSet(inSearchResultSet);
+    else
+      return BruteSearch.searchSet(inSearchResultSet,inScan.equals(kBlocksScan));
+  }
+
 //--------------------------------------------------------------------------------------------------------
 // timeBruteSearch
 //--------------------------------------------------------------------------------------------------------
@@ -21,23 +41,35 @@ public class TimeBruteSearch extends FormatUtils {
       DataSet   inDataSet, 
       int       inSearchNNear, 
       boolean   inIncludeDups, 
-      DataSet   inQuerySet) throws Exception {
+      DataSet   inQuerySet,
+      String    inScan) throws Exception {
+
+    if ((!inScan.equals(kRowsScan))&&(!inScan.equals(kBlocksScan))&&(!inScan.equals(kBatchScan)))
+      throw new RuntimeException("Unknown brute search scan: "+inScan);
 
     log("\n\nBrute Search Timing Test");
     log("  Searching in:  "+inDataSet.getStandardFilename());
     log("  Searching for SearchNNear, Ks = "+inSearchNNear+" nearest neighbors");
     log("  "+(inIncludeDups?"Includes":"Does NOT include")+" duplicates");
+    if (inScan.equals(kBlocksScan))
+      log("  Scans dimension-major vector blocks");
+    else
+      log("  Uses "+DistanceKernel.getKernel().getName()+" distance kernel");
+    if (inScan.equals(kBatchScan))
+      log("  Scans cached tiles of vectors for blocks of "+BatchBruteSearch.kBlockNQueries+" queries");
 
     int theNQueries=inQuerySet.getNVectors();   
     log("  "+theNQueries+" queries from "+inQuerySet.getStandardFilename());
 
     // Warmup 
     log("\nBrute Warmup Search"); 
-    SearchResultSet theSearchResultSet=BruteSearch.searchSet(
-        inDataSet,
-        inSearchNNear,
-        inIncludeDups,
-        inQuerySet);
+    SearchResultSet theSearchResultSet=searchSet(
+        new SearchResultSet(
+            inDataSet,
+            inSearchNNear,
+            inIncludeDups,
+            inQuerySet),
+        inScan);
     
     // Avg of the max of (5 runs or till 2mins passed)
     log("\nBrute Search Timing Stats"); 
@@ -45,7 +77,7 @@ public class TimeBruteSearch extends FormatUtils {
     double theSum=0;
     long theEndTime=System.currentTimeMillis()+2*60*1000;
     while (true) {
-      theSearchResultSet=BruteSearch.searchSet(theSearchResultSet);
+      theSearchResultSet=searchSet(theSearchResultSet,inScan);
       theSum+=theSearchResultSet.getAvgTimePerQuery();
       theNRuns++;
       if ((theNRuns>=100)||((theNRuns>=5)&&(System.currentTimeMillis()>theEndTime)))
@@ -66,7 +98,8 @@ public class TimeBruteSearch extends FormatUtils {
       String  inDataSetFilename, 
       String  inQuerySetFilename, 
       String  inSearchNNear, 
-      String  inIncludeDups) throws Exception {
+      String  inIncludeDups,
+      String  inScan) throws Exception {
 
     long theStartTime=System.currentTimeMillis();
     log(reportHeader("Time Brute Search",theStartTime));  
@@ -75,21 +108,29 @@ public class TimeBruteSearch extends FormatUtils {
     DataSet theQuerySet;
     int theSearchNNear;
     boolean theIncludeDups;
+    String theScan;
 
     if (kOnDevBox) {
       theDataSet=DataSet.load("GIST_train_960D_1000Kv");
       theQuerySet=DataSet.load("GIST_test_960D_1000v");
       theSearchNNear=10;
       theIncludeDups=false;
+      theScan=kRowsScan;
 
     } else {
       theDataSet=DataSet.load(inDataSetFilename);
       theQuerySet=DataSet.load(inQuerySetFilename);
       theSearchNNear=Integer.parseInt(inSearchNNear);
       theIncludeDups=Boolean.parseBoolean(inIncludeDups);
+      // true and false are still accepted from when this parameter only picked vector blocks
+      theScan=inScan.toLowerCase();
+      if (theScan.equals("true"))
+        theScan=kBlocksScan;
+      else if (theScan.equals("false"))
+        theScan=kRowsScan;
     }
 
-    timeBruteSearch(theDataSet,theSearchNNear,theIncludeDups,theQuerySet);
+    timeBruteSearch(theDataSet,theSearchNNear,theIncludeDups,theQuerySet,theScan);
 
     log(reportFooter(theStartTime));
     Thread.sleep(3000);
@@ -113,7 +154,10 @@ public class TimeBruteSearch extends FormatUtils {
       String theIncludeDups="false";
       if (inArgs.length>3)
         theIncludeDups=inArgs[3];
-      run(theDataSetFilename,theQuerySetFilename,theSearchNNear,theIncludeDups);
+      String theScan=kRowsScan;
+      if (inArgs.length>4)
+        theScan=inArgs[4];
+      run(theDataSetFilename,theQuerySetFilename,theSearchNNear,theIncludeDups,theScan);
     } catch (Throwable e) {
       e.printStackTrace(System.err);
     }
@@ -19,16 +19,35 @@ public class TimeIndexSearch extends FormatUtils {
 //--------------------------------------------------------------------------------------------------------
 
   public static double timeIndexSearch(
-      Index     inIndex, 
-      int       inSearchNNear, 
-      boolean   inIncludeDups, 
-      DataSet   inQuerySet) throws Exception {
+      Index          inIndex, 
+      int            inSearchNNear, 
+      boolean        inIncludeDups, 
+      DataSet        inQuerySet,
+      SearchBudget   inBudget) throws Exception {
     
     log("\n\nIndex Search Timing Test");
     log("  Using index:  "+inIndex.getStandardFilename());
     log("  Index holds IndexNNear, Ki = "+inIndex.getIndexNNear()+" nearest neighbors");
     log("  Searching for SearchNNear, Ks = "+inSearchNNear+" nearest neighbors");
     log("  "+(inIncludeDups?"Includes":"Does NOT include")+" duplicates");
+    if (!inBudget.getIsUnlimited())
+      log("  Budget per query: "+inBudget);
+    log("  Uses "+DistanceKernel.getSearchKernel().getName()+" distance kernel");
+    String theBuildKernelName=inIndex.getMetadataString(Index.kBuildKernelName,null);
+    if ((theBuildKernelName!=null)&&(!theBuildKernelName.equals(DistanceKernel.getSearchKernel().getName())))
+      log("  Index was built with "+theBuildKernelName+" distance kernel");
+
+    boolean theUsesExpress=ExpressLayer.getUseExpress()&&(inIndex.getExpressLayer()!=null)&&
+        (inIndex.getExpressLayer().getNLevels()>1);
+    boolean theUsesRouting=RoutingTable.getUseRouting()&&(inIndex.getRoutingVectorDxs()!=null);
+    if (theUsesExpress)
+      log("  Descends an express layer of "+inIndex.getExpressLayer().getLevelSizes()+" nodes by level");
+    if (theUsesRouting)
+      log("  Starts from a routing table of "+inIndex.getRoutingVectorDxs().length+" entries");
+    if ((!theUsesExpress)&&(!theUsesRouting))
+      log("  Starts from the root vector");
+    log("  Uses "+VisitedSet.getLayoutName(inIndex.getNVectors())+" visited set, "+
+        formatMemory(IndexSearch.estimateScratchNBytes(inIndex.getNVectors(),inSearchNNear))+" scratch per search thread");
 
     int theNQueries=inQuerySet.getNVectors();    
     log("  "+theNQueries+" queries from "+inQuerySet.getStandardFilename());
@@ -36,10 +55,8 @@ public class TimeIndexSearch extends FormatUtils {
     // Warmup      
     log("\nIndex Warmup Search"); 
     SearchResultSet theSearchResultSet=IndexSearch.searchSet(
-        inIndex,
-        inSearchNNear,
-        inIncludeDups,
-        inQuerySet);
+        new SearchResultSet(inIndex,inSearchNNear,inIncludeDups,inQuerySet),
+        inBudget);
 
     // Avg of the max of (5 runs or till 2mins passed)
     log("\nIndex Search Timing Stats"); 
@@ -47,7 +64,7 @@ public class TimeIndexSearch extends FormatUtils {
     double theSum=0;
     long theEndTime=System.currentTimeMillis()+2*60*1000;
     while (true) {
-      theSearchResultSet=IndexSearch.searchSet(theSearchResultSet);
+      theSearchResultSet=IndexSearch.searchSet(theSearchResultSet,inBudget);
       theSum+=theSearchResultSet.getAvgTimePerQuery();
       theNRuns++;
       if ((theNRuns>=100)||((theNRuns>=5)&&(System.currentTimeMillis()>theEndTime)))
@@ -56,10 +73,21 @@ public class TimeIndexSearch extends FormatUtils {
     
     double theAvgTimePerQuery=theSum/theNRuns;
     log("\n\nAverage Time (excluding warmup run):  "+formatDuration(theAvgTimePerQuery)+" per query");
+    log("Query Time of last run:  p50 "+formatDuration(theSearchResultSet.getQueryNanosPercentile(0.5)/1e6)+
+        "   p99 "+formatDuration(theSearchResultSet.getQueryNanosPercentile(0.99)/1e6)+
+        "   p99.9 "+formatDuration(theSearchResultSet.getQueryNanosPercentile(0.999)/1e6)+
+        "   max "+formatDuration(theSearchResultSet.getQueryNanosPercentile(1)/1e6));
     
     return theAvgTimePerQuery;
   }
 
+  public static double timeIndexSearch(
+      Index     inIndex, 
+      int       inSearchNNear, 
+      boolean   inIncludeDups, 
+      DataSet   inQuerySet) throws Exception {
+    return timeIndexSearch(inIndex,inSearchNNear,inIncludeDups,inQuerySet,SearchBudget.kNoBudget); }
+
 //--------------------------------------------------------------------------------------------------------
 // run 
 //--------------------------------------------------------------------------------------------------------
@@ -68,7 +96,8 @@ public class TimeIndexSearch extends FormatUtils {
       String  inIndexFilename, 
       String  inQuerySetFilename, 
       String  inSearchNNear, 
-      String  inIncludeDups) throws Exception {
+      String  inIncludeDups,
+      String  inBudget) throws Exception {
 
     long theStartTime=System.currentTimeMillis();
     log(reportHeader("Time Index Search",theStartTime));  
@@ -91,7 +120,7 @@ public class TimeIndexSearch extends FormatUtils {
       theIncludeDups=Boolean.parseBoolean(inIncludeDups);
     }
 
-    timeIndexSearch(theIndex,theSearchNNear,theIncludeDups,theQuerySet);
+    timeIndexSearch(theIndex,theSearchNNear,theIncludeDups,theQuerySet,SearchBudget.parseBudget(inBudget));
 
     log(reportFooter(theStartTime));
     Thread.sleep(3000);
@@ -115,7 +144,10 @@ public class TimeIndexSearch extends FormatUtils {
       String theIncludeDups="false";
       if (inArgs.length>3)
         theIncludeDups=inArgs[3];
-      run(theIndexFilename,theQuerySetFilename,theSearchNNear,theIncludeDups);
+      String theBudget=null;
+      if (inArgs.length>4)
+        theBudget=inArgs[4];
+      run(theIndexFilename,theQuerySetFilename,theSearchNNear,theIncludeDups,theBudget);
     } catch (Throwable e) {
       e.printStackTrace(System.err);
     }
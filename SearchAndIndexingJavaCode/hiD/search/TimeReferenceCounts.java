@@ -0,0 +1,146 @@
+//--------------------------------------------------------------------------------------------------------
+// TimeReferenceCounts.java
+//--------------------------------------------------------------------------------------------------------
+
+package hiD.search;
+
+import hiD.data.*;
+import hiD.utils.*;
+import hiD.index.*;
+
+//--------------------------------------------------------------------------------------------------------
+// TimeReferenceCounts
+//
+// Recall and search time of an index at several reference count thresholds, see
+//   IndexSearch.setReferenceCountThreshold
+// Recall is as in SearchAccuracyTest.findRecall
+//--------------------------------------------------------------------------------------------------------
+
+public class TimeReferenceCounts extends FormatUtils {
+
+//--------------------------------------------------------------------------------------------------------
+// TimeReferenceCounts consts
+//--------------------------------------------------------------------------------------------------------
+
+  public static final String   kDefaultThresholds="0,2,3,4,6,8";
+  public static final int      kNTimedRuns=3;
+
+//--------------------------------------------------------------------------------------------------------
+// timeReferenceCounts
+//--------------------------------------------------------------------------------------------------------
+
+  public static void timeReferenceCounts(
+      Index          inIndex,
+      int            inSearchNNear,
+      boolean        inIncludeDups,
+      DataSet        inQuerySet,
+      int[]          inThresholds) throws Exception {
+
+    log("\n\nReference Count Threshold Test");
+    log("  Using index:  "+inIndex.getStandardFilename());
+    log("  Index holds IndexNNear, Ki = "+inIndex.getIndexNNear()+" nearest neighbors");
+    log("  Searching for SearchNNear, Ks = "+inSearchNNear+" nearest neighbors");
+    log("  "+(inIncludeDups?"Includes":"Does NOT include")+" duplicates");
+    int theNQueries=inQuerySet.getNVectors();
+    log("  "+theNQueries+" queries from "+inQuerySet.getStandardFilename());
+
+    log("\nBrute force search for the true nearest neighbors");
+    SearchResultSet theBruteResultSet=BatchBruteSearch.searchSet(
+        inIndex.getDataSet(),
+        inSearchNNear,
+        inIncludeDups,
+        inQuerySet);
+
+    double[] theRecalls=new double[inThresholds.length];
+    long[] theAvgNDistanceCalcs=new long[inThresholds.length];
+    double[] theAvgTimePerQuerys=new double[inThresholds.length];
+    long[] theP99QueryNanos=new long[inThresholds.length];
+    for (int i=0; i<inThresholds.length; i++) {
+      log("\nReference count threshold "+inThresholds[i]);
+
+      // Warmup, then best of the timed runs
+      SearchResultSet theSearchResultSet=new SearchResultSet(inIndex,inSearchNNear,inIncludeDups,inQuerySet);
+      theSearchResultSet=IndexSearch.searchSet(theSearchResultSet,SearchBudget.kNoBudget,inThresholds[i]);
+      theAvgTimePerQuerys[i]=Double.MAX_VALUE;
+      for (int j=0; j<kNTimedRuns; j++) {
+        theSearchResultSet=IndexSearch.searchSet(theSearchResultSet,SearchBudget.kNoBudget,inThresholds[i]);
+        if (theSearchResultSet.getAvgTimePerQuery()<theAvgTimePerQuerys[i]) {
+          theAvgTimePerQuerys[i]=theSearchResultSet.getAvgTimePerQuery();
+          theP99QueryNanos[i]=theSearchResultSet.getQueryNanosPercentile(0.99);
+        }
+      }
+      theAvgNDistanceCalcs[i]=theSearchResultSet.getAvgNDistanceCalcs();
+      theRecalls[i]=SearchAccuracyTest.findRecall(theSearchResultSet,theBruteResultSet,inSearchNNear);
+    }
+
+    log("\n"+kDivider);
+    log("\nRecall at "+inSearchNNear+"NN and search time by reference count threshold, 0 is off");
+    log("\n   Threshold      Recall   Avg Calcs    Avg Time    p99 Time     Speedup");
+    for (int i=0; i<inThresholds.length; i++)
+      log(leftPad(inThresholds[i],12)+
+          leftPad(formatPercent(theRecalls[i]),12)+
+          leftPad(theAvgNDistanceCalcs[i],12)+
+          leftPad(formatDuration(theAvgTimePerQuerys[i]),12)+
+          leftPad(formatDuration(theP99QueryNanos[i]/1e6),12)+
+          leftPad(formatDouble(theAvgTimePerQuerys[0]/theAvgTimePerQuerys[i],2),12));
+    log("\n"+kDivider);
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// run
+//--------------------------------------------------------------------------------------------------------
+
+  public static void run(
+      String  inIndexFilename,
+      String  inQuerySetFilename,
+      String  inSearchNNear,
+      String  inIncludeDups,
+      String  inThresholds) throws Exception {
+
+    long theStartTime=System.currentTimeMillis();
+    log(reportHeader("Time Reference Counts",theStartTime));
+
+    Index theIndex=Index.load(inIndexFilename);
+    DataSet theQuerySet=DataSet.load(inQuerySetFilename);
+    int theSearchNNear=Integer.parseInt(inSearchNNear);
+    boolean theIncludeDups=Boolean.parseBoolean(inIncludeDups);
+
+    String[] theFields=inThresholds.split(",");
+    int[] theThresholds=new int[theFields.length];
+    for (int i=0; i<theFields.length; i++)
+      theThresholds[i]=Integer.parseInt(theFields[i].trim());
+
+    timeReferenceCounts(theIndex,theSearchNNear,theIncludeDups,theQuerySet,theThresholds);
+
+    log(reportFooter(theStartTime));
+    Thread.sleep(3000);
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// main
+//--------------------------------------------------------------------------------------------------------
+
+  public static void main(String[] inArgs) {
+    try {
+      String theIndexFilename=null;
+      if (inArgs.length>0)
+        theIndexFilename=inArgs[0];
+      String theQuerySetFilename=null;
+      if (inArgs.length>1)
+        theQuerySetFilename=inArgs[1];
+      String theSearchNNear=null;
+      if (inArgs.length>2)
+        theSearchNNear=inArgs[2];
+      String theIncludeDups="false";
+      if (inArgs.length>3)
+        theIncludeDups=inArgs[3];
+      String theThresholds=kDefaultThresholds;
+      if (inArgs.length>4)
+        theThresholds=inArgs[4];
+      run(theIndexFilename,theQuerySetFilename,theSearchNNear,theIncludeDups,theThresholds);
+    } catch (Throwable e) {
+      e.printStackTrace(System.err);
+    }
+  }
+
+}
@@ -0,0 +1,239 @@
+//--------------------------------------------------------------------------------------------------------
+// TuneSearch.java
+//--------------------------------------------------------------------------------------------------------
+
+package hiD.search;
+
+import java.util.Arrays;
+
+import hiD.data.*;
+import hiD.utils.*;
+import hiD.index.*;
+
+//--------------------------------------------------------------------------------------------------------
+// TuneSearch
+//
+// Tunes the traversal heuristics of an index, and saves them in its metadata, see IndexSearch
+//   spread factor     spread follows links of a near node up to SpreadFactor*limit-query distance2
+//   short circuit     descend stops at the first link that gets this much nearer the query
+// A sample of queries is searched with every pair of settings, and each is scored by recall against one
+//   brute force search and by avg distance calcs, which unlike time do not depend on the machine
+// Keeps the fewest calcs on the Pareto front with at least the target recall, which defaults to the recall
+//   of the default settings, so tuning never costs recall on the sample
+// Searchers created after tuning use the index's settings, and setSpreadFactor and setShortCircuitDistance
+//   override them
+//--------------------------------------------------------------------------------------------------------
+
+public class TuneSearch extends FormatUtils {
+
+//--------------------------------------------------------------------------------------------------------
+// TuneSearch consts
+//--------------------------------------------------------------------------------------------------------
+
+  public static final float[]   kSpreadFactors={1.6f,1.8f,2.0f,2.1f,2.2f,2.3f,2.5f,2.8f,3.2f};
+
+  // The default short circuit distance of 3 suits data with unit spread, so short circuits are also tried at
+  //   fractions of the median distance from a query to its nearest neighbor, which follow the scale of the data
+  public static final double[]  kShortCircuitFractions={0.25,0.5,1,2};
+  public static final float     kNoShortCircuit=Float.MAX_VALUE;
+
+//--------------------------------------------------------------------------------------------------------
+// tuneSearch
+//
+// Returns the spread factor and short circuit distance kept, which are also set in the index metadata
+// A TargetRecall of 0 uses the recall of the default settings
+//--------------------------------------------------------------------------------------------------------
+
+  public static float[] tuneSearch(
+      Index          inIndex,
+      int            inSearchNNear,
+      boolean        inIncludeDups,
+      DataSet        inQuerySet,
+      double         inTargetRecall) throws Exception {
+
+    log("\n\nTune Search");
+    log("  Using index:  "+inIndex.getStandardFilename());
+    log("  Index holds IndexNNear, Ki = "+inIndex.getIndexNNear()+" nearest neighbors");
+    log("  Searching for SearchNNear, Ks = "+inSearchNNear+" nearest neighbors");
+    log("  "+(inIncludeDups?"Includes":"Does NOT include")+" duplicates");
+    log("  "+inQuerySet.getNVectors()+" queries from "+inQuerySet.getStandardFilename());
+
+    // Ground truth is found once, and scores every setting
+    log("\nBrute force search for the true nearest neighbors");
+    SearchResultSet theBruteResultSet=BatchBruteSearch.searchSet(
+        inIndex.getDataSet(),
+        inSearchNNear,
+        inIncludeDups,
+        inQuerySet);
+
+    float[] theShortCircuitDistances=findShortCircuitDistances(theBruteResultSet);
+    int theNSettings=kSpreadFactors.length*theShortCircuitDistances.length;
+    float[] theSpreadFactors=new float[theNSettings];
+    float[] theSettingShortCircuitDistances=new float[theNSettings];
+    double[] theRecalls=new double[theNSettings];
+    long[] theAvgNDistanceCalcs=new long[theNSettings];
+    double[] theAvgTimePerQuerys=new double[theNSettings];
+    int theDefaultDx=kNotFound;
+
+    // Searchers read the settings from the index metadata when created, see IndexSearch
+    for (int i=0; i<kSpreadFactors.length; i++)
+      for (int j=0; j<theShortCircuitDistances.length; j++) {
+        int theSettingDx=i*theShortCircuitDistances.length+j;
+        theSpreadFactors[theSettingDx]=kSpreadFactors[i];
+        theSettingShortCircuitDistances[theSettingDx]=theShortCircuitDistances[j];
+        if ((kSpreadFactors[i]==IndexSearch.kDefaultSpreadFactor)&&
+            (theShortCircuitDistances[j]==IndexSearch.kDefaultShortCircuitDistance))
+          theDefaultDx=theSettingDx;
+
+        log("\nSpread factor "+formatDouble(kSpreadFactors[i],2)+", short circuit "+
+            formatShortCircuitDistance(theShortCircuitDistances[j]));
+        inIndex.setMetadataFloat(Index.kSpreadFactorName,kSpreadFactors[i]);
+        inIndex.setMetadataFloat(Index.kShortCircuitDistanceName,theShortCircuitDistances[j]);
+        SearchResultSet theSearchResultSet=IndexSearch.searchSet(inIndex,inSearchNNear,inIncludeDups,inQuerySet);
+        theRecalls[theSettingDx]=SearchAccuracyTest.findRecall(theSearchResultSet,theBruteResultSet,inSearchNNear);
+        theAvgNDistanceCalcs[theSettingDx]=theSearchResultSet.getAvgNDistanceCalcs();
+        theAvgTimePerQuerys[theSettingDx]=theSearchResultSet.getAvgTimePerQuery();
+      }
+
+    double theTargetRecall=(inTargetRecall>0)?inTargetRecall:theRecalls[theDefaultDx];
+    boolean[] theIsParetos=findParetos(theRecalls,theAvgNDistanceCalcs);
+
+    // Fewest calcs with the target recall, or the best recall when none has it
+    int theBestDx=kNotFound;
+    for (int i=0; i<theNSettings; i++)
+      if ((theIsParetos[i])&&(theRecalls[i]>=theTargetRecall)&&
+          ((theBestDx==kNotFound)||(theAvgNDistanceCalcs[i]<theAvgNDistanceCalcs[theBestDx])))
+        theBestDx=i;
+    if (theBestDx==kNotFound)
+      for (int i=0; i<theNSettings; i++)
+        if ((theBestDx==kNotFound)||(theRecalls[i]>theRecalls[theBestDx]))
+          theBestDx=i;
+
+    log("\n"+kDivider);
+    log("\nRecall at "+inSearchNNear+"NN and avg calcs by setting, target recall "+formatPercent(theTargetRecall));
+    log("\n      Spread   Short Circuit      Recall   Avg Calcs    Avg Time");
+    for (int i=0; i<theNSettings; i++)
+      log(leftPad(formatDouble(theSpreadFactors[i],2),12)+
+          leftPad(formatShortCircuitDistance(theSettingShortCircuitDistances[i]),16)+
+          leftPad(formatPercent(theRecalls[i]),12)+
+          leftPad(theAvgNDistanceCalcs[i],12)+
+          leftPad(formatDuration(theAvgTimePerQuerys[i]),12)+
+          (theIsParetos[i]?"    pareto":"")+
+          ((i==theDefaultDx)?"    default":"")+
+          ((i==theBestDx)?"    <--- Best":""));
+    log("\n"+kDivider);
+
+    inIndex.setMetadataFloat(Index.kSpreadFactorName,theSpreadFactors[theBestDx]);
+    inIndex.setMetadataFloat(Index.kShortCircuitDistanceName,theSettingShortCircuitDistances[theBestDx]);
+    log("\nKept spread factor "+formatDouble(theSpreadFactors[theBestDx],2)+", short circuit "+
+        formatShortCircuitDistance(theSettingShortCircuitDistances[theBestDx])+
+        ", "+formatPercent(theRecalls[theBestDx])+" recall with "+theAvgNDistanceCalcs[theBestDx]+" avg calcs"+
+        " vs "+formatPercent(theRecalls[theDefaultDx])+" with "+theAvgNDistanceCalcs[theDefaultDx]+" by default");
+
+    return new float[] {theSpreadFactors[theBestDx],theSettingShortCircuitDistances[theBestDx]};
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// findShortCircuitDistances
+//
+// The default, fractions of the median nearest neighbor distance, and none
+//--------------------------------------------------------------------------------------------------------
+
+  private static float[] findShortCircuitDistances(SearchResultSet inBruteResultSet) {
+
+    int theNQueries=inBruteResultSet.getNQueryVectors();
+    float[] theNearestDistance2s=new float[theNQueries];
+    for (int i=0; i<theNQueries; i++)
+      theNearestDistance2s[i]=inBruteResultSet.getSearchResult(i).getNearDistance2(0);
+    Arrays.sort(theNearestDistance2s);
+    double theMedianDistance=Math.sqrt(theNearestDistance2s[theNQueries/2]);
+
+    float[] theShortCircuitDistances=new float[kShortCircuitFractions.length+2];
+    theShortCircuitDistances[0]=IndexSearch.kDefaultShortCircuitDistance;
+    for (int i=0; i<kShortCircuitFractions.length; i++)
+      theShortCircuitDistances[i+1]=(float) (kShortCircuitFractions[i]*theMedianDistance);
+    theShortCircuitDistances[theShortCircuitDistances.length-1]=kNoShortCircuit;
+    return theShortCircuitDistances;
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// findParetos
+//
+// A setting is on the Pareto front when no other has as good recall with fewer calcs, or better recall
+//   with as few
+//--------------------------------------------------------------------------------------------------------
+
+  private static boolean[] findParetos(double[] inRecalls, long[] inAvgNDistanceCalcs) {
+    boolean[] theIsParetos=new boolean[inRecalls.length];
+    for (int i=0; i<inRecalls.length; i++) {
+      theIsParetos[i]=true;
+      for (int j=0; j<inRecalls.length; j++)
+        if ((inRecalls[j]>=inRecalls[i])&&(inAvgNDistanceCalcs[j]<=inAvgNDistanceCalcs[i])&&
+            ((inRecalls[j]>inRecalls[i])||(inAvgNDistanceCalcs[j]<inAvgNDistanceCalcs[i]))) {
+          theIsParetos[i]=false;
+          break;
+        }
+    }
+    return theIsParetos;
+  }
+
+  private static String formatShortCircuitDistance(float inShortCircuitDistance) {
+    return (inShortCircuitDistance==kNoShortCircuit)?"off":formatDouble(inShortCircuitDistance,2); }
+
+//--------------------------------------------------------------------------------------------------------
+// run
+//
+// Tunes an index for a sample of queries and saves it with the settings kept
+//--------------------------------------------------------------------------------------------------------
+
+  public static void run(
+      String  inIndexFilename,
+      String  inQuerySetFilename,
+      String  inSearchNNear,
+      String  inIncludeDups,
+      String  inTargetRecall) throws Exception {
+
+    long theStartTime=System.currentTimeMillis();
+    log(reportHeader("Tune Search",theStartTime));
+
+    Index theIndex=Index.load(inIndexFilename);
+    DataSet theQuerySet=DataSet.load(inQuerySetFilename);
+    int theSearchNNear=Integer.parseInt(inSearchNNear);
+    boolean theIncludeDups=Boolean.parseBoolean(inIncludeDups);
+    double theTargetRecall=(inTargetRecall==null)?0:Double.parseDouble(inTargetRecall);
+
+    tuneSearch(theIndex,theSearchNNear,theIncludeDups,theQuerySet,theTargetRecall);
+    theIndex.save();
+
+    log(reportFooter(theStartTime));
+    Thread.sleep(3000);
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// main
+//--------------------------------------------------------------------------------------------------------
+
+  public static void main(String[] inArgs) {
+    try {
+      String theIndexFilename=null;
+      if (inArgs.length>0)
+        theIndexFilename=inArgs[0];
+      String theQuerySetFilename=null;
+      if (inArgs.length>1)
+        theQuerySetFilename=inArgs[1];
+      String theSearchNNear=null;
+      if (inArgs.length>2)
+        theSearchNNear=inArgs[2];
+      String theIncludeDups="false";
+      if (inArgs.length>3)
+        theIncludeDups=inArgs[3];
+      String theTargetRecall=null;
+      if (inArgs.length>4)
+        theTargetRecall=inArgs[4];
+      run(theIndexFilename,theQuerySetFilename,theSearchNNear,theIncludeDups,theTargetRecall);
+    } catch (Throwable e) {
+      e.printStackTrace(System.err);
+    }
+  }
+
+}
@@ -0,0 +1,89 @@
+//--------------------------------------------------------------------------------------------------------
+// VectorFilter.java
+//--------------------------------------------------------------------------------------------------------
+
+package hiD.search;
+
+import hiD.utils.*;
+
+//--------------------------------------------------------------------------------------------------------
+// VectorFilter
+//
+// Set of the vectors a filtered search may return, as in the images of one modality or collection
+// One bit per vector of the dataset, so a filter of a 10M vector dataset takes 1.25MB, and can be kept and 
+//   shared by searches on several threads once it is built
+// See FilteredSearch
+//--------------------------------------------------------------------------------------------------------
+
+public class VectorFilter implements Constants {
+
+//--------------------------------------------------------------------------------------------------------
+// VectorFilter member vars
+//--------------------------------------------------------------------------------------------------------
+
+  private int       mNVectors;
+  private long[]    mWords;                  // Bit vectorDx%64 of word vectorDx/64 is set when allowed
+  private int       mNAllowed;
+
+//--------------------------------------------------------------------------------------------------------
+// VectorFilter 
+//--------------------------------------------------------------------------------------------------------
+
+  // Allows no vectors
+  public VectorFilter(int inNVectors) {
+    mNVectors=inNVectors;
+    mWords=new long[(inNVectors+63)>>>6];
+    mNAllowed=0;
+  }
+
+  public VectorFilter(int inNVectors, int[] inAllowedVectorDxs) {
+    this(inNVectors);
+    for (int i=0; i<inAllowedVectorDxs.length; i++)
+      allow(inAllowedVectorDxs[i]);
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// gets
+//--------------------------------------------------------------------------------------------------------
+
+  public int getNVectors() { return mNVectors; }
+  public int getNAllowed() { return mNAllowed; }
+  public double getSelectivity() { return mNAllowed/(double) mNVectors; }
+  public long getNBytes() { return 8L*mWords.length; }
+
+  public boolean getIsAllowed(int inVectorDx) { return ((mWords[inVectorDx>>>6]&(1L<<inVectorDx))!=0); }
+
+  // First allowed vectorDx at or after VectorDx, or kNotFound
+  public int getNextAllowed(int inVectorDx) {
+    if (inVectorDx>=mNVectors)
+      return kNotFound;
+    int theWordDx=inVectorDx>>>6;
+    long theWord=mWords[theWordDx]&(-1L<<inVectorDx);
+    while (theWord==0) {
+      theWordDx++;
+      if (theWordDx==mWords.length)
+        return kNotFound;
+      theWord=mWords[theWordDx];
+    }
+    return (theWordDx<<6)+Long.numberOfTrailingZeros(theWord);
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// sets
+//--------------------------------------------------------------------------------------------------------
+
+  public void allow(int inVectorDx) {
+    if (!getIsAllowed(inVectorDx)) {
+      mWords[inVectorDx>>>6]|=(1L<<inVectorDx);
+      mNAllowed++;
+    }
+  }
+
+  public void disallow(int inVectorDx) {
+    if (getIsAllowed(inVectorDx)) {
+      mWords[inVectorDx>>>6]&=~(1L<<inVectorDx);
+      mNAllowed--;
+    }
+  }
+
+}
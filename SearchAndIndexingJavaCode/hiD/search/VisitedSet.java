@@ -0,0 +1,293 @@
+//--------------------------------------------------------------------------------------------------------
+// VisitedSet.java
+//--------------------------------------------------------------------------------------------------------
+
+package hiD.search;
+
+import java.util.Arrays;
+
+import hiD.utils.*;
+
+//--------------------------------------------------------------------------------------------------------
+// VisitedSet
+//
+// Per search state of the vectors an IndexSearch has touched - whether each has been measured, its
+//   measured distance2, and its flags
+// A vector is touched when the search first sets its flags or measures it, and flags of vectors not
+//   yet touched read as zero
+// Each search gets a new stamp instead of clearing the state of the vectors the last search touched,
+//   so reset does not depend on how many vectors were touched
+//
+// Layouts
+//   dense    arrays of N stamps, distances and flags - a single int compare to check a vector, but
+//              9 bytes per indexed vector per searcher, which is 90MB per thread for a 10M vector index
+//   hashed   open addressing hash table of the touched vectors, with linear probing, that doubles when
+//              half full - 13 bytes per slot, so memory follows the vectors a search touches, not N
+// The system property hiD.visited picks the layout
+//   auto is dense up to kMaxDenseNVectors indexed vectors, and hashed above
+//--------------------------------------------------------------------------------------------------------
+
+public abstract class VisitedSet implements Constants {
+
+//--------------------------------------------------------------------------------------------------------
+// VisitedSet consts
+//--------------------------------------------------------------------------------------------------------
+
+  public static final String    kVisitedProperty="hiD.visited";
+
+  public static final String    kAutoLayout="auto";
+  public static final String    kDenseLayout="dense";
+  public static final String    kHashedLayout="hashed";
+
+  public static final byte      kNoFlags=0;
+
+  public static final int       kMaxDenseNVectors=1000000;    // 9MB per searcher
+  public static final int       kMinHashedNSlots=1024;
+
+//--------------------------------------------------------------------------------------------------------
+// createVisitedSet
+//
+// ExpectedNTouched sizes the hashed table, which grows if a search touches more
+//--------------------------------------------------------------------------------------------------------
+
+  public static String getLayoutName(String inLayoutName, int inNVectors) {
+    if (inLayoutName.equals(kAutoLayout))
+      return (inNVectors<=kMaxDenseNVectors)?kDenseLayout:kHashedLayout;
+    return inLayoutName;
+  }
+
+  public static String getLayoutName(int inNVectors) {
+    return getLayoutName(System.getProperty(kVisitedProperty,kAutoLayout),inNVectors); }
+
+
+  public static VisitedSet createVisitedSet(String inLayoutName, int inNVectors, int inExpectedNTouched) {
+    inLayoutName=getLayoutName(inLayoutName,inNVectors);
+
+    if (inLayoutName.equals(kDenseLayout))
+      return new Dense(inNVectors);
+    else if (inLayoutName.equals(kHashedLayout))
+      return new Hashed(inExpectedNTouched);
+    else
+      throw new RuntimeException("Unknown visited set layout: "+inLayoutName);
+  }
+
+  public static VisitedSet createVisitedSet(int inNVectors, int inExpectedNTouched) {
+    return createVisitedSet(System.getProperty(kVisitedProperty,kAutoLayout),inNVectors,inExpectedNTouched); }
+
+  // RAM of the layout the property picks, before any growth
+  public static long estimateNBytes(int inNVectors, int inExpectedNTouched) {
+    if (getLayoutName(inNVectors).equals(kDenseLayout))
+      return 9L*inNVectors;
+    return 13L*Hashed.getNSlots(inExpectedNTouched);
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// VisitedSet methods
+//--------------------------------------------------------------------------------------------------------
+
+  public abstract String getLayoutName();
+  public abstract long getNBytes();
+
+  // Forgets every vector, before each search
+  public abstract void reset();
+
+  public abstract boolean isMeasured(int inVectorDx);
+  public abstract float getMeasuredDistance2(int inVectorDx);    // Only valid once measured
+  public abstract void setMeasured(int inVectorDx, float inMeasuredDistance2);
+
+  public abstract byte getFlags(int inVectorDx);
+  public abstract void setFlags(int inVectorDx, byte inFlags);
+
+//--------------------------------------------------------------------------------------------------------
+// Inner class Dense
+//
+// A vector's stamp says whether the current search has touched it, and whether it has measured it
+// Stamps step by 2 each search, so they only wrap after a billion searches, and then are cleared once
+//--------------------------------------------------------------------------------------------------------
+
+  public static final class Dense extends VisitedSet {
+
+    private int       mTouchedStamp;             // Stamp of vectors touched by the current search
+    private int       mMeasuredStamp;            // Stamp of vectors measured by the current search, TouchedStamp+1
+    private int[]     mVectorStamps;             // Older stamps are from earlier searches
+    private float[]   mMeasuredDistance2s;
+    private byte[]    mVectorFlags;
+
+    public Dense(int inNVectors) {
+      mTouchedStamp=0;
+      mMeasuredStamp=1;
+      mVectorStamps=new int[inNVectors];
+      mMeasuredDistance2s=new float[inNVectors];
+      mVectorFlags=new byte[inNVectors];
+    }
+
+    public String getLayoutName() { return kDenseLayout; }
+    public long getNBytes() { return 9L*mVectorStamps.length; }
+
+    public void reset() {
+      mTouchedStamp+=2;
+      mMeasuredStamp+=2;
+      if (mMeasuredStamp<0) {
+        Arrays.fill(mVectorStamps,0);
+        mTouchedStamp=2;
+        mMeasuredStamp=3;
+      }
+    }
+
+    public boolean isMeasured(int inVectorDx) { return (mVectorStamps[inVectorDx]==mMeasuredStamp); }
+    public float getMeasuredDistance2(int inVectorDx) { return mMeasuredDistance2s[inVectorDx]; }
+
+    public void setMeasured(int inVectorDx, float inMeasuredDistance2) {
+      touch(inVectorDx);
+      mVectorStamps[inVectorDx]=mMeasuredStamp;
+      mMeasuredDistance2s[inVectorDx]=inMeasuredDistance2;
+    }
+
+    public byte getFlags(int inVectorDx) { return (mVectorStamps[inVectorDx]<mTouchedStamp)?kNoFlags:mVectorFlags[inVectorDx]; }
+
+    public void setFlags(int inVectorDx, byte inFlags) {
+      touch(inVectorDx);
+      mVectorFlags[inVectorDx]=inFlags;
+    }
+
+    // Flags left by earlier searches are cleared when a vector is first touched
+    private void touch(int inVectorDx) {
+      if (mVectorStamps[inVectorDx]<mTouchedStamp) {
+        mVectorStamps[inVectorDx]=mTouchedStamp;
+        mVectorFlags[inVectorDx]=kNoFlags;
+      }
+    }
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// Inner class Hashed
+//
+// A slot is in use by the current search when its stamp is the current stamp, so reset is one increment
+// Whether a touched vector has been measured is kept in a flag bit the search does not use
+// Table doubles when half full, and keeps its size for later searches
+//--------------------------------------------------------------------------------------------------------
+
+  public static final class Hashed extends VisitedSet {
+
+    private static final byte   kMeasuredFlag=64;
+    private static final int    kHashMultiplier=0x9E3779B9;    // Fibonacci hashing - spreads runs of vectorDxs
+
+    private int       mStamp;
+    private int       mNTouched;
+    private int       mMask;                     // NSlots-1, NSlots is a power of 2
+    private int       mShift;                    // 32-log2(NSlots)
+    private int[]     mSlotStamps;
+    private int[]     mSlotVectorDxs;
+    private float[]   mSlotDistance2s;
+    private byte[]    mSlotFlags;
+
+    public Hashed(int inExpectedNTouched) {
+      mStamp=1;
+      allocate(getNSlots(inExpectedNTouched));
+    }
+
+    // At most half full
+    static int getNSlots(int inExpectedNTouched) {
+      int theNSlots=kMinHashedNSlots;
+      while (theNSlots<2*inExpectedNTouched)
+        theNSlots*=2;
+      return theNSlots;
+    }
+
+    private void allocate(int inNSlots) {
+      mMask=inNSlots-1;
+      mShift=32-Integer.numberOfTrailingZeros(inNSlots);
+      mSlotStamps=new int[inNSlots];
+      mSlotVectorDxs=new int[inNSlots];
+      mSlotDistance2s=new float[inNSlots];
+      mSlotFlags=new byte[inNSlots];
+      mNTouched=0;
+    }
+
+    public String getLayoutName() { return kHashedLayout; }
+    public long getNBytes() { return 13L*mSlotStamps.length; }
+    public int getNSlots() { return mSlotStamps.length; }
+
+    public void reset() {
+      mStamp++;
+      if (mStamp<0) {
+        Arrays.fill(mSlotStamps,0);
+        mStamp=1;
+      }
+      mNTouched=0;
+    }
+
+    // Slot holding the vector, or kNotFound
+    private int findSlot(int inVectorDx) {
+      int theSlotDx=(inVectorDx*kHashMultiplier)>>>mShift;
+      while (mSlotStamps[theSlotDx]==mStamp) {
+        if (mSlotVectorDxs[theSlotDx]==inVectorDx)
+          return theSlotDx;
+        theSlotDx=(theSlotDx+1)&mMask;
+      }
+      return kNotFound;
+    }
+
+    // Slot holding the vector, taking a free slot with no flags if it was not touched yet
+    private int touchSlot(int inVectorDx) {
+      int theSlotDx=(inVectorDx*kHashMultiplier)>>>mShift;
+      while (mSlotStamps[theSlotDx]==mStamp) {
+        if (mSlotVectorDxs[theSlotDx]==inVectorDx)
+          return theSlotDx;
+        theSlotDx=(theSlotDx+1)&mMask;
+      }
+
+      if (2*(mNTouched+1)>mSlotStamps.length) {
+        grow();
+        return touchSlot(inVectorDx);
+      }
+      mNTouched++;
+      mSlotStamps[theSlotDx]=mStamp;
+      mSlotVectorDxs[theSlotDx]=inVectorDx;
+      mSlotFlags[theSlotDx]=kNoFlags;
+      return theSlotDx;
+    }
+
+    // Doubles the table, moving only the slots of the current search
+    private void grow() {
+      int theStamp=mStamp;
+      int[] theSlotStamps=mSlotStamps;
+      int[] theSlotVectorDxs=mSlotVectorDxs;
+      float[] theSlotDistance2s=mSlotDistance2s;
+      byte[] theSlotFlags=mSlotFlags;
+
+      allocate(2*theSlotStamps.length);
+      mStamp=1;
+      for (int i=0; i<theSlotStamps.length; i++)
+        if (theSlotStamps[i]==theStamp) {
+          int theSlotDx=touchSlot(theSlotVectorDxs[i]);
+          mSlotDistance2s[theSlotDx]=theSlotDistance2s[i];
+          mSlotFlags[theSlotDx]=theSlotFlags[i];
+        }
+    }
+
+    public boolean isMeasured(int inVectorDx) {
+      int theSlotDx=findSlot(inVectorDx);
+      return (theSlotDx!=kNotFound)&&((mSlotFlags[theSlotDx]&kMeasuredFlag)!=0);
+    }
+
+    public float getMeasuredDistance2(int inVectorDx) { return mSlotDistance2s[findSlot(inVectorDx)]; }
+
+    public void setMeasured(int inVectorDx, float inMeasuredDistance2) {
+      int theSlotDx=touchSlot(inVectorDx);
+      mSlotDistance2s[theSlotDx]=inMeasuredDistance2;
+      mSlotFlags[theSlotDx]|=kMeasuredFlag;
+    }
+
+    public byte getFlags(int inVectorDx) {
+      int theSlotDx=findSlot(inVectorDx);
+      return (theSlotDx==kNotFound)?kNoFlags:(byte) (mSlotFlags[theSlotDx]&~kMeasuredFlag);
+    }
+
+    public void setFlags(int inVectorDx, byte inFlags) {
+      int theSlotDx=touchSlot(inVectorDx);
+      mSlotFlags[theSlotDx]=(byte) ((mSlotFlags[theSlotDx]&kMeasuredFlag)|(inFlags&~kMeasuredFlag));
+    }
+  }
+
+}
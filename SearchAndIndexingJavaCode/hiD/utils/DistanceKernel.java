@@ -0,0 +1,157 @@
+//--------------------------------------------------------------------------------------------------------
+// DistanceKernel.java
+//--------------------------------------------------------------------------------------------------------
+
+package hiD.utils;
+
+//--------------------------------------------------------------------------------------------------------
+// DistanceKernel
+//
+// Distance calcs are the dominant cost of building and searching, so the calc is selectable
+// The kernel is picked once per JVM with the system property hiD.kernel
+//   auto     SIMD kernel if the jdk.incubator.vector module is available, otherwise scalar (default)
+//   scalar   VectorUtils.vectorSeparation2, sums in double
+//   simd     SIMD kernel, fails if the module is not available
+//   float    FloatDistanceKernel, sums in several independent float accumulators
+//   kahan    KahanDistanceKernel, sums in float with Kahan compensation
+// Build and search can pick their own kernel with hiD.buildKernel and hiD.searchKernel,
+//   which default to hiD.kernel - see getBuildKernel and getSearchKernel
+//
+// Accuracy contract
+//   Scalar widens each float difference to double and sums in double - this is the reference calc
+//   SIMD sums float differences squared in float lanes, then adds the lanes
+//     Relative error is on the order of (NDims/NLanes+log2(NLanes))*2^-24, about 1e-5 for 960D,
+//     which is well below the float rounding of the distance2s stored in the index
+//   Float is like SIMD with 8 lanes, one per accumulator, and Kahan is within a few float ulps of scalar
+//   All kernels are symmetric, and identical vectors give exactly zero, so dup detection is unaffected
+//   Float sums round to equal distance2s more often, so more ties are broken by vectorDx in Accumulator
+//     and IndexVector.heapSmaller - run KernelAccuracyTest to measure this on a dataset
+//   Kernels are NOT bitwise identical, so near ties can be ordered differently
+//   Build and search an index with the same kernel when link distances are compared to measured distances
+//--------------------------------------------------------------------------------------------------------
+
+public abstract class DistanceKernel implements Constants {
+
+//--------------------------------------------------------------------------------------------------------
+// DistanceKernel consts
+//--------------------------------------------------------------------------------------------------------
+
+  public static final String   kKernelProperty="hiD.kernel";
+  public static final String   kBuildKernelProperty="hiD.buildKernel";
+  public static final String   kSearchKernelProperty="hiD.searchKernel";
+
+  public static final String   kAutoKernel="auto";
+  public static final String   kScalarKernel="scalar";
+  public static final String   kSimdKernel="simd";
+  public static final String   kFloatKernel="float";
+  public static final String   kKahanKernel="kahan";
+
+  public static final String[] kKernelNames={kScalarKernel,kFloatKernel,kKahanKernel,kSimdKernel};
+
+  private static final String  kSimdKernelClassName="hiD.utils.SimdDistanceKernel";
+
+//--------------------------------------------------------------------------------------------------------
+// abstract methods
+//--------------------------------------------------------------------------------------------------------
+
+  public abstract String getName();
+
+  public abstract double vectorSeparation2(float[] inVector1, float[] inVector2);
+
+  // Early abandon version - see VectorUtils.vectorSeparation2 with bound
+  // Same result as the unbounded calc if not more than the bound, otherwise a partial sum more than the bound
+  public abstract double vectorSeparation2(float[] inVector1, float[] inVector2, double inBound);
+
+  // One query to many rows - see VectorUtils.vectorSeparation2s
+  // Results are bitwise identical to calling vectorSeparation2 on each row
+  public abstract void vectorSeparation2s(
+      float[] inQueryVector, float[][] inVectors, int[] inVectorDxs, int inNVectorDxs, float[] outSeparation2s);
+
+//--------------------------------------------------------------------------------------------------------
+// Inner class ScalarKernel
+//--------------------------------------------------------------------------------------------------------
+
+  public static final class ScalarKernel extends DistanceKernel {
+
+    public String getName() { return kScalarKernel; }
+
+    public double vectorSeparation2(float[] inVector1, float[] inVector2) {
+      return VectorUtils.vectorSeparation2(inVector1,inVector2); }
+
+    public double vectorSeparation2(float[] inVector1, float[] inVector2, double inBound) {
+      return VectorUtils.vectorSeparation2(inVector1,inVector2,inBound); }
+
+    public void vectorSeparation2s(
+        float[] inQueryVector, float[][] inVectors, int[] inVectorDxs, int inNVectorDxs, float[] outSeparation2s) {
+      VectorUtils.vectorSeparation2s(inQueryVector,inVectors,inVectorDxs,inNVectorDxs,outSeparation2s); }
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// createKernel
+//
+// SIMD kernel is loaded by name, so this class still loads when the jdk.incubator.vector module is missing
+//--------------------------------------------------------------------------------------------------------
+
+  public static DistanceKernel createKernel(String inKernelName) {
+    if (inKernelName.equals(kScalarKernel))
+      return new ScalarKernel();
+    if (inKernelName.equals(kFloatKernel))
+      return new FloatDistanceKernel();
+    if (inKernelName.equals(kKahanKernel))
+      return new KahanDistanceKernel();
+
+    if ((!inKernelName.equals(kSimdKernel))&&(!inKernelName.equals(kAutoKernel)))
+      throw new RuntimeException("Unknown distance kernel: "+inKernelName);
+
+    try {
+      return (DistanceKernel) Class.forName(kSimdKernelClassName).getDeclaredConstructor().newInstance();
+    } catch (Throwable e) {
+      if (inKernelName.equals(kSimdKernel))
+        throw new RuntimeException("SIMD distance kernel not available - run with --add-modules jdk.incubator.vector",e);
+      return new ScalarKernel();
+    }
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// getKernel
+//--------------------------------------------------------------------------------------------------------
+
+  private static DistanceKernel   gKernel;
+
+  public static synchronized DistanceKernel getKernel() {
+    if (gKernel==null)
+      gKernel=createKernel(System.getProperty(kKernelProperty,kAutoKernel));
+    return gKernel;
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// getBuildKernel, getSearchKernel
+//
+// Kernels for BuildIndex and IndexSearch, from their own property if set, otherwise the hiD.kernel kernel
+// Set explicitly to compare kernels in one JVM, as KernelAccuracyTest does - null goes back to the property
+//--------------------------------------------------------------------------------------------------------
+
+  private static DistanceKernel   gBuildKernel;
+  private static DistanceKernel   gSearchKernel;
+
+  public static synchronized DistanceKernel getBuildKernel() {
+    if (gBuildKernel==null)
+      gBuildKernel=getRoleKernel(kBuildKernelProperty);
+    return gBuildKernel;
+  }
+
+  public static synchronized DistanceKernel getSearchKernel() {
+    if (gSearchKernel==null)
+      gSearchKernel=getRoleKernel(kSearchKernelProperty);
+    return gSearchKernel;
+  }
+
+  public static synchronized void setBuildKernel(DistanceKernel inKernel) { gBuildKernel=inKernel; }
+  public static synchronized void setSearchKernel(DistanceKernel inKernel) { gSearchKernel=inKernel; }
+
+  private static DistanceKernel getRoleKernel(String inProperty) {
+    String theKernelName=System.getProperty(inProperty);
+    return (theKernelName==null)?getKernel():createKernel(theKernelName);
+  }
+
+}
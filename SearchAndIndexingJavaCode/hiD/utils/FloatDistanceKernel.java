@@ -0,0 +1,152 @@
+//--------------------------------------------------------------------------------------------------------
+// FloatDistanceKernel.java
+//--------------------------------------------------------------------------------------------------------
+
+package hiD.utils;
+
+//--------------------------------------------------------------------------------------------------------
+// FloatDistanceKernel
+//
+// Scalar distance kernel that sums in float instead of double
+// Dims are dealt round robin to kNAccumulators independent float sums, so the adds do not wait on each
+//   other, and the sums are added pairwise at the end
+// Needs no extra modules, so it is the fast kernel for JVMs without jdk.incubator.vector
+//
+// Accuracy is like the SIMD kernel with 8 lanes - see DistanceKernel for the contract
+// Relative error is on the order of (NDims/kNAccumulators+3)*2^-24, about 1e-5 for 960D
+//--------------------------------------------------------------------------------------------------------
+
+public class FloatDistanceKernel extends DistanceKernel {
+
+//--------------------------------------------------------------------------------------------------------
+// FloatDistanceKernel consts
+//--------------------------------------------------------------------------------------------------------
+
+  public static final int   kNAccumulators=8;
+  public static final int   kBoundCheckNDims=32;     // Multiple of kNAccumulators
+
+//--------------------------------------------------------------------------------------------------------
+// getName
+//--------------------------------------------------------------------------------------------------------
+
+  public String getName() { return kFloatKernel; }
+
+//--------------------------------------------------------------------------------------------------------
+// vectorSeparation2
+//--------------------------------------------------------------------------------------------------------
+
+  public double vectorSeparation2(float[] inVector1, float[] inVector2) {
+    if (inVector1.length!=inVector2.length)
+      throw new RuntimeException("Vectors different NDims");
+
+    int theNDims=inVector1.length;
+    float theSum0=0;
+    float theSum1=0;
+    float theSum2=0;
+    float theSum3=0;
+    float theSum4=0;
+    float theSum5=0;
+    float theSum6=0;
+    float theSum7=0;
+
+    int i=0;
+    for (; i<=theNDims-kNAccumulators; i+=kNAccumulators) {
+      float theDifference0=inVector1[i]-inVector2[i];
+      float theDifference1=inVector1[i+1]-inVector2[i+1];
+      float theDifference2=inVector1[i+2]-inVector2[i+2];
+      float theDifference3=inVector1[i+3]-inVector2[i+3];
+      float theDifference4=inVector1[i+4]-inVector2[i+4];
+      float theDifference5=inVector1[i+5]-inVector2[i+5];
+      float theDifference6=inVector1[i+6]-inVector2[i+6];
+      float theDifference7=inVector1[i+7]-inVector2[i+7];
+      theSum0+=theDifference0*theDifference0;
+      theSum1+=theDifference1*theDifference1;
+      theSum2+=theDifference2*theDifference2;
+      theSum3+=theDifference3*theDifference3;
+      theSum4+=theDifference4*theDifference4;
+      theSum5+=theDifference5*theDifference5;
+      theSum6+=theDifference6*theDifference6;
+      theSum7+=theDifference7*theDifference7;
+    }
+
+    // Leftover dims
+    for (; i<theNDims; i++) {
+      float theDifference=inVector1[i]-inVector2[i];
+      theSum0+=theDifference*theDifference;
+    }
+    return ((theSum0+theSum1)+(theSum2+theSum3))+((theSum4+theSum5)+(theSum6+theSum7));
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// vectorSeparation2 with bound
+//
+// Same sums in the same order as vectorSeparation2, with the partial sum checked every kBoundCheckNDims dims
+// Float adds of squares never shrink a sum, so the final sum is never less than a partial sum past the bound
+//--------------------------------------------------------------------------------------------------------
+
+  public double vectorSeparation2(float[] inVector1, float[] inVector2, double inBound) {
+    if (inVector1.length!=inVector2.length)
+      throw new RuntimeException("Vectors different NDims");
+
+    int theNDims=inVector1.length;
+    float theSum0=0;
+    float theSum1=0;
+    float theSum2=0;
+    float theSum3=0;
+    float theSum4=0;
+    float theSum5=0;
+    float theSum6=0;
+    float theSum7=0;
+
+    int i=0;
+    int theUpperBound=theNDims-kNAccumulators;
+    while (i<=theUpperBound) {
+      int theCheckDim=Math.min(theUpperBound,i+kBoundCheckNDims-kNAccumulators);
+      for (; i<=theCheckDim; i+=kNAccumulators) {
+        float theDifference0=inVector1[i]-inVector2[i];
+        float theDifference1=inVector1[i+1]-inVector2[i+1];
+        float theDifference2=inVector1[i+2]-inVector2[i+2];
+        float theDifference3=inVector1[i+3]-inVector2[i+3];
+        float theDifference4=inVector1[i+4]-inVector2[i+4];
+        float theDifference5=inVector1[i+5]-inVector2[i+5];
+        float theDifference6=inVector1[i+6]-inVector2[i+6];
+        float theDifference7=inVector1[i+7]-inVector2[i+7];
+        theSum0+=theDifference0*theDifference0;
+        theSum1+=theDifference1*theDifference1;
+        theSum2+=theDifference2*theDifference2;
+        theSum3+=theDifference3*theDifference3;
+        theSum4+=theDifference4*theDifference4;
+        theSum5+=theDifference5*theDifference5;
+        theSum6+=theDifference6*theDifference6;
+        theSum7+=theDifference7*theDifference7;
+      }
+      float thePartialSeparation2=((theSum0+theSum1)+(theSum2+theSum3))+((theSum4+theSum5)+(theSum6+theSum7));
+      if (thePartialSeparation2>inBound)
+        return thePartialSeparation2;
+    }
+
+    // Leftover dims
+    for (; i<theNDims; i++) {
+      float theDifference=inVector1[i]-inVector2[i];
+      theSum0+=theDifference*theDifference;
+    }
+    return ((theSum0+theSum1)+(theSum2+theSum3))+((theSum4+theSum5)+(theSum6+theSum7));
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// vectorSeparation2s
+//
+// One row at a time - the accumulators already keep the adds busy, so interleaving rows gains little
+//--------------------------------------------------------------------------------------------------------
+
+  public void vectorSeparation2s(
+      float[]     inQueryVector,
+      float[][]   inVectors,
+      int[]       inVectorDxs,
+      int         inNVectorDxs,
+      float[]     outSeparation2s) {
+    for (int theDx=0; theDx<inNVectorDxs; theDx++)
+      outSeparation2s[theDx]=(float) vectorSeparation2(inQueryVector,inVectors[inVectorDxs[theDx]]);
+  }
+
+}
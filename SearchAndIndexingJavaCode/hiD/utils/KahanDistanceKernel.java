@@ -0,0 +1,168 @@
+//--------------------------------------------------------------------------------------------------------
+// KahanDistanceKernel.java
+//--------------------------------------------------------------------------------------------------------
+
+package hiD.utils;
+
+//--------------------------------------------------------------------------------------------------------
+// KahanDistanceKernel
+//
+// Scalar distance kernel that sums in float with Kahan compensation
+// The low bits lost by each add are carried into the next add, so the error no longer grows with NDims,
+//   and the result is within a few float ulps of the double sum of the scalar kernel
+// Dims are dealt round robin to kNAccumulators compensated sums, so their adds do not wait on each other,
+//   which makes it about as fast as the scalar kernel, and slower than the float kernel
+//
+// Compensation can let a running sum drop by an ulp, so the bounded calc only abandons a calc when
+//   the partial sum is past the bound by more than kBoundSlack
+//--------------------------------------------------------------------------------------------------------
+
+public class KahanDistanceKernel extends DistanceKernel {
+
+//--------------------------------------------------------------------------------------------------------
+// KahanDistanceKernel consts
+//--------------------------------------------------------------------------------------------------------
+
+  public static final int      kNAccumulators=4;
+  public static final int      kBoundCheckNDims=32;         // Multiple of kNAccumulators
+  public static final double   kBoundSlack=1.0/(1<<20);     // Relative, many ulps of float
+
+//--------------------------------------------------------------------------------------------------------
+// getName
+//--------------------------------------------------------------------------------------------------------
+
+  public String getName() { return kKahanKernel; }
+
+//--------------------------------------------------------------------------------------------------------
+// vectorSeparation2
+//--------------------------------------------------------------------------------------------------------
+
+  public double vectorSeparation2(float[] inVector1, float[] inVector2) {
+    if (inVector1.length!=inVector2.length)
+      throw new RuntimeException("Vectors different NDims");
+
+    int theNDims=inVector1.length;
+    float theSeparation20=0;
+    float theSeparation21=0;
+    float theSeparation22=0;
+    float theSeparation23=0;
+    float theCompensation0=0;
+    float theCompensation1=0;
+    float theCompensation2=0;
+    float theCompensation3=0;
+
+    int i=0;
+    for (; i<=theNDims-kNAccumulators; i+=kNAccumulators) {
+      float theDifference0=inVector1[i]-inVector2[i];
+      float theDifference1=inVector1[i+1]-inVector2[i+1];
+      float theDifference2=inVector1[i+2]-inVector2[i+2];
+      float theDifference3=inVector1[i+3]-inVector2[i+3];
+      float theTerm0=theDifference0*theDifference0-theCompensation0;
+      float theSum0=theSeparation20+theTerm0;
+      theCompensation0=(theSum0-theSeparation20)-theTerm0;
+      theSeparation20=theSum0;
+      float theTerm1=theDifference1*theDifference1-theCompensation1;
+      float theSum1=theSeparation21+theTerm1;
+      theCompensation1=(theSum1-theSeparation21)-theTerm1;
+      theSeparation21=theSum1;
+      float theTerm2=theDifference2*theDifference2-theCompensation2;
+      float theSum2=theSeparation22+theTerm2;
+      theCompensation2=(theSum2-theSeparation22)-theTerm2;
+      theSeparation22=theSum2;
+      float theTerm3=theDifference3*theDifference3-theCompensation3;
+      float theSum3=theSeparation23+theTerm3;
+      theCompensation3=(theSum3-theSeparation23)-theTerm3;
+      theSeparation23=theSum3;
+    }
+
+    // Leftover dims
+    for (; i<theNDims; i++) {
+      float theDifference=inVector1[i]-inVector2[i];
+      float theTerm=theDifference*theDifference-theCompensation0;
+      float theSum=theSeparation20+theTerm;
+      theCompensation0=(theSum-theSeparation20)-theTerm;
+      theSeparation20=theSum;
+    }
+    return ((theSeparation20+theSeparation21)+(theSeparation22+theSeparation23))-
+        ((theCompensation0+theCompensation1)+(theCompensation2+theCompensation3));
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// vectorSeparation2 with bound
+//
+// Same sums in the same order as vectorSeparation2, with the partial sum checked every kBoundCheckNDims dims
+//--------------------------------------------------------------------------------------------------------
+
+  public double vectorSeparation2(float[] inVector1, float[] inVector2, double inBound) {
+    if (inVector1.length!=inVector2.length)
+      throw new RuntimeException("Vectors different NDims");
+
+    int theNDims=inVector1.length;
+    double theSlackBound=inBound*(1+kBoundSlack);
+    float theSeparation20=0;
+    float theSeparation21=0;
+    float theSeparation22=0;
+    float theSeparation23=0;
+    float theCompensation0=0;
+    float theCompensation1=0;
+    float theCompensation2=0;
+    float theCompensation3=0;
+
+    int i=0;
+    int theUpperBound=theNDims-kNAccumulators;
+    while (i<=theUpperBound) {
+      int theCheckDim=Math.min(theUpperBound,i+kBoundCheckNDims-kNAccumulators);
+      for (; i<=theCheckDim; i+=kNAccumulators) {
+        float theDifference0=inVector1[i]-inVector2[i];
+        float theDifference1=inVector1[i+1]-inVector2[i+1];
+        float theDifference2=inVector1[i+2]-inVector2[i+2];
+        float theDifference3=inVector1[i+3]-inVector2[i+3];
+        float theTerm0=theDifference0*theDifference0-theCompensation0;
+        float theSum0=theSeparation20+theTerm0;
+        theCompensation0=(theSum0-theSeparation20)-theTerm0;
+        theSeparation20=theSum0;
+        float theTerm1=theDifference1*theDifference1-theCompensation1;
+        float theSum1=theSeparation21+theTerm1;
+        theCompensation1=(theSum1-theSeparation21)-theTerm1;
+        theSeparation21=theSum1;
+        float theTerm2=theDifference2*theDifference2-theCompensation2;
+        float theSum2=theSeparation22+theTerm2;
+        theCompensation2=(theSum2-theSeparation22)-theTerm2;
+        theSeparation22=theSum2;
+        float theTerm3=theDifference3*theDifference3-theCompensation3;
+        float theSum3=theSeparation23+theTerm3;
+        theCompensation3=(theSum3-theSeparation23)-theTerm3;
+        theSeparation23=theSum3;
+      }
+      float thePartialSeparation2=(theSeparation20+theSeparation21)+(theSeparation22+theSeparation23);
+      if (thePartialSeparation2>theSlackBound)
+        return thePartialSeparation2;
+    }
+
+    // Leftover dims
+    for (; i<theNDims; i++) {
+      float theDifference=inVector1[i]-inVector2[i];
+      float theTerm=theDifference*theDifference-theCompensation0;
+      float theSum=theSeparation20+theTerm;
+      theCompensation0=(theSum-theSeparation20)-theTerm;
+      theSeparation20=theSum;
+    }
+    return ((theSeparation20+theSeparation21)+(theSeparation22+theSeparation23))-
+        ((theCompensation0+theCompensation1)+(theCompensation2+theCompensation3));
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// vectorSeparation2s
+//--------------------------------------------------------------------------------------------------------
+
+  public void vectorSeparation2s(
+      float[]     inQueryVector,
+      float[][]   inVectors,
+      int[]       inVectorDxs,
+      int         inNVectorDxs,
+      float[]     outSeparation2s) {
+    for (int theDx=0; theDx<inNVectorDxs; theDx++)
+      outSeparation2s[theDx]=(float) vectorSeparation2(inQueryVector,inVectors[inVectorDxs[theDx]]);
+  }
+
+}
@@ -0,0 +1,221 @@
+//--------------------------------------------------------------------------------------------------------
+// SimdDistanceKernel.java
+//--------------------------------------------------------------------------------------------------------
+
+package hiD.utils;
+
+import jdk.incubator.vector.*;
+
+//--------------------------------------------------------------------------------------------------------
+// SimdDistanceKernel
+//
+// Distance kernel using the Java Vector API with the widest species the CPU supports
+//   (8 floats for AVX2, 16 floats for AVX-512)
+// Needs --add-modules jdk.incubator.vector to compile and run - see DistanceKernel for how it is selected
+//   and for the accuracy contract
+//
+// Two accumulators hide the add latency, and mul+add is used instead of fma because fma falls back to
+//   a very slow scalar calc on CPUs without fma
+//--------------------------------------------------------------------------------------------------------
+
+public class SimdDistanceKernel extends DistanceKernel {
+
+//--------------------------------------------------------------------------------------------------------
+// SimdDistanceKernel consts
+//--------------------------------------------------------------------------------------------------------
+
+  private static final VectorSpecies<Float>   kSpecies=FloatVector.SPECIES_PREFERRED;
+  private static final int                    kNLanes=kSpecies.length();
+  private static final int                    kBoundCheckNDims=64;     // Min dims before the bound is checked - adding the lanes is slow
+
+//--------------------------------------------------------------------------------------------------------
+// getName
+//--------------------------------------------------------------------------------------------------------
+
+  public String getName() { return kSimdKernel+" "+kSpecies.vectorBitSize()+"bit"; }
+
+//--------------------------------------------------------------------------------------------------------
+// vectorSeparation2
+//--------------------------------------------------------------------------------------------------------
+
+  public double vectorSeparation2(float[] inVector1, float[] inVector2) {
+    if (inVector1.length!=inVector2.length)
+      throw new RuntimeException("Vectors different NDims");
+
+    int theNDims=inVector1.length;
+    FloatVector theSum1=FloatVector.zero(kSpecies);
+    FloatVector theSum2=FloatVector.zero(kSpecies);
+
+    int i=0;
+    int theUpperBound2=theNDims-2*kNLanes;
+    for (; i<=theUpperBound2; i+=2*kNLanes) {
+      FloatVector theDifference1=FloatVector.fromArray(kSpecies,inVector1,i).sub(FloatVector.fromArray(kSpecies,inVector2,i));
+      FloatVector theDifference2=FloatVector.fromArray(kSpecies,inVector1,i+kNLanes).sub(FloatVector.fromArray(kSpecies,inVector2,i+kNLanes));
+      theSum1=theSum1.add(theDifference1.mul(theDifference1));
+      theSum2=theSum2.add(theDifference2.mul(theDifference2));
+    }
+    if (i<=theNDims-kNLanes) {
+      FloatVector theDifference1=FloatVector.fromArray(kSpecies,inVector1,i).sub(FloatVector.fromArray(kSpecies,inVector2,i));
+      theSum1=theSum1.add(theDifference1.mul(theDifference1));
+      i+=kNLanes;
+    }
+
+    float theSeparation2=theSum1.add(theSum2).reduceLanes(VectorOperators.ADD);
+
+    // Leftover dims
+    for (; i<theNDims; i++) {
+      float theDifference=inVector1[i]-inVector2[i];
+      theSeparation2+=theDifference*theDifference;
+    }
+    return theSeparation2;
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// vectorSeparation2 with bound
+//
+// Lanes keep accumulating after a check, so the result matches the unbounded calc when not abandoned
+// Lanes only grow, so the final sum is never less than a partial sum that passed the bound
+//--------------------------------------------------------------------------------------------------------
+
+  public double vectorSeparation2(float[] inVector1, float[] inVector2, double inBound) {
+    if (inVector1.length!=inVector2.length)
+      throw new RuntimeException("Vectors different NDims");
+
+    int theNDims=inVector1.length;
+    FloatVector theSum1=FloatVector.zero(kSpecies);
+    FloatVector theSum2=FloatVector.zero(kSpecies);
+
+    // One check half way - distance2s are usually too concentrated to pass the bound sooner,
+    //   and a check inside the loop slows every step
+    int i=0;
+    int theUpperBound2=theNDims-2*kNLanes;
+    int theCheckBound2=Math.min(theUpperBound2,theNDims/2-2*kNLanes);
+    for (; i<=theCheckBound2; i+=2*kNLanes) {
+      FloatVector theDifference1=FloatVector.fromArray(kSpecies,inVector1,i).sub(FloatVector.fromArray(kSpecies,inVector2,i));
+      FloatVector theDifference2=FloatVector.fromArray(kSpecies,inVector1,i+kNLanes).sub(FloatVector.fromArray(kSpecies,inVector2,i+kNLanes));
+      theSum1=theSum1.add(theDifference1.mul(theDifference1));
+      theSum2=theSum2.add(theDifference2.mul(theDifference2));
+    }
+    if (i>=kBoundCheckNDims) {
+      float thePartialSeparation2=theSum1.add(theSum2).reduceLanes(VectorOperators.ADD);
+      if (thePartialSeparation2>inBound)
+        return thePartialSeparation2;
+    }
+    for (; i<=theUpperBound2; i+=2*kNLanes) {
+      FloatVector theDifference1=FloatVector.fromArray(kSpecies,inVector1,i).sub(FloatVector.fromArray(kSpecies,inVector2,i));
+      FloatVector theDifference2=FloatVector.fromArray(kSpecies,inVector1,i+kNLanes).sub(FloatVector.fromArray(kSpecies,inVector2,i+kNLanes));
+      theSum1=theSum1.add(theDifference1.mul(theDifference1));
+      theSum2=theSum2.add(theDifference2.mul(theDifference2));
+    }
+    if (i<=theNDims-kNLanes) {
+      FloatVector theDifference1=FloatVector.fromArray(kSpecies,inVector1,i).sub(FloatVector.fromArray(kSpecies,inVector2,i));
+      theSum1=theSum1.add(theDifference1.mul(theDifference1));
+      i+=kNLanes;
+    }
+
+    float theSeparation2=theSum1.add(theSum2).reduceLanes(VectorOperators.ADD);
+
+    // Leftover dims
+    for (; i<theNDims; i++) {
+      float theDifference=inVector1[i]-inVector2[i];
+      theSeparation2+=theDifference*theDifference;
+    }
+    return theSeparation2;
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// vectorSeparation2s
+//
+// One query to many rows, kGatherNRows rows at a time so each query load is used for all of them
+// Each row keeps the same two accumulators and the same lane order as vectorSeparation2, 
+//   so results are bitwise identical - 2*kGatherNRows accumulators still fit in the vector registers
+//--------------------------------------------------------------------------------------------------------
+
+  private static final int   kGatherNRows=4;
+
+  public void vectorSeparation2s(
+      float[]     inQueryVector,
+      float[][]   inVectors,
+      int[]       inVectorDxs,
+      int         inNVectorDxs,
+      float[]     outSeparation2s) {
+
+    int theNDims=inQueryVector.length;
+    int theUpperBound2=theNDims-2*kNLanes;
+    int theDx=0;
+    for (; theDx<=inNVectorDxs-kGatherNRows; theDx+=kGatherNRows) {
+      float[] theVector0=inVectors[inVectorDxs[theDx]];
+      float[] theVector1=inVectors[inVectorDxs[theDx+1]];
+      float[] theVector2=inVectors[inVectorDxs[theDx+2]];
+      float[] theVector3=inVectors[inVectorDxs[theDx+3]];
+      if ((theVector0.length!=theNDims)||(theVector1.length!=theNDims)||
+          (theVector2.length!=theNDims)||(theVector3.length!=theNDims))
+        throw new RuntimeException("Vectors different NDims");
+
+      FloatVector theSum01=FloatVector.zero(kSpecies);
+      FloatVector theSum02=FloatVector.zero(kSpecies);
+      FloatVector theSum11=FloatVector.zero(kSpecies);
+      FloatVector theSum12=FloatVector.zero(kSpecies);
+      FloatVector theSum21=FloatVector.zero(kSpecies);
+      FloatVector theSum22=FloatVector.zero(kSpecies);
+      FloatVector theSum31=FloatVector.zero(kSpecies);
+      FloatVector theSum32=FloatVector.zero(kSpecies);
+
+      int i=0;
+      for (; i<=theUpperBound2; i+=2*kNLanes) {
+        FloatVector theQuery1=FloatVector.fromArray(kSpecies,inQueryVector,i);
+        FloatVector theQuery2=FloatVector.fromArray(kSpecies,inQueryVector,i+kNLanes);
+        FloatVector theDifference01=theQuery1.sub(FloatVector.fromArray(kSpecies,theVector0,i));
+        FloatVector theDifference02=theQuery2.sub(FloatVector.fromArray(kSpecies,theVector0,i+kNLanes));
+        FloatVector theDifference11=theQuery1.sub(FloatVector.fromArray(kSpecies,theVector1,i));
+        FloatVector theDifference12=theQuery2.sub(FloatVector.fromArray(kSpecies,theVector1,i+kNLanes));
+        FloatVector theDifference21=theQuery1.sub(FloatVector.fromArray(kSpecies,theVector2,i));
+        FloatVector theDifference22=theQuery2.sub(FloatVector.fromArray(kSpecies,theVector2,i+kNLanes));
+        FloatVector theDifference31=theQuery1.sub(FloatVector.fromArray(kSpecies,theVector3,i));
+        FloatVector theDifference32=theQuery2.sub(FloatVector.fromArray(kSpecies,theVector3,i+kNLanes));
+        theSum01=theSum01.add(theDifference01.mul(theDifference01));
+        theSum02=theSum02.add(theDifference02.mul(theDifference02));
+        theSum11=theSum11.add(theDifference11.mul(theDifference11));
+        theSum12=theSum12.add(theDifference12.mul(theDifference12));
+        theSum21=theSum21.add(theDifference21.mul(theDifference21));
+        theSum22=theSum22.add(theDifference22.mul(theDifference22));
+        theSum31=theSum31.add(theDifference31.mul(theDifference31));
+        theSum32=theSum32.add(theDifference32.mul(theDifference32));
+      }
+
+      // Leftover lanes and dims are finished one row at a time, as in vectorSeparation2
+      outSeparation2s[theDx]=finishSeparation2(inQueryVector,theVector0,i,theSum01,theSum02);
+      outSeparation2s[theDx+1]=finishSeparation2(inQueryVector,theVector1,i,theSum11,theSum12);
+      outSeparation2s[theDx+2]=finishSeparation2(inQueryVector,theVector2,i,theSum21,theSum22);
+      outSeparation2s[theDx+3]=finishSeparation2(inQueryVector,theVector3,i,theSum31,theSum32);
+    }
+
+    // Leftover rows
+    for (; theDx<inNVectorDxs; theDx++)
+      outSeparation2s[theDx]=(float) vectorSeparation2(inQueryVector,inVectors[inVectorDxs[theDx]]);
+  }
+
+  private static float finishSeparation2(
+      float[]       inQueryVector, 
+      float[]       inVector, 
+      int           inStartDim, 
+      FloatVector   inSum1, 
+      FloatVector   inSum2) {
+
+    int theNDims=inQueryVector.length;
+    int i=inStartDim;
+    if (i<=theNDims-kNLanes) {
+      FloatVector theDifference1=FloatVector.fromArray(kSpecies,inQueryVector,i).sub(FloatVector.fromArray(kSpecies,inVector,i));
+      inSum1=inSum1.add(theDifference1.mul(theDifference1));
+      i+=kNLanes;
+    }
+
+    float theSeparation2=inSum1.add(inSum2).reduceLanes(VectorOperators.ADD);
+    for (; i<theNDims; i++) {
+      float theDifference=inQueryVector[i]-inVector[i];
+      theSeparation2+=theDifference*theDifference;
+    }
+    return theSeparation2;
+  }
+
+}
@@ -79,6 +79,89 @@ public class VectorUtils implements Constants {
     return theSeparation2;
   }
 
+//--------------------------------------------------------------------------------------------------------
+// vectorSeparation2 with bound
+//
+// Early abandon version for calcs that are thrown away when the distance2 is more than the bound
+// Sums in the same order as vectorSeparation2, checking the partial sum every kBoundCheckNDims dims
+// Returns the same distance2 as vectorSeparation2 if it is not more than the bound, 
+//   otherwise returns a partial sum that is more than the bound
+//--------------------------------------------------------------------------------------------------------
+
+  public static final int   kBoundCheckNDims=32;
+
+  public static double vectorSeparation2(float[] inVector1, float[] inVector2, double inBound) {
+    if (inVector1.length!=inVector2.length)
+      throw new RuntimeException("Vectors different NDims");
+    int theNDims=inVector1.length;
+    double theSeparation2=0;
+    for (int theStartDim=0; theStartDim<theNDims; theStartDim+=kBoundCheckNDims) {
+      int theEndDim=Math.min(theNDims,theStartDim+kBoundCheckNDims);
+      for (int i=theStartDim; i<theEndDim; i++) { 
+        double theDifference=inVector1[i]-inVector2[i];
+        theSeparation2+=theDifference*theDifference;
+      }
+      if (theSeparation2>inBound)
+        return theSeparation2;
+    }
+    return theSeparation2;
+  }
+
+//--------------------------------------------------------------------------------------------------------
+// vectorSeparation2s
+//
+// One query to many rows - calcs distance2 from the query to inVectors[inVectorDxs[i]] for i<inNVectorDxs
+// Rows are interleaved kGatherNRows at a time, so each query component is loaded once for all of them,
+//   and the loads of the separate rows are in flight together
+// Each row sums in the same order as vectorSeparation2, so results are bitwise identical
+//--------------------------------------------------------------------------------------------------------
+
+  public static final int   kGatherNRows=4;
+
+  public static void vectorSeparation2s(
+      float[]     inQueryVector,
+      float[][]   inVectors,
+      int[]       inVectorDxs,
+      int         inNVectorDxs,
+      float[]     outSeparation2s) {
+
+    int theNDims=inQueryVector.length;
+    int theDx=0;
+    for (; theDx<=inNVectorDxs-kGatherNRows; theDx+=kGatherNRows) {
+      float[] theVector0=inVectors[inVectorDxs[theDx]];
+      float[] theVector1=inVectors[inVectorDxs[theDx+1]];
+      float[] theVector2=inVectors[inVectorDxs[theDx+2]];
+      float[] theVector3=inVectors[inVectorDxs[theDx+3]];
+      if ((theVector0.length!=theNDims)||(theVector1.length!=theNDims)||
+          (theVector2.length!=theNDims)||(theVector3.length!=theNDims))
+        throw new RuntimeException("Vectors different NDims");
+
+      double theSeparation20=0;
+      double theSeparation21=0;
+      double theSeparation22=0;
+      double theSeparation23=0;
+      for (int i=0; i<theNDims; i++) {
+        float theQueryComponent=inQueryVector[i];
+        double theDifference0=theQueryComponent-theVector0[i];
+        double theDifference1=theQueryComponent-theVector1[i];
+        double theDifference2=theQueryComponent-theVector2[i];
+        double theDifference3=theQueryComponent-theVector3[i];
+        theSeparation20+=theDifference0*theDifference0;
+        theSeparation21+=theDifference1*theDifference1;
+        theSeparation22+=theDifference2*theDifference2;
+        theSeparation23+=theDifference3*theDifference3;
+      }
+      outSeparation2s[theDx]=(float) theSeparation20;
+      outSeparation2s[theDx+1]=(float) theSeparation21;
+      outSeparation2s[theDx+2]=(float) theSeparation22;
+      outSeparation2s[theDx+3]=(float) theSeparation23;
+    }
+
+    // Leftover rows
+    for (; theDx<inNVectorDxs; theDx++)
+      outSeparation2s[theDx]=(float) vectorSeparation2(inQueryVector,inVectors[inVectorDxs[theDx]]);
+  }
+
 //--------------------------------------------------------------------------------------------------------
 // vectorSeparation
 //--------------------------------------------------------------------------------------------------------